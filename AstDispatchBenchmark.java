@@ -0,0 +1,231 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Compares evaluating the same expressions through Expr.Visitor with
+// evaluating their ExprNode records through a switch on kind(). Both
+// evaluators follow the interpreter's rules for the node types used
+// (arithmetic, negation, grouping, literals, variables, and/or), box their
+// results the same way, and must agree on every tree.
+//
+//     java AstDispatchBenchmark [trees] [rounds]
+final class AstDispatchBenchmark {
+    private static final int DEPTH = 12;
+    private static final Token PLUS = new Token(TokenType.PLUS, "+", null, 1);
+    private static final Token MINUS = new Token(TokenType.MINUS, "-", null, 1);
+    private static final Token STAR = new Token(TokenType.STAR, "*", null, 1);
+    private static final Token SLASH = new Token(TokenType.SLASH, "/", null, 1);
+    private static final Token AND = new Token(TokenType.AND, "and", null, 1);
+    private static final Token OR = new Token(TokenType.OR, "or", null, 1);
+    private static final Token[] ARITHMETIC = { PLUS, MINUS, STAR, SLASH };
+    private static final String[] NAMES = { "rainfall", "area", "loss" };
+
+    private final Map<String, Object> variables = new HashMap<>();
+
+    private AstDispatchBenchmark() {
+        variables.put("rainfall", 2.5);
+        variables.put("area", 40.0);
+        variables.put("loss", 0.125);
+    }
+
+    public static void main(String[] args) {
+        int trees = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+        Random random = new Random(42);
+        List<Expr> classic = new ArrayList<>();
+        List<ExprNode> records = new ArrayList<>();
+        long nodes = 0;
+        for (int i = 0; i < trees; i++) {
+            Expr tree = tree(random, DEPTH);
+            classic.add(tree);
+            records.add(ExprNode.of(tree));
+            nodes += count(tree);
+        }
+
+        AstDispatchBenchmark benchmark = new AstDispatchBenchmark();
+        Visiting visiting = benchmark.new Visiting();
+        for (int i = 0; i < trees; i++) {
+            if (!visiting.evaluate(classic.get(i)).equals(benchmark.evaluate(records.get(i)))) {
+                throw new IllegalStateException("The evaluators disagree on tree " + i + ".");
+            }
+        }
+
+        System.out.printf("%d trees, %d nodes, %d rounds%n", trees, nodes, rounds);
+        double sink = 0.0;
+        double[] visitorTimes = new double[rounds];
+        double[] switchTimes = new double[rounds];
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (Expr tree : classic) sink += (double) visiting.evaluate(tree);
+            long visitor = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (ExprNode tree : records) sink += (double) benchmark.evaluate(tree);
+            long dispatch = System.nanoTime() - start;
+
+            visitorTimes[round] = (double) visitor / nodes;
+            switchTimes[round] = (double) dispatch / nodes;
+            System.out.printf("round %2d: visitor %6.2f ns/node, switch %6.2f ns/node%n",
+                    round, visitorTimes[round], switchTimes[round]);
+        }
+        // The later half of the rounds, once both are compiled.
+        System.out.printf("median:   visitor %6.2f ns/node, switch %6.2f ns/node%n",
+                laterMedian(visitorTimes), laterMedian(switchTimes));
+        if (sink == 42.0) System.out.println();
+    }
+
+    private static double laterMedian(double[] times) {
+        double[] later = Arrays.copyOfRange(times, times.length / 2, times.length);
+        Arrays.sort(later);
+        return later[later.length / 2];
+    }
+
+    // Random numeric trees, so every node type reaches every call site.
+    private static Expr tree(Random random, int depth) {
+        int pick = depth == 0 ? random.nextInt(2) : random.nextInt(6);
+        switch (pick) {
+            case 0:
+                return new Expr.Literal((double) (random.nextInt(9) + 1));
+            case 1:
+                return new Expr.Variable(new Token(TokenType.IDENTIFIER,
+                        NAMES[random.nextInt(NAMES.length)], null, 1));
+            case 2:
+                return new Expr.Unary(MINUS, tree(random, depth - 1));
+            case 3:
+                return new Expr.Grouping(tree(random, depth - 1));
+            case 4:
+                return new Expr.Logical(tree(random, depth - 1), random.nextBoolean() ? AND : OR,
+                        tree(random, depth - 1));
+            default:
+                return new Expr.Binary(tree(random, depth - 1), ARITHMETIC[random.nextInt(4)],
+                        tree(random, depth - 1));
+        }
+    }
+
+    private static long count(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            return 1 + count(((Expr.Binary) expr).left) + count(((Expr.Binary) expr).right);
+        }
+        if (expr instanceof Expr.Logical) {
+            return 1 + count(((Expr.Logical) expr).left) + count(((Expr.Logical) expr).right);
+        }
+        if (expr instanceof Expr.Unary) return 1 + count(((Expr.Unary) expr).right);
+        if (expr instanceof Expr.Grouping) return 1 + count(((Expr.Grouping) expr).expression);
+        return 1;
+    }
+
+    private Object evaluate(ExprNode expr) {
+        switch (expr.kind()) {
+            case BINARY: {
+                ExprNode.Binary node = (ExprNode.Binary) expr;
+                return arithmetic(node.operator(), evaluate(node.left()), evaluate(node.right()));
+            }
+            case GROUPING:
+                return evaluate(((ExprNode.Grouping) expr).expression());
+            case LITERAL:
+                return ((ExprNode.Literal) expr).value();
+            case UNARY:
+                return -(double) evaluate(((ExprNode.Unary) expr).right());
+            case VARIABLE:
+                return variables.get(((ExprNode.Variable) expr).name().lexeme);
+            case LOGICAL: {
+                ExprNode.Logical node = (ExprNode.Logical) expr;
+                Object left = evaluate(node.left());
+                if (node.operator().type == TokenType.OR) {
+                    if (isTruthy(left)) return left;
+                } else {
+                    if (!isTruthy(left)) return left;
+                }
+                return evaluate(node.right());
+            }
+            default:
+                throw new IllegalArgumentException("Not benchmarked: " + expr.kind());
+        }
+    }
+
+    private final class Visiting implements Expr.Visitor<Object> {
+        Object evaluate(Expr expr) {
+            return expr.accept(this);
+        }
+
+        @Override
+        public Object visitBinaryExpr(Expr.Binary expr) {
+            return arithmetic(expr.operator, evaluate(expr.left), evaluate(expr.right));
+        }
+
+        @Override
+        public Object visitGroupingExpr(Expr.Grouping expr) {
+            return evaluate(expr.expression);
+        }
+
+        @Override
+        public Object visitLiteralExpr(Expr.Literal expr) {
+            return expr.value;
+        }
+
+        @Override
+        public Object visitUnaryExpr(Expr.Unary expr) {
+            return -(double) evaluate(expr.right);
+        }
+
+        @Override
+        public Object visitVariableExpr(Expr.Variable expr) {
+            return variables.get(expr.name.lexeme);
+        }
+
+        @Override
+        public Object visitLogicalExpr(Expr.Logical expr) {
+            Object left = evaluate(expr.left);
+            if (expr.operator.type == TokenType.OR) {
+                if (isTruthy(left)) return left;
+            } else {
+                if (!isTruthy(left)) return left;
+            }
+            return evaluate(expr.right);
+        }
+
+        @Override
+        public Object visitAssignExpr(Expr.Assign expr) {
+            throw new IllegalArgumentException("Not benchmarked: ASSIGN");
+        }
+
+        @Override
+        public Object visitIndexExpr(Expr.Index expr) {
+            throw new IllegalArgumentException("Not benchmarked: INDEX");
+        }
+
+        @Override
+        public Object visitHoistedExpr(Expr.Hoisted expr) {
+            throw new IllegalArgumentException("Not benchmarked: HOISTED");
+        }
+
+        @Override
+        public Object visitSumExpr(Expr.Sum expr) {
+            throw new IllegalArgumentException("Not benchmarked: SUM");
+        }
+
+        @Override
+        public Object visitCallExpr(Expr.Call expr) {
+            throw new IllegalArgumentException("Not benchmarked: CALL");
+        }
+    }
+
+    private static Object arithmetic(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case PLUS: return (double) left + (double) right;
+            case MINUS: return (double) left - (double) right;
+            case STAR: return (double) left * (double) right;
+            default: return (double) left / (double) right;
+        }
+    }
+
+    private static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean) object;
+        return true;
+    }
+}
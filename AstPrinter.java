@@ -1,6 +1,18 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 
 public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
+  // Stands for a missing child (a statement that failed to parse), which
+  // prints as "null" like the string form does.
+  private static final String MISSING = "null";
+
+  // The line the last statement looked at by a range dump started on.
+  private int lastLine = 0;
+
   public String print(Stmt stmt) {
     return stmt.accept(this);
   }
@@ -9,26 +21,295 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     return expr.accept(this);
   }
 
+  // Streaming form: writes the statement's S-expression and a newline to
+  // out, the same text print(stmt) returns, without building any strings.
+  // The walk keeps its own stack, so deep trees cannot overflow the call
+  // stack. Pass a buffered Writer or a StringBuilder.
+  public void print(Stmt stmt, Appendable out) throws IOException {
+    Deque<Object> pending = new ArrayDeque<>();
+    pending.push(stmt == null ? MISSING : stmt);
+    while (!pending.isEmpty()) {
+      Object item = pending.pop();
+      if (item instanceof String) {
+        out.append((String) item);
+      } else {
+        expand(item, pending);
+      }
+    }
+    out.append('\n');
+  }
+
+  public void print(List<Stmt> statements, Appendable out) throws IOException {
+    for (Stmt statement : statements) {
+      print(statement, out);
+    }
+  }
+
+  // Writes only the statements starting on lines from to to, inclusive.
+  // Blocks, loops, ifs and functions that start outside the range are not
+  // printed, but the statements inside them that start in it are, each on
+  // its own line. A statement with no token of its own to take a line from
+  // (print 5;) counts as starting on the line of the one before it.
+  public void print(Stmt stmt, Appendable out, int from, int to) throws IOException {
+    Deque<Stmt> pending = new ArrayDeque<>();
+    if (stmt != null) pending.push(stmt);
+    while (!pending.isEmpty()) {
+      Stmt next = pending.pop();
+      int line = line(next);
+      if (line < 0) line = lastLine;
+      lastLine = line;
+      if (line >= from && line <= to) {
+        print(next, out);
+        continue;
+      }
+      List<Stmt> inside;
+      if (next instanceof Stmt.Block) {
+        inside = ((Stmt.Block) next).statements;
+      } else if (next instanceof Stmt.Function) {
+        inside = ((Stmt.Function) next).body;
+      } else if (next instanceof Stmt.While) {
+        inside = Collections.singletonList(((Stmt.While) next).body);
+      } else if (next instanceof Stmt.If) {
+        inside = Arrays.asList(((Stmt.If) next).thenBranch, ((Stmt.If) next).elseBranch);
+      } else {
+        continue;
+      }
+      for (int i = inside.size() - 1; i >= 0; i--) {
+        if (inside.get(i) != null) pending.push(inside.get(i));
+      }
+    }
+  }
+
+  // Pushes the parts of one node, last first, mirroring the visitors below.
+  private void expand(Object node, Deque<Object> pending) {
+    if (node instanceof RiverRef) {
+      RiverRef ref = (RiverRef) node;
+      if (ref.wholeGroup) {
+        push(pending, ref.token.lexeme, "[*]");
+      } else if (!ref.isIndexed()) {
+        push(pending, ref.token.lexeme);
+      } else {
+        push(pending, ref.token.lexeme, "[", ref.index, "]");
+      }
+    } else if (node instanceof Stmt.River) {
+      Stmt.River stmt = (Stmt.River) node;
+      if (stmt.flowRate != null) {
+        push(pending, "(river ", stmt.name, " = ", stmt.flowRate, ")");
+      } else {
+        push(pending, "(river ", stmt.name, ")");
+      }
+    } else if (node instanceof Stmt.Group) {
+      Stmt.Group stmt = (Stmt.Group) node;
+      if (stmt.flowRate != null) {
+        push(pending, "(river ", stmt.name.lexeme, "[", stmt.first, "..", stmt.end, "]", " = ",
+            stmt.flowRate, ")");
+      } else {
+        push(pending, "(river ", stmt.name.lexeme, "[", stmt.first, "..", stmt.end, "]", ")");
+      }
+    } else if (node instanceof Stmt.Output) {
+      push(pending, "(output ", ((Stmt.Output) node).riverName, ")");
+    } else if (node instanceof Stmt.Combine) {
+      Stmt.Combine stmt = (Stmt.Combine) node;
+      pending.push(")");
+      for (int i = stmt.sources.size() - 1; i >= 0; i--) {
+        pending.push(stmt.sources.get(i));
+        if (i > 0) pending.push(" + ");
+      }
+      push(pending, "(combine ", stmt.name, " = ");
+    } else if (node instanceof Stmt.Flow) {
+      Stmt.Flow stmt = (Stmt.Flow) node;
+      push(pending, "(flow ", stmt.from, " -> ", stmt.to, ")");
+    } else if (node instanceof Stmt.Dam) {
+      Stmt.Dam stmt = (Stmt.Dam) node;
+      if (stmt.mode.type == TokenType.ADJUST && stmt.adjustment != null) {
+        push(pending, "(dam ", stmt.riverName, " adjust ", stmt.adjustment, ")");
+      } else {
+        push(pending, "(dam ", stmt.riverName, " ", stmt.mode.lexeme, ")");
+      }
+    } else if (node instanceof Stmt.Block) {
+      pending.push(")");
+      pushAll(pending, ((Stmt.Block) node).statements, "");
+      pending.push("(block ");
+    } else if (node instanceof Stmt.Expression) {
+      push(pending, "(; ", ((Stmt.Expression) node).expression, ")");
+    } else if (node instanceof Stmt.Print) {
+      push(pending, "(print ", ((Stmt.Print) node).expression, ")");
+    } else if (node instanceof Stmt.Var) {
+      Stmt.Var stmt = (Stmt.Var) node;
+      if (stmt.initializer != null) {
+        push(pending, "(var ", stmt.name.lexeme, " ", stmt.initializer, ")");
+      } else {
+        push(pending, "(var ", stmt.name.lexeme, ")");
+      }
+    } else if (node instanceof Stmt.If) {
+      Stmt.If stmt = (Stmt.If) node;
+      if (stmt.elseBranch == null) {
+        push(pending, "(if ", stmt.condition, " ", stmt.thenBranch, ")");
+      } else {
+        push(pending, "(if-else ", stmt.condition, " ", stmt.thenBranch, " ", stmt.elseBranch, ")");
+      }
+    } else if (node instanceof Stmt.While) {
+      Stmt.While stmt = (Stmt.While) node;
+      push(pending, "(while ", stmt.condition, " ", stmt.body, ")");
+    } else if (node instanceof Stmt.Function) {
+      Stmt.Function stmt = (Stmt.Function) node;
+      pending.push(")");
+      pushAll(pending, stmt.body, "");
+      pending.push(") ");
+      for (int i = stmt.params.size() - 1; i >= 0; i--) {
+        pending.push(stmt.params.get(i).lexeme);
+        if (i > 0) pending.push(" ");
+      }
+      push(pending, "(", stmt.pure ? "pure fun " : "fun ", stmt.name.lexeme, "(");
+    } else if (node instanceof Stmt.Import) {
+      push(pending, "(import ", ((Stmt.Import) node).path.lexeme, ")");
+    } else if (node instanceof Stmt.Return) {
+      Stmt.Return stmt = (Stmt.Return) node;
+      if (stmt.value == null) {
+        pending.push("(return)");
+      } else {
+        push(pending, "(return ", stmt.value, ")");
+      }
+    } else if (node instanceof Expr.Binary) {
+      Expr.Binary expr = (Expr.Binary) node;
+      push(pending, "(", expr.operator.lexeme, " ", expr.left, " ", expr.right, ")");
+    } else if (node instanceof Expr.Logical) {
+      Expr.Logical expr = (Expr.Logical) node;
+      push(pending, "(", expr.operator.lexeme, " ", expr.left, " ", expr.right, ")");
+    } else if (node instanceof Expr.Grouping) {
+      push(pending, "(group ", ((Expr.Grouping) node).expression, ")");
+    } else if (node instanceof Expr.Literal) {
+      Object value = ((Expr.Literal) node).value;
+      pending.push(value == null ? "nil" : value.toString());
+    } else if (node instanceof Expr.Unary) {
+      Expr.Unary expr = (Expr.Unary) node;
+      push(pending, "(", expr.operator.lexeme, " ", expr.right, ")");
+    } else if (node instanceof Expr.Variable) {
+      pending.push(((Expr.Variable) node).name.lexeme);
+    } else if (node instanceof Expr.Assign) {
+      Expr.Assign expr = (Expr.Assign) node;
+      push(pending, "(= ", expr.name.lexeme, " ", expr.value, ")");
+    } else if (node instanceof Expr.Index) {
+      Expr.Index expr = (Expr.Index) node;
+      push(pending, expr.name.lexeme, "[", expr.index, "]");
+    } else if (node instanceof Expr.Call) {
+      Expr.Call expr = (Expr.Call) node;
+      // Each argument is preceded by one space, as in parenthesize2.
+      pending.push(")");
+      pushAll(pending, expr.arguments, " ");
+      push(pending, "(call ", expr.callee);
+    } else if (node instanceof Expr.Sum) {
+      push(pending, "(sum ", ((Expr.Sum) node).group.lexeme, ")");
+    } else if (node instanceof Expr.Hoisted) {
+      push(pending, "(hoisted ", ((Expr.Hoisted) node).expression, ")");
+    } else {
+      throw new IllegalArgumentException("Cannot print " + node.getClass().getName() + ".");
+    }
+  }
+
+  private static void push(Deque<Object> pending, Object... parts) {
+    for (int i = parts.length - 1; i >= 0; i--) {
+      pending.push(parts[i] == null ? MISSING : parts[i]);
+    }
+  }
+
+  // Pushes each element preceded by the separator.
+  private static void pushAll(Deque<Object> pending, List<?> parts, String separator) {
+    for (int i = parts.size() - 1; i >= 0; i--) {
+      Object part = parts.get(i);
+      pending.push(part == null ? MISSING : part);
+      if (!separator.isEmpty()) pending.push(separator);
+    }
+  }
+
+  // The line a statement starts on, or -1 if it has no token to tell.
+  static int line(Stmt stmt) {
+    while (stmt != null) {
+      if (stmt instanceof Stmt.River) return ((Stmt.River) stmt).name.token.line;
+      if (stmt instanceof Stmt.Group) return ((Stmt.Group) stmt).name.line;
+      if (stmt instanceof Stmt.Output) return ((Stmt.Output) stmt).riverName.token.line;
+      if (stmt instanceof Stmt.Combine) return ((Stmt.Combine) stmt).name.token.line;
+      if (stmt instanceof Stmt.Flow) return ((Stmt.Flow) stmt).from.token.line;
+      if (stmt instanceof Stmt.Dam) return ((Stmt.Dam) stmt).riverName.token.line;
+      if (stmt instanceof Stmt.Var) return ((Stmt.Var) stmt).name.line;
+      if (stmt instanceof Stmt.Function) return ((Stmt.Function) stmt).name.line;
+      if (stmt instanceof Stmt.Return) return ((Stmt.Return) stmt).keyword.line;
+      if (stmt instanceof Stmt.Import) return ((Stmt.Import) stmt).keyword.line;
+      if (stmt instanceof Stmt.Expression) return line(((Stmt.Expression) stmt).expression);
+      if (stmt instanceof Stmt.Print) return line(((Stmt.Print) stmt).expression);
+      if (stmt instanceof Stmt.If) return line(((Stmt.If) stmt).condition);
+      if (stmt instanceof Stmt.While) return line(((Stmt.While) stmt).condition);
+      if (!(stmt instanceof Stmt.Block) || ((Stmt.Block) stmt).statements.isEmpty()) return -1;
+      stmt = ((Stmt.Block) stmt).statements.get(0);
+    }
+    return -1;
+  }
+
+  // The line of an expression's leftmost token, or -1 for a lone literal.
+  static int line(Expr expr) {
+    while (expr != null) {
+      if (expr instanceof Expr.Binary) {
+        expr = ((Expr.Binary) expr).left;
+      } else if (expr instanceof Expr.Logical) {
+        expr = ((Expr.Logical) expr).left;
+      } else if (expr instanceof Expr.Grouping) {
+        expr = ((Expr.Grouping) expr).expression;
+      } else if (expr instanceof Expr.Hoisted) {
+        expr = ((Expr.Hoisted) expr).expression;
+      } else if (expr instanceof Expr.Call) {
+        expr = ((Expr.Call) expr).callee;
+      } else if (expr instanceof Expr.Unary) {
+        return ((Expr.Unary) expr).operator.line;
+      } else if (expr instanceof Expr.Variable) {
+        return ((Expr.Variable) expr).name.line;
+      } else if (expr instanceof Expr.Assign) {
+        return ((Expr.Assign) expr).name.line;
+      } else if (expr instanceof Expr.Index) {
+        return ((Expr.Index) expr).name.line;
+      } else if (expr instanceof Expr.Sum) {
+        return ((Expr.Sum) expr).group.line;
+      } else {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private String print(RiverRef ref) {
+    if (ref.wholeGroup) return ref.token.lexeme + "[*]";
+    if (!ref.isIndexed()) return ref.token.lexeme;
+    return ref.token.lexeme + "[" + print(ref.index) + "]";
+  }
+
   @Override
   public String visitRiverStmt(Stmt.River stmt) {
     if (stmt.flowRate != null) {
-      return "(river " + stmt.name.lexeme + " = " + print(stmt.flowRate) + ")";
+      return "(river " + print(stmt.name) + " = " + print(stmt.flowRate) + ")";
+    }
+    return "(river " + print(stmt.name) + ")";
+  }
+
+  @Override
+  public String visitGroupStmt(Stmt.Group stmt) {
+    String range = stmt.name.lexeme + "[" + print(stmt.first) + ".." + print(stmt.end) + "]";
+    if (stmt.flowRate != null) {
+      return "(river " + range + " = " + print(stmt.flowRate) + ")";
     }
-    return "(river " + stmt.name.lexeme + ")";
+    return "(river " + range + ")";
   }
 
   @Override
   public String visitOutputStmt(Stmt.Output stmt) {
-    return "(output " + stmt.riverName.lexeme + ")";
+    return "(output " + print(stmt.riverName) + ")";
   }
 
   @Override
   public String visitCombineStmt(Stmt.Combine stmt) {
     StringBuilder builder = new StringBuilder();
-    builder.append("(combine ").append(stmt.name.lexeme).append(" = ");
+    builder.append("(combine ").append(print(stmt.name)).append(" = ");
     for (int i = 0; i < stmt.sources.size(); i++) {
       if (i > 0) builder.append(" + ");
-      builder.append(stmt.sources.get(i).lexeme);
+      builder.append(print(stmt.sources.get(i)));
     }
     builder.append(")");
     return builder.toString();
@@ -36,15 +317,15 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
 
   @Override
   public String visitFlowStmt(Stmt.Flow stmt) {
-    return "(flow " + stmt.from.lexeme + " -> " + stmt.to.lexeme + ")";
+    return "(flow " + print(stmt.from) + " -> " + print(stmt.to) + ")";
   }
 
   @Override
   public String visitDamStmt(Stmt.Dam stmt) {
     if (stmt.mode.type == TokenType.ADJUST && stmt.adjustment != null) {
-      return "(dam " + stmt.riverName.lexeme + " adjust " + print(stmt.adjustment) + ")";
+      return "(dam " + print(stmt.riverName) + " adjust " + print(stmt.adjustment) + ")";
     }
-    return "(dam " + stmt.riverName.lexeme + " " + stmt.mode.lexeme + ")";
+    return "(dam " + print(stmt.riverName) + " " + stmt.mode.lexeme + ")";
   }
 
   @Override
@@ -76,6 +357,46 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     return parenthesize("var " + stmt.name.lexeme);
   }
 
+  @Override
+  public String visitIfStmt(Stmt.If stmt) {
+    if (stmt.elseBranch == null) {
+      return parenthesize2("if", stmt.condition, stmt.thenBranch);
+    }
+    return parenthesize2("if-else", stmt.condition, stmt.thenBranch, stmt.elseBranch);
+  }
+
+  @Override
+  public String visitWhileStmt(Stmt.While stmt) {
+    return parenthesize2("while", stmt.condition, stmt.body);
+  }
+
+  @Override
+  public String visitFunctionStmt(Stmt.Function stmt) {
+    StringBuilder builder = new StringBuilder();
+    builder.append("(").append(stmt.pure ? "pure fun " : "fun ").append(stmt.name.lexeme).append("(");
+    for (Token param : stmt.params) {
+      if (param != stmt.params.get(0)) builder.append(" ");
+      builder.append(param.lexeme);
+    }
+    builder.append(") ");
+    for (Stmt body : stmt.body) {
+      builder.append(body.accept(this));
+    }
+    builder.append(")");
+    return builder.toString();
+  }
+
+  @Override
+  public String visitImportStmt(Stmt.Import stmt) {
+    return "(import " + stmt.path.lexeme + ")";
+  }
+
+  @Override
+  public String visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) return "(return)";
+    return parenthesize("return", stmt.value);
+  }
+
   @Override
   public String visitBinaryExpr(Expr.Binary expr) {
     return parenthesize(expr.operator.lexeme, expr.left, expr.right);
@@ -102,6 +423,36 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     return expr.name.lexeme;
   }
 
+  @Override
+  public String visitAssignExpr(Expr.Assign expr) {
+    return parenthesize2("=", expr.name.lexeme, expr.value);
+  }
+
+  @Override
+  public String visitLogicalExpr(Expr.Logical expr) {
+    return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+  }
+
+  @Override
+  public String visitIndexExpr(Expr.Index expr) {
+    return expr.name.lexeme + "[" + print(expr.index) + "]";
+  }
+
+  @Override
+  public String visitCallExpr(Expr.Call expr) {
+    return parenthesize2("call", expr.callee, expr.arguments);
+  }
+
+  @Override
+  public String visitSumExpr(Expr.Sum expr) {
+    return "(sum " + expr.group.lexeme + ")";
+  }
+
+  @Override
+  public String visitHoistedExpr(Expr.Hoisted expr) {
+    return parenthesize("hoisted", expr.expression);
+  }
+
   private String parenthesize(String name, Expr... exprs) {
     StringBuilder builder = new StringBuilder();
 
@@ -127,6 +478,11 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
 
   private void transform(StringBuilder builder, Object[] parts) {
     for (Object part : parts) {
+      // A list's elements are parts of their own, one space apiece.
+      if (part instanceof List) {
+        transform(builder, ((List) part).toArray());
+        continue;
+      }
       builder.append(" ");
       if (part instanceof Expr) {
         builder.append(((Expr)part).accept(this));
@@ -134,8 +490,6 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
         builder.append(((Stmt)part).accept(this));
       } else if (part instanceof Token) {
         builder.append(((Token) part).lexeme);
-      } else if (part instanceof List) {
-        transform(builder, ((List) part).toArray());
       } else {
         builder.append(part);
       }
@@ -0,0 +1,285 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Runs many (file, rainfall) scenarios in one JVM. Each job is read, parsed
+// and interpreted on a bounded pool in its own Interpreter; failures are
+// reported per job and folded into a single exit code at the end.
+//
+//   jlox --batch <directory|manifest> [--out <dir> | --combined <file>]
+//                [--threads <n>] [--rainfall <mm>]
+//
+// A directory runs every .wflow file in it at the default rainfall. A
+// manifest lists one "path rainfall" pair per line (paths relative to the
+// manifest, '#' starts a comment). With --out each job writes
+// <dir>/<n>-<file>-<rainfall>mm.out, n being its 1-based position in the
+// input, so the same file listed twice or same-named files from different
+// directories never share an output file. Otherwise all results go, in
+// input order, to the --combined file or to standard output.
+final class BatchRunner {
+    static final int EXIT_OK = 0;
+    static final int EXIT_USAGE = 64;
+    static final int EXIT_COMPILE = 65;
+    static final int EXIT_NO_INPUT = 66;
+    static final int EXIT_RUNTIME = 70;
+
+    private static final class Job {
+        final Path path;
+        final double rainfallMm;
+
+        Job(Path path, double rainfallMm) {
+            this.path = path;
+            this.rainfallMm = rainfallMm;
+        }
+    }
+
+    private static final class Result {
+        final Job job;
+        final int exitCode;
+        final byte[] output;
+        final List<String> errors;
+
+        Result(Job job, int exitCode, byte[] output, List<String> errors) {
+            this.job = job;
+            this.exitCode = exitCode;
+            this.output = output;
+            this.errors = errors;
+        }
+    }
+
+    private final Path outputDir;
+    private final PrintStream combined;
+    private final int threads;
+
+    BatchRunner(Path outputDir, PrintStream combined, int threads) {
+        this.outputDir = outputDir;
+        this.combined = combined;
+        this.threads = threads;
+    }
+
+    // Returns the exit code for the whole batch: 0 if every job succeeded,
+    // otherwise the most severe per-job code.
+    static int main(String[] args) throws IOException {
+        if (args.length < 1) return usage();
+        Path input = Paths.get(args[0]);
+        Path outputDir = null;
+        Path combinedFile = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double rainfallMm = 1.0;
+        try {
+            for (int i = 1; i < args.length; i += 2) {
+                if (i + 1 >= args.length) return usage();
+                switch (args[i]) {
+                    case "--out":
+                        outputDir = Paths.get(args[i + 1]);
+                        break;
+                    case "--combined":
+                        combinedFile = Paths.get(args[i + 1]);
+                        break;
+                    case "--threads":
+                        threads = Math.max(1, Integer.parseInt(args[i + 1]));
+                        break;
+                    case "--rainfall":
+                        rainfallMm = Double.parseDouble(args[i + 1]);
+                        break;
+                    default:
+                        return usage();
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return usage();
+        }
+        if (outputDir != null && combinedFile != null) return usage();
+
+        List<Job> jobs;
+        try {
+            jobs = Files.isDirectory(input)
+                    ? directoryJobs(input, rainfallMm)
+                    : manifestJobs(input);
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("Cannot read batch input " + input + ": " + ex.getMessage());
+            return EXIT_NO_INPUT;
+        }
+        if (combinedFile == null) {
+            return new BatchRunner(outputDir, System.out, threads).run(jobs);
+        }
+        try (PrintStream combined = new PrintStream(
+                Files.newOutputStream(combinedFile), false, StandardCharsets.UTF_8)) {
+            return new BatchRunner(null, combined, threads).run(jobs);
+        }
+    }
+
+    private static int usage() {
+        System.out.println("Usage: jlox --batch <directory|manifest> [--out <dir> | --combined <file>] "
+                + "[--threads <n>] [--rainfall <mm>]");
+        return EXIT_USAGE;
+    }
+
+    private static List<Job> directoryJobs(Path dir, double rainfallMm) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.toString().endsWith(".wflow"))
+                    .sorted()
+                    .map(path -> new Job(path, rainfallMm))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static List<Job> manifestJobs(Path manifest) throws IOException {
+        Path base = manifest.toAbsolutePath().getParent();
+        List<Job> jobs = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) line = line.substring(0, comment);
+            line = line.trim();
+            if (line.isEmpty()) continue;
+
+            String[] fields = line.split("[\\s,]+");
+            if (fields.length > 2) {
+                throw new IllegalArgumentException("line " + lineNumber + ": expected 'path [rainfall]'");
+            }
+            double rainfallMm = 1.0;
+            if (fields.length == 2) {
+                try {
+                    rainfallMm = Double.parseDouble(fields[1]);
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("line " + lineNumber + ": rainfall must be a number");
+                }
+            }
+            jobs.add(new Job(base.resolve(fields[0]), rainfallMm));
+        }
+        return jobs;
+    }
+
+    int run(List<Job> jobs) throws IOException {
+        if (outputDir != null) Files.createDirectories(outputDir);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> pending = new ArrayList<>(jobs.size());
+        for (Job job : jobs) {
+            pending.add(pool.submit(() -> runJob(job)));
+        }
+
+        int exitCode = EXIT_OK;
+        int failures = 0;
+        try {
+            for (int i = 0; i < pending.size(); i++) {
+                Result result;
+                try {
+                    result = pending.get(i).get();
+                } catch (ExecutionException ex) {
+                    result = crashed(jobs.get(i), new byte[0], ex.getCause());
+                }
+                write(result, outputName(i + 1, jobs.size(), result.job));
+                if (result.exitCode != EXIT_OK) {
+                    failures++;
+                    for (String error : result.errors) {
+                        System.err.println(result.job.path + ": " + error);
+                    }
+                    exitCode = Math.max(exitCode, result.exitCode);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            exitCode = EXIT_RUNTIME;
+        } finally {
+            pool.shutdownNow();
+        }
+
+        System.err.printf("%d of %d programs succeeded.%n", jobs.size() - failures, jobs.size());
+        return exitCode;
+    }
+
+    // A job that crashes the interpreter, say by recursing without end, fails
+    // on its own like a runtime error; the rest of the batch carries on.
+    private Result runJob(Job job) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, false, StandardCharsets.UTF_8);
+        try {
+            return runJob(job, buffer, out);
+        } catch (RuntimeException | StackOverflowError error) {
+            out.flush();
+            return crashed(job, buffer.toByteArray(), error);
+        }
+    }
+
+    private Result runJob(Job job, ByteArrayOutputStream buffer, PrintStream out) {
+        String name = job.path.toString();
+        String source;
+        try {
+            source = new String(Files.readAllBytes(job.path), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            return new Result(job, EXIT_NO_INPUT, new byte[0], List.of("cannot read: " + ex.getMessage()));
+        }
+
+        Program program;
+        try {
+            program = Program.compileOrThrow(name, source);
+        } catch (CompileError error) {
+            return new Result(job, EXIT_COMPILE, new byte[0], error.errors);
+        }
+
+        Interpreter interpreter = program.newEvaluation(job.rainfallMm, out);
+        try {
+            interpreter.run(program.statements);
+            interpreter.printRiverSummary();
+        } catch (RuntimeError error) {
+            out.flush();
+            return new Result(job, EXIT_RUNTIME, buffer.toByteArray(),
+                    List.of(error.getMessage() + " [line " + error.token.line + "]"));
+        }
+        out.flush();
+        return new Result(job, EXIT_OK, buffer.toByteArray(), List.of());
+    }
+
+    // The error goes at the end of the job's output as well as to stderr, so
+    // an output file shows why it stops short.
+    private static Result crashed(Job job, byte[] partial, Throwable error) {
+        String message = crashMessage(error);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        buffer.writeBytes(partial);
+        buffer.writeBytes(("error: " + message + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        return new Result(job, EXIT_RUNTIME, buffer.toByteArray(), List.of(message));
+    }
+
+    // The file name under --out, e.g. "03-example1.wflow-2.5mm.out"; numbers
+    // are zero-padded so a directory listing keeps the input order.
+    private static String outputName(int number, int jobs, Job job) {
+        String digits = String.valueOf(number);
+        String padding = "0".repeat(String.valueOf(jobs).length() - digits.length());
+        return padding + digits + "-" + job.path.getFileName() + "-" + job.rainfallMm + "mm.out";
+    }
+
+    static String crashMessage(Throwable error) {
+        return error instanceof StackOverflowError
+                ? "stack overflow; is there a recursion that never ends?"
+                : "crashed: " + error;
+    }
+
+    private void write(Result result, String outputName) throws IOException {
+        if (result.exitCode == EXIT_NO_INPUT) return;
+        if (outputDir != null) {
+            Path target = outputDir.resolve(outputName);
+            Files.write(target, result.output);
+            return;
+        }
+        PrintStream out = combined;
+        out.printf("### %s (%.1f mm)%n", result.job.path, result.job.rainfallMm);
+        out.write(result.output);
+        out.println();
+        out.flush();
+    }
+}
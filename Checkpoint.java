@@ -0,0 +1,280 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Binary snapshot of an interpreter's rivers and global variables, so a
+// large base network can be executed once and later scenarios only run
+// their own statements on top of it.
+//
+// Layout (big-endian): magic "WFCK", version, rainfall, river count, then
+// per river its name and intrinsic/incoming/dam values, then group count and
+// per group its name, first index, size and its intrinsic, incoming and dam
+// arrays, then global count and per global its name, a type tag and the
+// value. A function's value is its first line and its source text.
+final class Checkpoint {
+    private static final int MAGIC = 0x5746434B; // "WFCK"
+    private static final int VERSION = 3;
+
+    private static final byte TAG_NIL = 0;
+    private static final byte TAG_NUMBER = 1;
+    private static final byte TAG_STRING = 2;
+    private static final byte TAG_BOOLEAN = 3;
+    private static final byte TAG_FUNCTION = 4;
+
+    private Checkpoint() {}
+
+    // A state that cannot be saved whole fails the save and leaves no file
+    // behind, rather than one that breaks the scenarios resumed from it.
+    static void save(Interpreter interpreter, Program program, String source, Path path) throws IOException {
+        try {
+            write(interpreter, program, source, path);
+        } catch (IOException ex) {
+            Files.deleteIfExists(path);
+            throw ex;
+        }
+    }
+
+    private static void write(Interpreter interpreter, Program program, String source, Path path)
+            throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(interpreter.rainfall());
+
+            RiverStore rivers = interpreter.riverStore();
+            out.writeInt(rivers.riverCount());
+            rivers.forEachRiver((name, state) -> {
+                try {
+                    writeString(out, name);
+                    out.writeDouble(state.intrinsicFlow);
+                    out.writeDouble(state.incomingFlow);
+                    out.writeDouble(state.damFactor);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+
+            int[] groupCount = new int[1];
+            rivers.forEachGroup((name, group) -> groupCount[0]++);
+            out.writeInt(groupCount[0]);
+            rivers.forEachGroup((name, group) -> {
+                try {
+                    writeString(out, name);
+                    out.writeLong(group.base);
+                    out.writeInt(group.size());
+                    writeDoubles(out, group.intrinsicFlow);
+                    writeDoubles(out, group.incomingFlow);
+                    writeDoubles(out, group.damFactor);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+
+            Map<String, Object> globals = interpreter.globals().values();
+            FunctionSources functions = null;
+            out.writeInt(globals.size());
+            for (Map.Entry<String, Object> entry : globals.entrySet()) {
+                writeString(out, entry.getKey());
+                if (entry.getValue() instanceof LoxFunction) {
+                    if (functions == null) functions = new FunctionSources(interpreter, program, source);
+                    functions.write(out, entry.getKey(), (LoxFunction) entry.getValue());
+                } else {
+                    writeValue(out, entry.getKey(), entry.getValue());
+                }
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    // Maps the file read-only and rebuilds an interpreter from it. The
+    // restored interpreter keeps the rainfall the checkpoint was taken with,
+    // since every base river was already computed from it.
+    static Interpreter restore(Path path, PrintStream out, String programName) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+                throw new IOException(path + " is not a waterflow checkpoint.");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version + ".");
+            }
+
+            Interpreter interpreter = new Interpreter(buffer.getDouble(), out, programName);
+            RiverStore rivers = interpreter.riverStore();
+            int riverCount = buffer.getInt();
+            for (int i = 0; i < riverCount; i++) {
+                RiverState state = rivers.mutable(readString(buffer));
+                state.intrinsicFlow = buffer.getDouble();
+                state.incomingFlow = buffer.getDouble();
+                state.damFactor = buffer.getDouble();
+            }
+
+            int groupCount = buffer.getInt();
+            for (int i = 0; i < groupCount; i++) {
+                String name = readString(buffer);
+                long base = buffer.getLong();
+                RiverGroup group = rivers.declareGroup(name, base, buffer.getInt());
+                readDoubles(buffer, group.intrinsicFlow);
+                readDoubles(buffer, group.incomingFlow);
+                readDoubles(buffer, group.damFactor);
+            }
+
+            Environment globals = interpreter.globals();
+            int globalCount = buffer.getInt();
+            for (int i = 0; i < globalCount; i++) {
+                String name = readString(buffer);
+                byte tag = buffer.get();
+                if (tag == TAG_FUNCTION) {
+                    interpreter.defineGlobalFunction(name, readFunction(buffer, path));
+                } else {
+                    globals.define(name, readValue(tag, buffer));
+                }
+            }
+            return interpreter;
+        } catch (java.nio.BufferUnderflowException ex) {
+            throw new IOException(path + " is truncated.", ex);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, String name, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NIL);
+        } else if (value instanceof Double) {
+            out.writeByte(TAG_NUMBER);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TAG_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else {
+            throw new IOException("Cannot checkpoint the value of '" + name + "'.");
+        }
+    }
+
+    private static Object readValue(byte tag, ByteBuffer buffer) throws IOException {
+        switch (tag) {
+            case TAG_NIL:
+                return null;
+            case TAG_NUMBER:
+                return buffer.getDouble();
+            case TAG_STRING:
+                return readString(buffer);
+            case TAG_BOOLEAN:
+                return buffer.get() != 0;
+            default:
+                throw new IOException("Corrupt checkpoint value tag " + tag + ".");
+        }
+    }
+
+    private static Stmt.Function readFunction(ByteBuffer buffer, Path path) throws IOException {
+        int firstLine = buffer.getInt();
+        String text = readString(buffer);
+        List<String> errors = new ArrayList<>();
+        List<Stmt> statements = Lox.collectingErrors(errors,
+                () -> new Parser(new Scanner(text, firstLine).scanTokens()).parse());
+        if (!errors.isEmpty() || statements.size() != 1 || !(statements.get(0) instanceof Stmt.Function)) {
+            throw new IOException(path + " holds a corrupt function.");
+        }
+        return (Stmt.Function) statements.get(0);
+    }
+
+    // Only functions declared at the top level of the checkpointed program
+    // are saved, as their text from "fun" to the closing brace. A closure
+    // over local variables or a function from an imported module has no such
+    // text, so it fails the save.
+    private static final class FunctionSources {
+        private final Environment globals;
+        private final Set<Stmt.Function> declared = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final List<Token> tokens;
+
+        FunctionSources(Interpreter interpreter, Program program, String source) {
+            this.globals = interpreter.globals();
+            for (Stmt statement : program.statements) {
+                if (statement instanceof Stmt.Function) declared.add((Stmt.Function) statement);
+            }
+            this.tokens = new Scanner(source).scanTokens();
+        }
+
+        void write(DataOutputStream out, String name, LoxFunction function) throws IOException {
+            Stmt.Function declaration = function.declaration();
+            if (function.closure() != globals || !declared.contains(declaration)) {
+                throw new IOException("Cannot checkpoint the function '" + name
+                        + "': only functions declared at the top level of the program can be saved.");
+            }
+            for (int i = 0; i + 1 < tokens.size(); i++) {
+                Token candidate = tokens.get(i + 1);
+                if (tokens.get(i).type == TokenType.FUN && candidate.line == declaration.name.line
+                        && candidate.lexeme.equals(declaration.name.lexeme)) {
+                    out.writeByte(TAG_FUNCTION);
+                    out.writeInt(tokens.get(i).line);
+                    writeString(out, text(i));
+                    return;
+                }
+            }
+            throw new IOException("Cannot find the source of the function '" + name + "'.");
+        }
+
+        // The tokens from "fun" to the brace closing the body, with each one
+        // kept on its own line so restored functions report the same lines.
+        private String text(int start) {
+            StringBuilder text = new StringBuilder();
+            int line = tokens.get(start).line;
+            int depth = 0;
+            for (int i = start; i < tokens.size(); i++) {
+                Token token = tokens.get(i);
+                if (token.type == TokenType.EOF) break;
+                int tokenLine = token.line - (int) token.lexeme.chars().filter(c -> c == '\n').count();
+                if (text.length() > 0) text.append(tokenLine > line ? "\n".repeat(tokenLine - line) : " ");
+                text.append(token.lexeme);
+                line = token.line;
+                if (token.type == TokenType.LEFT_BRACE) depth++;
+                if (token.type == TokenType.RIGHT_BRACE && --depth == 0) break;
+            }
+            return text.toString();
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    // Bulk copy straight out of the mapping.
+    private static void readDoubles(ByteBuffer buffer, double[] values) {
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + values.length * Double.BYTES);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
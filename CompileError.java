@@ -0,0 +1,12 @@
+import java.util.List;
+
+class CompileError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final List<String> errors;
+
+    CompileError(List<String> errors) {
+        super(String.join("\n", errors));
+        this.errors = errors;
+    }
+}
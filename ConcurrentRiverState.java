@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// The incoming flow of one river while flows into it are applied from
+// several threads at once. Contributions collect here without locks and are
+// added to the river's ordinary RiverState in one step when settled, so the
+// RiverState itself is only ever written by one thread.
+//
+// STRIPED spreads the additions over padded cells, one compare-and-set on
+// the double's bits each, chosen by thread so that a confluence fed from
+// every thread does not have them all retrying on one word. It is the
+// fastest mode, but which cell a flow lands in depends on scheduling, so the
+// last bits of the total can differ from run to run.
+//
+// PAIRWISE gives every contribution a fixed slot, its place in row order
+// among this river's incoming flows, and settles by summing the slots
+// pairwise in that order. The result is the same on every run and for any
+// number of threads, and the rounding error grows with log n rather than n.
+final class ConcurrentRiverState {
+    enum Reduction { STRIPED, PAIRWISE }
+
+    // Longs per 64-byte cache line, so neighbouring cells never share one.
+    private static final int PAD = 8;
+    private static final int BLOCK = 8;
+
+    private final RiverState state;
+    private final Reduction reduction;
+    private final AtomicLongArray cells;
+    private final int stripeMask;
+    private final double[] slots;
+
+    // Stripes must be a power of two; contributions is the number of slots
+    // PAIRWISE needs.
+    ConcurrentRiverState(RiverState state, Reduction reduction, int contributions, int stripes) {
+        this.state = state;
+        this.reduction = reduction;
+        if (reduction == Reduction.STRIPED) {
+            this.cells = new AtomicLongArray(stripes * PAD);
+            this.stripeMask = stripes - 1;
+            this.slots = null;
+        } else {
+            this.cells = null;
+            this.stripeMask = 0;
+            this.slots = new double[contributions];
+        }
+    }
+
+    // Safe to call from any thread. Each position must be used at most once.
+    void addIncomingFlow(int position, double flow) {
+        if (reduction == Reduction.PAIRWISE) {
+            slots[position] = flow;
+            return;
+        }
+        int stripe = stripe();
+        for (;;) {
+            int index = stripe * PAD;
+            long bits = cells.get(index);
+            long sum = Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + flow);
+            if (cells.compareAndSet(index, bits, sum)) return;
+            // Lost a race: move over rather than queue up behind the winner.
+            stripe = (stripe + 1) & stripeMask;
+        }
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+        return hash & stripeMask;
+    }
+
+    // Adds everything collected to the river. Call once, after every thread
+    // adding to this river is done and has been joined.
+    void settle() {
+        double total = 0.0;
+        if (reduction == Reduction.PAIRWISE) {
+            total = pairwiseSum(slots, 0, slots.length);
+        } else {
+            for (int i = 0; i <= stripeMask; i++) {
+                total += Double.longBitsToDouble(cells.get(i * PAD));
+            }
+        }
+        state.addIncomingFlow(total);
+    }
+
+    // Sums values[from, to) by halves down to short runs added in order.
+    static double pairwiseSum(double[] values, int from, int to) {
+        int n = to - from;
+        if (n <= BLOCK) {
+            double sum = 0.0;
+            for (int i = from; i < to; i++) {
+                sum += values[i];
+            }
+            return sum;
+        }
+        int middle = from + n / 2;
+        return pairwiseSum(values, from, middle) + pairwiseSum(values, middle, to);
+    }
+}
@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Loads a river network straight from a CSV edge list with one
+// "from,to,base_flow,dam_factor" row per line, skipping the scanner and
+// parser entirely. A file of rows
+//
+//     a,b,10,0.5
+//     b,c,,
+//
+// behaves exactly like the program
+//
+//     river a = 10;      // one per row with a base_flow, in row order
+//     dam a adjust 0.5;  // one per row with a dam_factor, in row order
+//     a -> b;            // one per row with a 'to', in row order
+//     b -> c;
+//
+// so, as in hand-written programs, rows should list upstream reaches before
+// the reaches they flow into. An optional header row is skipped. River names
+// must be identifiers and numbers finite decimals, as in a program, so a row
+// that no program could express fails with its line number.
+//
+// The file is memory-mapped in windows and parsed in one pass straight from
+// the mapped bytes, collecting the declarations, dams and flows into arrays
+// that are then applied in that order. That costs a name reference and a
+// number or two per row, much less than the rows' text. Each distinct river
+// name becomes a String once; numbers are parsed without building strings
+// on the common path.
+final class EdgeListLoader {
+    private static final long WINDOW = 1L << 28;
+
+    interface RowHandler {
+        void row(int line, String from, String to, double baseFlow, double damFactor) throws IOException;
+    }
+
+    private final Path path;
+    private final NameTable names = new NameTable();
+
+    // Fields of the row being parsed, as offsets into the current window.
+    private final int[] fieldStart = new int[4];
+    private final int[] fieldEnd = new int[4];
+
+    EdgeListLoader(Path path) {
+        this.path = path;
+    }
+
+    static void load(Path path, Interpreter interpreter) throws IOException {
+        load(path, interpreter, 1, ConcurrentRiverState.Reduction.PAIRWISE);
+    }
+
+    // The flows are collected first and applied level by level by
+    // ParallelFlows, which gives the same flows as the row-by-row order up to
+    // rounding in how fan-in is summed. One thread takes the same path, so
+    // with the pairwise reduction every thread count agrees to the bit.
+    static void load(Path path, Interpreter interpreter, int threads,
+                     ConcurrentRiverState.Reduction reduction) throws IOException {
+        Rows rows = new Rows();
+        new EdgeListLoader(path).scan(rows);
+        for (int i = 0; i < rows.declared; i++) {
+            interpreter.declareRiver(rows.declaredNames[i], rows.baseFlows[i]);
+        }
+        for (int i = 0; i < rows.dammed; i++) {
+            interpreter.setDamFactor(rows.dammedNames[i], rows.damFactors[i],
+                    new Token(TokenType.IDENTIFIER, rows.dammedNames[i], null, rows.damLines[i]));
+        }
+        ParallelFlows.apply(interpreter.riverStore(), rows.sources, rows.targets, rows.flows,
+                threads, reduction);
+    }
+
+    // The rows' declarations, dams and flows, each kept in row order.
+    private static final class Rows implements RowHandler {
+        String[] declaredNames = new String[1024];
+        double[] baseFlows = new double[1024];
+        int declared = 0;
+        String[] dammedNames = new String[256];
+        double[] damFactors = new double[256];
+        int[] damLines = new int[256];
+        int dammed = 0;
+        String[] sources = new String[1024];
+        String[] targets = new String[1024];
+        int flows = 0;
+
+        @Override
+        public void row(int line, String from, String to, double baseFlow, double damFactor) {
+            if (!Double.isNaN(baseFlow)) {
+                if (declared == declaredNames.length) {
+                    declaredNames = Arrays.copyOf(declaredNames, declared * 2);
+                    baseFlows = Arrays.copyOf(baseFlows, declared * 2);
+                }
+                declaredNames[declared] = from;
+                baseFlows[declared++] = baseFlow;
+            }
+            if (!Double.isNaN(damFactor)) {
+                if (dammed == dammedNames.length) {
+                    dammedNames = Arrays.copyOf(dammedNames, dammed * 2);
+                    damFactors = Arrays.copyOf(damFactors, dammed * 2);
+                    damLines = Arrays.copyOf(damLines, dammed * 2);
+                }
+                dammedNames[dammed] = from;
+                damFactors[dammed] = damFactor;
+                damLines[dammed++] = line;
+            }
+            if (to != null) {
+                if (flows == sources.length) {
+                    sources = Arrays.copyOf(sources, flows * 2);
+                    targets = Arrays.copyOf(targets, flows * 2);
+                }
+                sources[flows] = from;
+                targets[flows++] = to;
+            }
+        }
+    }
+
+    // Calls the handler for every data row, in file order. Each scan maps
+    // the file afresh; names are decoded once per loader across scans.
+    void scan(RowHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            int line = 1;
+            while (position < size) {
+                long length = Math.min(WINDOW, size - position);
+                boolean last = position + length == size;
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+                int offset = 0;
+                int limit = (int) length;
+                while (offset < limit) {
+                    int end = offset;
+                    while (end < limit && window.get(end) != '\n') end++;
+                    if (end == limit && !last) break;
+                    row(window, offset, end, line++, handler);
+                    offset = end + 1;
+                }
+                if (offset == 0 && !last) {
+                    throw new IOException(path + ": line " + line + " is longer than the mapping window.");
+                }
+                position += Math.min(offset, limit);
+            }
+        }
+    }
+
+    private void row(MappedByteBuffer buffer, int start, int end, int line, RowHandler handler)
+            throws IOException {
+        if (end > start && buffer.get(end - 1) == '\r') end--;
+
+        int fields = 0;
+        int fieldBegin = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || buffer.get(i) == ',') {
+                if (fields == 4) {
+                    throw new IOException(path + ": line " + line + " has more than four fields.");
+                }
+                fieldStart[fields] = fieldBegin;
+                fieldEnd[fields] = i;
+                trim(buffer, fields);
+                fields++;
+                fieldBegin = i + 1;
+            }
+        }
+        if (fields == 1 && fieldStart[0] == fieldEnd[0]) return;
+        if (line == 1 && isHeader(buffer)) return;
+
+        String from = name(buffer, 0, line);
+        if (from == null) {
+            throw new IOException(path + ": line " + line + " has no 'from' river.");
+        }
+        String to = fields > 1 ? name(buffer, 1, line) : null;
+        double baseFlow = fields > 2 ? number(buffer, 2, line) : Double.NaN;
+        double damFactor = fields > 3 ? number(buffer, 3, line) : Double.NaN;
+        handler.row(line, from, to, baseFlow, damFactor);
+    }
+
+    private void trim(MappedByteBuffer buffer, int field) {
+        int s = fieldStart[field];
+        int e = fieldEnd[field];
+        while (s < e && isSpace(buffer.get(s))) s++;
+        while (e > s && isSpace(buffer.get(e - 1))) e--;
+        if (e - s >= 2 && buffer.get(s) == '"' && buffer.get(e - 1) == '"') {
+            s++;
+            e--;
+        }
+        fieldStart[field] = s;
+        fieldEnd[field] = e;
+    }
+
+    private boolean isHeader(MappedByteBuffer buffer) {
+        return fieldEnd[0] - fieldStart[0] == 4
+                && buffer.get(fieldStart[0]) == 'f'
+                && buffer.get(fieldStart[0] + 1) == 'r'
+                && buffer.get(fieldStart[0] + 2) == 'o'
+                && buffer.get(fieldStart[0] + 3) == 'm';
+    }
+
+    private String name(MappedByteBuffer buffer, int field, int line) throws IOException {
+        if (fieldStart[field] == fieldEnd[field]) return null;
+        String name = names.intern(buffer, fieldStart[field], fieldEnd[field]);
+        if (name == null) {
+            byte[] bytes = new byte[fieldEnd[field] - fieldStart[field]];
+            buffer.get(fieldStart[field], bytes);
+            throw new IOException(path + ": line " + line + ": '"
+                    + new String(bytes, StandardCharsets.UTF_8) + "' is not a river name.");
+        }
+        return name;
+    }
+
+    // Empty fields read as NaN. Plain decimals of up to 15 significant
+    // digits take Clinger's fast path, which is exact: the digits fit in a
+    // double and so does the power of ten, so one division rounds correctly.
+    // Other decimals, with an exponent say, fall back to Double.parseDouble;
+    // the words it also accepts, "NaN" and "Infinity", and hex or type
+    // suffixes are refused, as are values that overflow.
+    private double number(MappedByteBuffer buffer, int field, int line) throws IOException {
+        int s = fieldStart[field];
+        int e = fieldEnd[field];
+        if (s == e) return Double.NaN;
+
+        boolean negative = false;
+        int i = s;
+        if (buffer.get(i) == '-' || buffer.get(i) == '+') {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean seenDot = false;
+        boolean seenDigit = false;
+        boolean simple = i < e;
+        for (; i < e; i++) {
+            byte c = buffer.get(i);
+            if (c >= '0' && c <= '9') {
+                seenDigit = true;
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) digits++;
+                if (seenDot) scale++;
+            } else if (c == '.' && !seenDot) {
+                seenDot = true;
+            } else {
+                simple = false;
+                break;
+            }
+        }
+        // "." or "+." has no digits at all; parseDouble rejects it below.
+        if (simple && seenDigit && digits <= 15 && scale <= 22) {
+            double value = scale == 0 ? mantissa : mantissa / POWERS_OF_TEN[scale];
+            return negative ? -value : value;
+        }
+
+        byte[] bytes = new byte[e - s];
+        buffer.get(s, bytes);
+        double value = Double.NaN;
+        if (isDecimal(bytes)) {
+            try {
+                value = Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException ex) {
+                // Reported below.
+            }
+        }
+        if (!Double.isFinite(value)) {
+            throw new IOException(path + ": line " + line + ": '"
+                    + new String(bytes, StandardCharsets.UTF_8) + "' is not a finite number.");
+        }
+        return value;
+    }
+
+    private static boolean isDecimal(byte[] bytes) {
+        for (byte c : bytes) {
+            if (!(c >= '0' && c <= '9') && c != '.' && c != '-' && c != '+' && c != 'e' && c != 'E') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+        }
+    }
+
+    // Open-addressing table from the bytes of a name to its String, so a
+    // name repeated across millions of rows is only decoded and checked
+    // once. A name that is not an identifier is not added; intern returns
+    // null for it.
+    private static final class NameTable {
+        private byte[][] keys = new byte[1024][];
+        private String[] values = new String[1024];
+        private int size = 0;
+
+        String intern(MappedByteBuffer buffer, int start, int end) {
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + buffer.get(i);
+            }
+            int mask = keys.length - 1;
+            int slot = mix(hash) & mask;
+            while (keys[slot] != null) {
+                if (matches(keys[slot], buffer, start, end)) return values[slot];
+                slot = (slot + 1) & mask;
+            }
+
+            byte[] key = new byte[end - start];
+            buffer.get(start, key);
+            String value = new String(key, StandardCharsets.UTF_8);
+            if (!Scanner.isIdentifier(value)) return null;
+            keys[slot] = key;
+            values[slot] = value;
+            if (++size * 2 > keys.length) grow();
+            return value;
+        }
+
+        private static boolean matches(byte[] key, MappedByteBuffer buffer, int start, int end) {
+            if (key.length != end - start) return false;
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buffer.get(start + i)) return false;
+            }
+            return true;
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new String[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                byte[] key = oldKeys[i];
+                if (key == null) continue;
+                int hash = 1;
+                for (byte b : key) hash = 31 * hash + b;
+                int slot = mix(hash) & mask;
+                while (keys[slot] != null) slot = (slot + 1) & mask;
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+            Arrays.fill(oldKeys, null);
+        }
+    }
+}
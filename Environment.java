@@ -3,20 +3,42 @@ import java.util.Map;
 
 public class Environment {
     final Environment enclosing;
+    // Set on the scope holding a call's parameters.
+    private final boolean function;
     private final Map<String, Object> values = new HashMap<>();
 
     Environment() {
-        enclosing = null;
+        this(null, false);
     }
 
     Environment(Environment enclosing) {
+        this(enclosing, false);
+    }
+
+    Environment(Environment enclosing, boolean function) {
         this.enclosing = enclosing;
+        this.function = function;
+    }
+
+    Map<String, Object> values() {
+        return values;
     }
 
     void define(String name, Object value) {
         values.put(name, value);
     }
 
+    // Whether the name is a parameter or local of the innermost function
+    // call; always false outside functions.
+    boolean definesInFunction(String name) {
+        boolean bound = false;
+        for (Environment scope = this; scope != null; scope = scope.enclosing) {
+            bound |= scope.values.containsKey(name);
+            if (scope.function) return bound;
+        }
+        return false;
+    }
+
     Object get(Token name) {
         if (values.containsKey(name.lexeme)) {
             return values.get(name.lexeme);
@@ -1,3 +1,5 @@
+import java.util.List;
+
 public abstract class Expr {
   public interface Visitor<R> {
     R visitBinaryExpr(Binary expr);
@@ -5,6 +7,12 @@ public abstract class Expr {
     R visitLiteralExpr(Literal expr);
     R visitUnaryExpr(Unary expr);
     R visitVariableExpr(Variable expr);
+    R visitAssignExpr(Assign expr);
+    R visitLogicalExpr(Logical expr);
+    R visitIndexExpr(Index expr);
+    R visitHoistedExpr(Hoisted expr);
+    R visitSumExpr(Sum expr);
+    R visitCallExpr(Call expr);
   }
 
   public static class Binary extends Expr {
@@ -78,5 +86,99 @@ public abstract class Expr {
     public final Token name;
   }
 
+  public static class Assign extends Expr {
+    public Assign(Token name, Expr value) {
+      this.name = name;
+      this.value = value;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitAssignExpr(this);
+    }
+
+    public final Token name;
+    public final Expr value;
+  }
+
+  public static class Logical extends Expr {
+    public Logical(Expr left, Token operator, Expr right) {
+      this.left = left;
+      this.operator = operator;
+      this.right = right;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitLogicalExpr(this);
+    }
+
+    public final Expr left;
+    public final Token operator;
+    public final Expr right;
+  }
+
+  public static class Index extends Expr {
+    public Index(Token name, Expr index) {
+      this.name = name;
+      this.index = index;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIndexExpr(this);
+    }
+
+    public final Token name;
+    public final Expr index;
+  }
+
+  public static class Hoisted extends Expr {
+    public Hoisted(int depth, int slot, Expr expression) {
+      this.depth = depth;
+      this.slot = slot;
+      this.expression = expression;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitHoistedExpr(this);
+    }
+
+    public final int depth;
+    public final int slot;
+    public final Expr expression;
+  }
+
+  public static class Sum extends Expr {
+    public Sum(Token group) {
+      this.group = group;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitSumExpr(this);
+    }
+
+    public final Token group;
+  }
+
+  public static class Call extends Expr {
+    public Call(Expr callee, Token paren, List<Expr> arguments) {
+      this.callee = callee;
+      this.paren = paren;
+      this.arguments = arguments;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitCallExpr(this);
+    }
+
+    public final Expr callee;
+    public final Token paren;
+    public final List<Expr> arguments;
+  }
+
   public abstract <R> R accept(Visitor<R> visitor);
-}
\ No newline at end of file
+}
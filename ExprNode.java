@@ -0,0 +1,137 @@
+import java.util.List;
+
+public sealed interface ExprNode {
+  enum Kind { BINARY, GROUPING, LITERAL, UNARY, VARIABLE, ASSIGN, LOGICAL, INDEX, HOISTED, SUM, CALL }
+
+  Kind kind();
+
+  record Binary(ExprNode left, Token operator, ExprNode right) implements ExprNode {
+    @Override
+    public Kind kind() {
+      return Kind.BINARY;
+    }
+  }
+
+  record Grouping(ExprNode expression) implements ExprNode {
+    @Override
+    public Kind kind() {
+      return Kind.GROUPING;
+    }
+  }
+
+  record Literal(Object value) implements ExprNode {
+    @Override
+    public Kind kind() {
+      return Kind.LITERAL;
+    }
+  }
+
+  record Unary(Token operator, ExprNode right) implements ExprNode {
+    @Override
+    public Kind kind() {
+      return Kind.UNARY;
+    }
+  }
+
+  record Variable(Token name) implements ExprNode {
+    @Override
+    public Kind kind() {
+      return Kind.VARIABLE;
+    }
+  }
+
+  record Assign(Token name, ExprNode value) implements ExprNode {
+    @Override
+    public Kind kind() {
+      return Kind.ASSIGN;
+    }
+  }
+
+  record Logical(ExprNode left, Token operator, ExprNode right) implements ExprNode {
+    @Override
+    public Kind kind() {
+      return Kind.LOGICAL;
+    }
+  }
+
+  record Index(Token name, ExprNode index) implements ExprNode {
+    @Override
+    public Kind kind() {
+      return Kind.INDEX;
+    }
+  }
+
+  record Hoisted(int depth, int slot, ExprNode expression) implements ExprNode {
+    @Override
+    public Kind kind() {
+      return Kind.HOISTED;
+    }
+  }
+
+  record Sum(Token group) implements ExprNode {
+    @Override
+    public Kind kind() {
+      return Kind.SUM;
+    }
+  }
+
+  record Call(ExprNode callee, Token paren, List<ExprNode> arguments) implements ExprNode {
+    @Override
+    public Kind kind() {
+      return Kind.CALL;
+    }
+  }
+
+  static ExprNode of(Expr expr) {
+    if (expr == null) return null;
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary node = (Expr.Binary) expr;
+      return new Binary(ExprNode.of(node.left), node.operator, ExprNode.of(node.right));
+    }
+    if (expr instanceof Expr.Grouping) {
+      Expr.Grouping node = (Expr.Grouping) expr;
+      return new Grouping(ExprNode.of(node.expression));
+    }
+    if (expr instanceof Expr.Literal) {
+      Expr.Literal node = (Expr.Literal) expr;
+      return new Literal(node.value);
+    }
+    if (expr instanceof Expr.Unary) {
+      Expr.Unary node = (Expr.Unary) expr;
+      return new Unary(node.operator, ExprNode.of(node.right));
+    }
+    if (expr instanceof Expr.Variable) {
+      Expr.Variable node = (Expr.Variable) expr;
+      return new Variable(node.name);
+    }
+    if (expr instanceof Expr.Assign) {
+      Expr.Assign node = (Expr.Assign) expr;
+      return new Assign(node.name, ExprNode.of(node.value));
+    }
+    if (expr instanceof Expr.Logical) {
+      Expr.Logical node = (Expr.Logical) expr;
+      return new Logical(ExprNode.of(node.left), node.operator, ExprNode.of(node.right));
+    }
+    if (expr instanceof Expr.Index) {
+      Expr.Index node = (Expr.Index) expr;
+      return new Index(node.name, ExprNode.of(node.index));
+    }
+    if (expr instanceof Expr.Hoisted) {
+      Expr.Hoisted node = (Expr.Hoisted) expr;
+      return new Hoisted(node.depth, node.slot, ExprNode.of(node.expression));
+    }
+    if (expr instanceof Expr.Sum) {
+      Expr.Sum node = (Expr.Sum) expr;
+      return new Sum(node.group);
+    }
+    if (expr instanceof Expr.Call) {
+      Expr.Call node = (Expr.Call) expr;
+      return new Call(ExprNode.of(node.callee), node.paren, ExprNode.of(node.arguments));
+    }
+    throw new IllegalArgumentException("Unknown node " + expr.getClass().getName());
+  }
+
+  static List<ExprNode> of(List<Expr> exprs) {
+    return exprs.stream().map(ExprNode::of).toList();
+  }
+}
@@ -0,0 +1,150 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// A program held in flat primitive arrays instead of Stmt/Expr objects, for
+// huge straight-line network programs whose object trees would dominate the
+// heap. Node n is kind[n], op[n] (a TokenType ordinal: the operator, the dam
+// mode or the literal's type), two operands a[n] and b[n], and the line it
+// came from. Operands are child node indices, name ids, or indices into the
+// number, string and list pools, depending on the kind:
+//
+//   RIVER       a: name       b: flow node, or -1
+//   OUTPUT      a: name
+//   COMBINE     a: name       b: list of source names
+//   FLOW        a: from name  b: to name
+//   DAM         a: name       b: adjustment node, or -1   op: mode
+//   VAR         a: name       b: initializer node, or -1
+//   PRINT       a: node
+//   EXPRESSION  a: node
+//   LITERAL     a: pool index (NUMBER, STRING), unused otherwise  op: type
+//   VARIABLE    a: name
+//   ASSIGN      a: name       b: value node
+//   UNARY       a: operand                                 op: operator
+//   BINARY      a: left       b: right                     op: operator
+//   LOGICAL     a: left       b: right                     op: operator
+//
+// Parentheses leave no node. A list is its length followed by its elements.
+// Built by Parser.parseFlat(); run by FlatInterpreter.
+final class FlatAst {
+  static final byte RIVER = 0;
+  static final byte OUTPUT = 1;
+  static final byte COMBINE = 2;
+  static final byte FLOW = 3;
+  static final byte DAM = 4;
+  static final byte VAR = 5;
+  static final byte PRINT = 6;
+  static final byte EXPRESSION = 7;
+  static final byte LITERAL = 8;
+  static final byte VARIABLE = 9;
+  static final byte ASSIGN = 10;
+  static final byte UNARY = 11;
+  static final byte BINARY = 12;
+  static final byte LOGICAL = 13;
+
+  private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+  byte[] kind = new byte[1024];
+  byte[] op = new byte[1024];
+  int[] a = new int[1024];
+  int[] b = new int[1024];
+  int[] line = new int[1024];
+  int nodes = 0;
+
+  // Top-level statements in program order.
+  int[] statements = new int[1024];
+  int statementCount = 0;
+
+  String[] names = new String[256];
+  int nameCount = 0;
+  double[] numbers = new double[256];
+  int numberCount = 0;
+  String[] strings = new String[16];
+  int stringCount = 0;
+  int[] lists = new int[256];
+  int listLength = 0;
+
+  // Only needed while building; dropped by trim().
+  private Map<String, Integer> nameIds = new HashMap<>();
+
+  int node(byte kind, TokenType op, int a, int b, int line) {
+    if (nodes == this.kind.length) {
+      int capacity = nodes * 2;
+      this.kind = Arrays.copyOf(this.kind, capacity);
+      this.op = Arrays.copyOf(this.op, capacity);
+      this.a = Arrays.copyOf(this.a, capacity);
+      this.b = Arrays.copyOf(this.b, capacity);
+      this.line = Arrays.copyOf(this.line, capacity);
+    }
+    this.kind[nodes] = kind;
+    this.op[nodes] = op == null ? -1 : (byte) op.ordinal();
+    this.a[nodes] = a;
+    this.b[nodes] = b;
+    this.line[nodes] = line;
+    return nodes++;
+  }
+
+  void statement(int node) {
+    if (statementCount == statements.length) {
+      statements = Arrays.copyOf(statements, statementCount * 2);
+    }
+    statements[statementCount++] = node;
+  }
+
+  int name(String name) {
+    Integer id = nameIds.get(name);
+    if (id != null) return id;
+    if (nameCount == names.length) names = Arrays.copyOf(names, nameCount * 2);
+    names[nameCount] = name;
+    nameIds.put(name, nameCount);
+    return nameCount++;
+  }
+
+  int number(double value) {
+    if (numberCount == numbers.length) numbers = Arrays.copyOf(numbers, numberCount * 2);
+    numbers[numberCount] = value;
+    return numberCount++;
+  }
+
+  int string(String value) {
+    if (stringCount == strings.length) strings = Arrays.copyOf(strings, stringCount * 2);
+    strings[stringCount] = value;
+    return stringCount++;
+  }
+
+  // Starts a list; add() its elements, then it is complete.
+  int list() {
+    add(0);
+    return listLength - 1;
+  }
+
+  void add(int list, int element) {
+    add(element);
+    lists[list]++;
+  }
+
+  private void add(int value) {
+    if (listLength == lists.length) lists = Arrays.copyOf(lists, listLength * 2);
+    lists[listLength++] = value;
+  }
+
+  static TokenType operator(byte op) {
+    return TOKEN_TYPES[op];
+  }
+
+  // Cuts every array down to its contents once parsing is done.
+  FlatAst trim() {
+    kind = Arrays.copyOf(kind, nodes);
+    op = Arrays.copyOf(op, nodes);
+    a = Arrays.copyOf(a, nodes);
+    b = Arrays.copyOf(b, nodes);
+    line = Arrays.copyOf(line, nodes);
+    statements = Arrays.copyOf(statements, statementCount);
+    names = Arrays.copyOf(names, nameCount);
+    numbers = Arrays.copyOf(numbers, numberCount);
+    strings = Arrays.copyOf(strings, stringCount);
+    lists = Arrays.copyOf(lists, listLength);
+    nameIds = null;
+    return this;
+  }
+}
@@ -0,0 +1,148 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Parses and runs one program as a Stmt/Expr tree and as a FlatAst, and
+// prints for each the heap the parsed program keeps alive, the collections
+// and collector time spent parsing and running it, and the wall time.
+// --generate writes the straight-line network the README figures were
+// measured on: the rivers chained by flows, a dam on every tenth and a
+// combine every thousandth.
+//
+//     java FlatAstBenchmark <script> [rainfallMm]
+//     java FlatAstBenchmark --generate <rivers> <script>
+final class FlatAstBenchmark {
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("--generate")) {
+            generate(Integer.parseInt(args[1]), Paths.get(args[2]));
+            return;
+        }
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java FlatAstBenchmark <script> [rainfallMm]");
+            System.err.println("       java FlatAstBenchmark --generate <rivers> <script>");
+            System.exit(64);
+        }
+        String path = args[0];
+        double rainfall = args.length == 2 ? Double.parseDouble(args[1]) : 1.0;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+        Sample tree = new Sample();
+        Program program = Program.compile(path,
+                new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8));
+        if (Lox.hadError) System.exit(65);
+        tree.parsed();
+        Interpreter interpreter = program.newEvaluation(rainfall, discard);
+        interpreter.run(program.statements);
+        tree.ran();
+        tree.retained();
+        report("tree", tree, program.statements.size(), interpreter.riverStore().size());
+        program = null;
+        interpreter = null;
+
+        Sample flat = new Sample();
+        FlatAst ast = new Parser(new Scanner(MappedSource.map(Paths.get(path)))).parseFlat();
+        if (ast == null) {
+            System.out.println("flat: the program uses statements the flat form does not cover.");
+            return;
+        }
+        flat.parsed();
+        FlatInterpreter flatInterpreter = new FlatInterpreter(ast, rainfall, discard, path);
+        flatInterpreter.run();
+        flat.ran();
+        flat.retained();
+        report("flat", flat, ast.statements.length, flatInterpreter.interpreter().riverStore().size());
+    }
+
+    private static void generate(int rivers, Path path) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            out.write("var scale = 1.5;\n");
+            for (int i = 0; i < rivers; i++) {
+                out.write("river r" + i + " = " + (i * 37 % 100) + " * scale + rainfall;\n");
+            }
+            for (int i = 0; i + 1 < rivers; i++) {
+                out.write("r" + i + " -> r" + (i + 1) + ";\n");
+            }
+            for (int i = 0; i < rivers; i += 10) {
+                out.write("dam r" + i + " adjust 0.5;\n");
+            }
+            for (int i = 0; i + 2 < rivers; i += 1000) {
+                out.write("combine c" + i + " = r" + i + " + r" + (i + 1) + " + r" + (i + 2) + ";\n");
+            }
+            out.write("output r" + (rivers - 1) + ";\n");
+        }
+    }
+
+    private static void report(String name, Sample sample, int statements, int rivers) {
+        System.out.printf("%s: %d statements, %d rivers, %.1f MB retained, "
+                + "%d collections (%d ms), parse %d ms, run %d ms%n",
+                name, statements, rivers, sample.retained / 1048576.0, sample.collections,
+                sample.collectionMillis, sample.parseMillis, sample.runMillis);
+    }
+
+    // Heap, collector and clock readings around one parse and run.
+    private static final class Sample {
+        private final long baseline;
+        private final long startCollections;
+        private final long startCollectionMillis;
+        private final long start;
+        private long parsedAt;
+        long retained;
+        long collections;
+        long collectionMillis;
+        long parseMillis;
+        long runMillis;
+
+        Sample() {
+            baseline = usedAfterGc();
+            startCollections = collections();
+            startCollectionMillis = collectionMillis();
+            start = System.nanoTime();
+        }
+
+        void parsed() {
+            parsedAt = System.nanoTime();
+            parseMillis = (parsedAt - start) / 1_000_000;
+        }
+
+        void ran() {
+            runMillis = (System.nanoTime() - parsedAt) / 1_000_000;
+            collections = collections() - startCollections;
+            collectionMillis = collectionMillis() - startCollectionMillis;
+        }
+
+        // Call while the parsed program and its interpreter are still
+        // referenced. Includes the river store, the same size for both.
+        void retained() {
+            retained = usedAfterGc() - baseline;
+        }
+
+        private static long usedAfterGc() {
+            Runtime runtime = Runtime.getRuntime();
+            for (int i = 0; i < 3; i++) System.gc();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+
+        private static long collections() {
+            long total = 0;
+            for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                total += Math.max(0, bean.getCollectionCount());
+            }
+            return total;
+        }
+
+        private static long collectionMillis() {
+            long total = 0;
+            for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                total += Math.max(0, bean.getCollectionTime());
+            }
+            return total;
+        }
+    }
+}
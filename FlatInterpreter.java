@@ -0,0 +1,248 @@
+import java.io.PrintStream;
+
+// Runs a FlatAst by walking its arrays by index, with the same results,
+// output and errors as the tree Interpreter on the same program. Variables
+// and rivers are looked up by name id: each river's state is fetched from
+// the store once and kept, so after the first touch a statement costs a few
+// array reads. The store, summary and rainfall are those of an ordinary
+// Interpreter.
+final class FlatInterpreter {
+    private final FlatAst ast;
+    private final Interpreter interpreter;
+    private final RiverStore rivers;
+    private final PrintStream out;
+    private final String programName;
+
+    private final Object[] values;
+    private final boolean[] defined;
+    private final RiverState[] states;
+
+    FlatInterpreter(FlatAst ast, double rainfallMm, PrintStream out, String programName) {
+        this.ast = ast;
+        this.interpreter = new Interpreter(rainfallMm, out, programName, ast.names.length);
+        this.rivers = interpreter.riverStore();
+        this.out = out;
+        this.programName = programName;
+        this.values = new Object[ast.names.length];
+        this.defined = new boolean[ast.names.length];
+        this.states = new RiverState[ast.names.length];
+        for (int id = 0; id < ast.names.length; id++) {
+            if (ast.names[id].equals("rainfall")) {
+                values[id] = rainfallMm;
+                defined[id] = true;
+            }
+        }
+    }
+
+    void interpret() {
+        try {
+            run();
+            interpreter.printRiverSummary();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    void run() {
+        FlowEvents.Interpret event = new FlowEvents.Interpret();
+        event.begin();
+        try {
+            for (int statement : ast.statements) {
+                execute(statement);
+            }
+        } finally {
+            event.program = programName;
+            event.statements = ast.statements.length;
+            event.rivers = rivers.size();
+            event.rainfall = interpreter.rainfall();
+            event.commit();
+        }
+    }
+
+    Interpreter interpreter() {
+        return interpreter;
+    }
+
+    private void execute(int node) {
+        int a = ast.a[node];
+        int b = ast.b[node];
+        switch (ast.kind[node]) {
+            case FlatAst.RIVER: {
+                double flow = b < 0 ? interpreter.rainfall() : requireNumber(b, node);
+                river(a).setIntrinsicFlow(flow);
+                break;
+            }
+            case FlatAst.OUTPUT:
+                out.printf("%s flow: %.2f L/s%n", ast.names[a], river(a).currentFlow());
+                break;
+            case FlatAst.COMBINE: {
+                double total = 0.0;
+                int count = ast.lists[b];
+                for (int i = 1; i <= count; i++) {
+                    total += river(ast.lists[b + i]).currentFlow();
+                }
+                river(a).setIntrinsicFlow(total);
+                break;
+            }
+            case FlatAst.FLOW: {
+                double flow = river(a).currentFlow();
+                river(b).addIncomingFlow(flow);
+                break;
+            }
+            case FlatAst.DAM:
+                dam(node, river(a), b);
+                break;
+            case FlatAst.VAR:
+                values[a] = b < 0 ? null : evaluate(b);
+                defined[a] = true;
+                break;
+            case FlatAst.PRINT:
+                out.println(Interpreter.stringify(evaluate(a)));
+                break;
+            case FlatAst.EXPRESSION:
+                evaluate(a);
+                break;
+            default:
+                throw new IllegalStateException("Not a statement: node " + node + ".");
+        }
+    }
+
+    private void dam(int node, RiverState river, int adjustment) {
+        double factor;
+        switch (FlatAst.operator(ast.op[node])) {
+            case OPEN:
+                factor = 1.0;
+                break;
+            case CLOSE:
+                factor = 0.0;
+                break;
+            default:
+                factor = requireNumber(adjustment, node);
+                break;
+        }
+        if (factor < 0) {
+            throw new RuntimeError(token(node, "adjust"), "Dam factor cannot be negative.");
+        }
+        river.setDamFactor(factor);
+    }
+
+    // The river's state, created on first touch like RiverStore.mutable.
+    private RiverState river(int name) {
+        RiverState state = states[name];
+        if (state == null) {
+            state = rivers.mutable(ast.names[name]);
+            states[name] = state;
+        }
+        return state;
+    }
+
+    private Object evaluate(int node) {
+        int a = ast.a[node];
+        int b = ast.b[node];
+        switch (ast.kind[node]) {
+            case FlatAst.LITERAL:
+                switch (FlatAst.operator(ast.op[node])) {
+                    case NUMBER: return ast.numbers[a];
+                    case STRING: return ast.strings[a];
+                    case TRUE: return true;
+                    case FALSE: return false;
+                    default: return null;
+                }
+            case FlatAst.VARIABLE:
+                if (states[a] != null) return states[a].currentFlow();
+                if (!defined[a]) {
+                    throw new RuntimeError(token(node, ast.names[a]), "Undefined variable '" + ast.names[a] + "'.");
+                }
+                return values[a];
+            case FlatAst.ASSIGN: {
+                Object value = evaluate(b);
+                if (!defined[a]) {
+                    throw new RuntimeError(token(node, ast.names[a]), "Undefined variable '" + ast.names[a] + "'.");
+                }
+                values[a] = value;
+                return value;
+            }
+            case FlatAst.UNARY: {
+                Object right = evaluate(a);
+                if (FlatAst.operator(ast.op[node]) == TokenType.MINUS) {
+                    Interpreter.checkNumberOperand(token(node, "-"), right);
+                    return -(double) right;
+                }
+                return !Interpreter.isTruthy(right);
+            }
+            case FlatAst.LOGICAL: {
+                Object left = evaluate(a);
+                if (FlatAst.operator(ast.op[node]) == TokenType.OR) {
+                    if (Interpreter.isTruthy(left)) return left;
+                } else {
+                    if (!Interpreter.isTruthy(left)) return left;
+                }
+                return evaluate(b);
+            }
+            case FlatAst.BINARY:
+                return binary(node, evaluate(a), evaluate(b));
+            default:
+                throw new IllegalStateException("Not an expression: node " + node + ".");
+        }
+    }
+
+    private Object binary(int node, Object left, Object right) {
+        TokenType operator = FlatAst.operator(ast.op[node]);
+        switch (operator) {
+            case GREATER:
+                checkNumbers(node, left, right);
+                return (double) left > (double) right;
+            case GREATER_EQUAL:
+                checkNumbers(node, left, right);
+                return (double) left >= (double) right;
+            case LESS:
+                checkNumbers(node, left, right);
+                return (double) left < (double) right;
+            case LESS_EQUAL:
+                checkNumbers(node, left, right);
+                return (double) left <= (double) right;
+            case MINUS:
+                checkNumbers(node, left, right);
+                return (double) left - (double) right;
+            case PLUS:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double) left + (double) right;
+                }
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + (String) right;
+                }
+                throw new RuntimeError(token(node, "+"), "Operands must be two numbers or two strings.");
+            case SLASH:
+                checkNumbers(node, left, right);
+                return (double) left / (double) right;
+            case STAR:
+                checkNumbers(node, left, right);
+                return (double) left * (double) right;
+            case BANG_EQUAL:
+                return !Interpreter.isEqual(left, right);
+            case EQUAL_EQUAL:
+                return Interpreter.isEqual(left, right);
+            default:
+                return null;
+        }
+    }
+
+    private void checkNumbers(int node, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(token(node, FlatAst.operator(ast.op[node]).name()), "Operands must be numbers.");
+    }
+
+    private double requireNumber(int expr, int context) {
+        Object value = evaluate(expr);
+        if (!(value instanceof Double)) {
+            throw new RuntimeError(token(context, ""), "Expected number.");
+        }
+        return (double) value;
+    }
+
+    // Errors only report a token's line, so the flat form keeps no tokens
+    // and makes one up when it needs to.
+    private Token token(int node, String lexeme) {
+        return new Token(TokenType.IDENTIFIER, lexeme, null, ast.line[node]);
+    }
+}
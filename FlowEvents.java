@@ -0,0 +1,109 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Custom Flight Recorder events for each phase of a run. Every event is
+// created, begun and committed around the phase it measures; when recording
+// is off commit() is a no-op that the JIT folds away, so they stay in the
+// hot path permanently. Record them with
+//
+//     java -XX:StartFlightRecording=filename=run.jfr Lox program.wflow
+//     jfr print --categories Waterflow run.jfr
+//
+// or open run.jfr in JDK Mission Control.
+final class FlowEvents {
+    private FlowEvents() {}
+
+    @Name("waterflow.Load")
+    @Label("Program Load")
+    @Category({"Waterflow", "Phases"})
+    @Description("Reading a .wflow program from disk")
+    static class Load extends Event {
+        @Label("Program")
+        String program;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("waterflow.Scan")
+    @Label("Scan")
+    @Category({"Waterflow", "Phases"})
+    @Description("Scanner.scanTokens")
+    static class Scan extends Event {
+        @Label("Program")
+        String program;
+
+        @Label("Characters")
+        long characters;
+
+        @Label("Tokens")
+        int tokens;
+    }
+
+    @Name("waterflow.Parse")
+    @Label("Parse")
+    @Category({"Waterflow", "Phases"})
+    @Description("Parser.parse")
+    static class Parse extends Event {
+        @Label("Program")
+        String program;
+
+        @Label("Tokens")
+        int tokens;
+
+        @Label("Statements")
+        int statements;
+    }
+
+    @Name("waterflow.Interpret")
+    @Label("Interpret")
+    @Category({"Waterflow", "Phases"})
+    @Description("Running the program's statements, not including the final summary")
+    static class Interpret extends Event {
+        @Label("Program")
+        String program;
+
+        @Label("Statements")
+        int statements;
+
+        @Label("Rivers")
+        int rivers;
+
+        @Label("Rainfall (mm)")
+        double rainfall;
+    }
+
+    @Name("waterflow.RuntimeError")
+    @Label("Runtime Error")
+    @Category({"Waterflow", "Errors"})
+    static class RuntimeFailure extends Event {
+        @Label("Program")
+        String program;
+
+        @Label("Message")
+        String message;
+
+        @Label("Line")
+        int line;
+    }
+
+    @Name("waterflow.Flush")
+    @Label("Result Flush")
+    @Category({"Waterflow", "Phases"})
+    @Description("Writing the final river summary")
+    static class Flush extends Event {
+        @Label("Program")
+        String program;
+
+        @Label("Rivers")
+        int rivers;
+
+        @Label("Rainfall (mm)")
+        double rainfall;
+    }
+}
@@ -0,0 +1,455 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Cuts a program down to the statements that can affect chosen rivers.
+//
+// The statements are walked backwards keeping the set of names whose value
+// is still needed: rivers and variables by name, and "reach[]" for every
+// river of an indexed family or group. A statement is kept when it writes a
+// needed name, and then everything it reads becomes needed too. Since the
+// slice keeps statements in their original order, the kept ones see exactly
+// the values they saw in the full program.
+//
+// Nothing is ever removed from the needed set: a river declaration resets
+// the flow but not the dam factor, and keeping a few extra statements is
+// always safe. Loop bodies are sliced again until the needed set stops
+// growing, since a read late in the body can depend on a write early in the
+// next iteration. A call brings in everything the called function's body
+// reads and writes. Statements whose effects cannot be known, such as
+// imports and calls of anything but a named function, are kept together
+// with everything before them.
+//
+// Output and print statements are dropped unless they name a target; a
+// dropped statement can no longer raise its runtime error. Nor can a dropped
+// output create the river it reads, so if no kept statement mentions that
+// river, a later bare name that would have read its flow reads the variable
+// of that name instead (or is undefined).
+final class FlowSlice {
+  private final Set<String> targets;
+  private final boolean keepOutputs;
+  private final Set<String> needed = new HashSet<>();
+  private final Map<String, List<Stmt.Function>> functions = new HashMap<>();
+  private boolean needAll = false;
+
+  private FlowSlice(Set<String> targets, boolean keepOutputs) {
+    this.targets = targets;
+    this.keepOutputs = keepOutputs;
+    for (String target : targets) {
+      int bracket = target.indexOf('[');
+      needed.add(bracket < 0 ? target : target.substring(0, bracket) + "[]");
+    }
+  }
+
+  // The statements needed to compute the final flows of the target rivers
+  // (plain names such as "lake" or members such as "reach[3]").
+  static List<Stmt> slice(List<Stmt> statements, Set<String> targets) {
+    FlowSlice slice = new FlowSlice(targets, false);
+    slice.collectFunctions(statements);
+    return slice.list(statements);
+  }
+
+  // The statements needed by the program's own output statements, which
+  // are all kept.
+  static List<Stmt> outputsOnly(List<Stmt> statements) {
+    Set<String> outputs = new LinkedHashSet<>();
+    collectOutputs(statements, outputs);
+    FlowSlice slice = new FlowSlice(outputs, true);
+    slice.collectFunctions(statements);
+    return slice.list(statements);
+  }
+
+  private static void collectOutputs(List<Stmt> statements, Set<String> outputs) {
+    for (Stmt statement : statements) {
+      collectOutputs(statement, outputs);
+    }
+  }
+
+  private static void collectOutputs(Stmt stmt, Set<String> outputs) {
+    if (stmt instanceof Stmt.Output) {
+      outputs.add(key(((Stmt.Output) stmt).riverName));
+    } else if (stmt instanceof Stmt.Block) {
+      collectOutputs(((Stmt.Block) stmt).statements, outputs);
+    } else if (stmt instanceof Stmt.If) {
+      collectOutputs(((Stmt.If) stmt).thenBranch, outputs);
+      if (((Stmt.If) stmt).elseBranch != null) collectOutputs(((Stmt.If) stmt).elseBranch, outputs);
+    } else if (stmt instanceof Stmt.While) {
+      collectOutputs(((Stmt.While) stmt).body, outputs);
+    }
+  }
+
+  // Functions can be called before the statement that declares them runs
+  // again (or from inside each other), so calls are resolved against every
+  // declaration of the name anywhere in the program.
+  private void collectFunctions(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      collectFunctions(statement);
+    }
+  }
+
+  private void collectFunctions(Stmt stmt) {
+    if (stmt instanceof Stmt.Function) {
+      Stmt.Function function = (Stmt.Function) stmt;
+      functions.computeIfAbsent(function.name.lexeme, name -> new ArrayList<>()).add(function);
+      collectFunctions(function.body);
+    } else if (stmt instanceof Stmt.Block) {
+      collectFunctions(((Stmt.Block) stmt).statements);
+    } else if (stmt instanceof Stmt.If) {
+      collectFunctions(((Stmt.If) stmt).thenBranch);
+      if (((Stmt.If) stmt).elseBranch != null) collectFunctions(((Stmt.If) stmt).elseBranch);
+    } else if (stmt instanceof Stmt.While) {
+      collectFunctions(((Stmt.While) stmt).body);
+    }
+  }
+
+  private static String key(RiverRef ref) {
+    return ref.isIndexed() || ref.wholeGroup ? ref.token.lexeme + "[]" : ref.token.lexeme;
+  }
+
+  private List<Stmt> list(List<Stmt> statements) {
+    List<Stmt> kept = new ArrayList<>();
+    for (int i = statements.size() - 1; i >= 0; i--) {
+      Stmt statement = statements.get(i);
+      if (statement == null) continue;
+      if (needAll) {
+        kept.add(statement);
+        continue;
+      }
+      Stmt slice = stmt(statement);
+      if (slice != null) kept.add(slice);
+    }
+    Collections.reverse(kept);
+    return Collections.unmodifiableList(kept);
+  }
+
+  // The part of the statement that must run, or null if none.
+  private Stmt stmt(Stmt stmt) {
+    if (stmt instanceof Stmt.Block) {
+      List<Stmt> body = list(((Stmt.Block) stmt).statements);
+      return body.isEmpty() ? null : new Stmt.Block(body);
+    }
+    if (stmt instanceof Stmt.If) {
+      return ifStmt((Stmt.If) stmt);
+    }
+    if (stmt instanceof Stmt.While) {
+      return whileStmt((Stmt.While) stmt);
+    }
+    if (stmt instanceof Stmt.Function) {
+      return needed.contains(((Stmt.Function) stmt).name.lexeme) ? stmt : null;
+    }
+    if (stmt instanceof Stmt.Output && !keepOutputs) {
+      Stmt.Output output = (Stmt.Output) stmt;
+      if (!printsTarget(output.riverName)) return null;
+    }
+
+    Effects effects = effects(stmt);
+    boolean keep = effects.opaque || stmt instanceof Stmt.Output
+        || !Collections.disjoint(effects.writes, needed);
+    if (!keep) return null;
+    use(effects);
+    return stmt;
+  }
+
+  // An index that is not a plain number is only known at run time, so such
+  // an output is kept if any member of its family is a target.
+  private boolean printsTarget(RiverRef ref) {
+    String name = ref.token.lexeme;
+    if (!ref.isIndexed() && !ref.wholeGroup) return targets.contains(name);
+    if (ref.index instanceof Expr.Literal && ((Expr.Literal) ref.index).value instanceof Double) {
+      double index = (Double) ((Expr.Literal) ref.index).value;
+      if (index == Math.rint(index)) return targets.contains(name + "[" + (long) index + "]");
+    }
+    for (String target : targets) {
+      if (target.startsWith(name + "[")) return true;
+    }
+    return false;
+  }
+
+  private Stmt ifStmt(Stmt.If stmt) {
+    Stmt thenBranch = stmt(stmt.thenBranch);
+    Stmt elseBranch = stmt.elseBranch == null ? null : stmt(stmt.elseBranch);
+    Effects condition = effects(stmt.condition);
+    if (thenBranch == null && elseBranch == null
+        && !condition.opaque && Collections.disjoint(condition.writes, needed)) {
+      return null;
+    }
+    use(condition);
+    if (thenBranch == null) thenBranch = new Stmt.Block(List.of());
+    return new Stmt.If(stmt.condition, thenBranch, elseBranch);
+  }
+
+  private Stmt whileStmt(Stmt.While stmt) {
+    Effects condition = effects(stmt.condition);
+    Stmt body;
+    boolean keep;
+    int before;
+    do {
+      before = needed.size();
+      body = stmt(stmt.body);
+      keep = body != null || condition.opaque || !Collections.disjoint(condition.writes, needed);
+      if (keep) use(condition);
+    } while (keep && needed.size() != before && !needAll);
+    if (!keep) return null;
+    if (needAll) return stmt;
+    if (body == null) body = new Stmt.Block(List.of());
+    return new Stmt.While(stmt.condition, body, stmt.depth, stmt.hoistedSlots);
+  }
+
+  private void use(Effects effects) {
+    needed.addAll(effects.reads);
+    if (effects.opaque) needAll = true;
+  }
+
+  private Effects effects(Stmt stmt) {
+    Effects effects = new Effects();
+    stmt.accept(effects);
+    return effects;
+  }
+
+  private Effects effects(Expr expr) {
+    Effects effects = new Effects();
+    effects.expr(expr);
+    return effects;
+  }
+
+  // The names a statement or expression may read and write, including
+  // through the bodies of the functions it calls.
+  private final class Effects implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+    final Set<String> reads = new HashSet<>();
+    final Set<String> writes = new HashSet<>();
+    boolean opaque = false;
+    private final Set<String> entered = new HashSet<>();
+
+    private void stmt(Stmt stmt) {
+      if (stmt != null) stmt.accept(this);
+    }
+
+    private void stmts(List<Stmt> statements) {
+      for (Stmt statement : statements) {
+        stmt(statement);
+      }
+    }
+
+    private void expr(Expr expr) {
+      if (expr != null) expr.accept(this);
+    }
+
+    private void read(RiverRef ref) {
+      reads.add(key(ref));
+      expr(ref.index);
+    }
+
+    private void write(RiverRef ref) {
+      writes.add(key(ref));
+      expr(ref.index);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      stmts(stmt.statements);
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      expr(stmt.initializer);
+      writes.add(stmt.name.lexeme);
+      return null;
+    }
+
+    @Override
+    public Void visitRiverStmt(Stmt.River stmt) {
+      expr(stmt.flowRate);
+      write(stmt.name);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupStmt(Stmt.Group stmt) {
+      expr(stmt.first);
+      expr(stmt.end);
+      expr(stmt.flowRate);
+      writes.add(stmt.name.lexeme + "[]");
+      return null;
+    }
+
+    @Override
+    public Void visitOutputStmt(Stmt.Output stmt) {
+      read(stmt.riverName);
+      return null;
+    }
+
+    @Override
+    public Void visitCombineStmt(Stmt.Combine stmt) {
+      for (RiverRef source : stmt.sources) {
+        read(source);
+      }
+      write(stmt.name);
+      return null;
+    }
+
+    @Override
+    public Void visitFlowStmt(Stmt.Flow stmt) {
+      read(stmt.from);
+      write(stmt.to);
+      return null;
+    }
+
+    @Override
+    public Void visitDamStmt(Stmt.Dam stmt) {
+      write(stmt.riverName);
+      expr(stmt.adjustment);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      expr(stmt.condition);
+      stmt(stmt.thenBranch);
+      stmt(stmt.elseBranch);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      expr(stmt.condition);
+      stmt(stmt.body);
+      return null;
+    }
+
+    // Declaring a function only binds its name; its body counts where it
+    // is called.
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      writes.add(stmt.name.lexeme);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      expr(stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+      opaque = true;
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      expr(expr.left);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      expr(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      reads.add(expr.name.lexeme);
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      expr(expr.value);
+      writes.add(expr.name.lexeme);
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      expr(expr.left);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+      reads.add(expr.name.lexeme + "[]");
+      expr(expr.index);
+      return null;
+    }
+
+    @Override
+    public Void visitHoistedExpr(Expr.Hoisted expr) {
+      expr(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitSumExpr(Expr.Sum expr) {
+      reads.add(expr.group.lexeme + "[]");
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      expr(expr.callee);
+      for (Expr argument : expr.arguments) {
+        expr(argument);
+      }
+      if (!(expr.callee instanceof Expr.Variable)) {
+        opaque = true;
+        return null;
+      }
+      call(((Expr.Variable) expr.callee).name.lexeme);
+      return null;
+    }
+
+    // A pure function only reads its own locals, but the functions it
+    // calls by name are whatever those names are bound to at the time.
+    private void call(String name) {
+      List<Stmt.Function> declarations = functions.get(name);
+      if (declarations == null) {
+        opaque = true;
+        return;
+      }
+      if (!entered.add(name)) return;
+      for (Stmt.Function function : declarations) {
+        if (function.pure) {
+          for (String callee : function.callees) {
+            reads.add(callee);
+            call(callee);
+          }
+        } else {
+          stmts(function.body);
+        }
+      }
+    }
+  }
+}
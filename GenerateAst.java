@@ -1,8 +1,14 @@
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+// Writes the AST twice from one node list: as the classic visitor classes
+// Expr and Stmt the interpreter and passes use, and as sealed interfaces
+// ExprNode and StmtNode of records, each with a Kind enum so evaluators can
+// dispatch with a switch instead of accept/visit. Entries starting with
+// "//" are copied into the classic classes as section comments.
 public class GenerateAst {
     public static void main(String[] args) throws IOException {
         if (args.length != 1) {
@@ -10,52 +16,84 @@ public class GenerateAst {
             System.exit(64);
         }
         String outputDir = args[0];
-        
-        defineAst(outputDir, "Expr", Arrays.asList(
+
+        List<String> exprTypes = Arrays.asList(
             "Binary   : Expr left, Token operator, Expr right",
-            "Grouping : Expr expression", 
+            "Grouping : Expr expression",
             "Literal  : Object value",
             "Unary    : Token operator, Expr right",
-            "Variable : Token name"
-        ));
-
-        defineAst(outputDir, "Stmt", Arrays.asList(
+            "Variable : Token name",
+            "Assign   : Token name, Expr value",
+            "Logical  : Expr left, Token operator, Expr right",
+            "Index    : Token name, Expr index",
+            "Hoisted  : int depth, int slot, Expr expression",
+            "Sum      : Token group",
+            "Call     : Expr callee, Token paren, List<Expr> arguments"
+        );
+        List<String> stmtTypes = Arrays.asList(
             "Block      : List<Stmt> statements",
             "Expression : Expr expression",
-            "Print      : Expr expression", 
+            "Print      : Expr expression",
             "Var        : Token name, Expr initializer",
-            "River      : Token name, Expr flowRate",
-            "Output     : Token riverName",
-            "Combine    : Token name, List<Token> sources",
-            "Flow       : Token from, Token to"
-        ));
+            "// Wflow language statements",
+            "River      : RiverRef name, Expr flowRate",
+            "Group      : Token name, Expr first, Expr end, Expr flowRate",
+            "Output     : RiverRef riverName",
+            "Combine    : RiverRef name, List<RiverRef> sources",
+            "Flow       : RiverRef from, RiverRef to",
+            "Dam        : RiverRef riverName, Token mode, Expr adjustment",
+            "// Control flow",
+            "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
+            "While      : Expr condition, Stmt body, int depth, int hoistedSlots",
+            "Function   : Token name, List<Token> params, List<Stmt> body, boolean pure, Set<String> callees",
+            "Return     : Token keyword, Expr value",
+            "Import     : Token keyword, Token path"
+        );
+
+        defineAst(outputDir, "Expr", Arrays.asList("java.util.List"), exprTypes);
+        defineAst(outputDir, "Stmt", Arrays.asList("java.util.List", "java.util.Set"), stmtTypes);
+        defineNodes(outputDir, "Expr", Arrays.asList("java.util.List"), exprTypes);
+        defineNodes(outputDir, "Stmt", Arrays.asList("java.util.List", "java.util.Set"), stmtTypes);
     }
 
     private static void defineAst(
-            String outputDir, String baseName, List<String> types)
+            String outputDir, String baseName, List<String> imports, List<String> types)
             throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, "UTF-8");
 
-        writer.println("import java.util.List;");
+        for (String name : imports) {
+            writer.println("import " + name + ";");
+        }
         writer.println();
         writer.println("public abstract class " + baseName + " {");
 
-        defineVisitor(writer, baseName, types);
+        defineVisitor(writer, baseName, nodes(types));
 
         for (String type : types) {
+            if (type.startsWith("//")) {
+                writer.println("  " + type);
+                continue;
+            }
             String className = type.split(":")[0].trim();
             String fields = type.split(":")[1].trim();
             defineType(writer, baseName, className, fields);
         }
 
-        writer.println();
         writer.println("  public abstract <R> R accept(Visitor<R> visitor);");
 
         writer.println("}");
         writer.close();
     }
 
+    private static List<String> nodes(List<String> types) {
+        List<String> nodes = new ArrayList<>();
+        for (String type : types) {
+            if (!type.startsWith("//")) nodes.add(type);
+        }
+        return nodes;
+    }
+
     private static void defineVisitor(
             PrintWriter writer, String baseName, List<String> types) {
         writer.println("  public interface Visitor<R> {");
@@ -104,4 +142,102 @@ public class GenerateAst {
         writer.println("  }");
         writer.println();
     }
-}
\ No newline at end of file
+
+    // The record form: a sealed interface whose records mirror the classes
+    // above, with child nodes and lists of them as nodes too, and an of()
+    // that converts a parsed tree.
+    private static void defineNodes(
+            String outputDir, String baseName, List<String> imports, List<String> types)
+            throws IOException {
+        String nodeName = baseName + "Node";
+        String path = outputDir + "/" + nodeName + ".java";
+        PrintWriter writer = new PrintWriter(path, "UTF-8");
+        List<String> nodes = nodes(types);
+
+        for (String name : imports) {
+            writer.println("import " + name + ";");
+        }
+        writer.println();
+        writer.println("public sealed interface " + nodeName + " {");
+
+        writer.print("  enum Kind {");
+        for (int i = 0; i < nodes.size(); i++) {
+            writer.print((i == 0 ? " " : ", ") + kind(nodes.get(i)));
+        }
+        writer.println(" }");
+        writer.println();
+        writer.println("  Kind kind();");
+        writer.println();
+
+        for (String type : nodes) {
+            String className = type.split(":")[0].trim();
+            String[] fields = type.split(":")[1].trim().split(", ");
+            List<String> components = new ArrayList<>();
+            for (String field : fields) {
+                components.add(nodeType(field.split(" ")[0]) + " " + field.split(" ")[1]);
+            }
+            writer.println("  record " + className + "(" + String.join(", ", components) +
+                ") implements " + nodeName + " {");
+            writer.println("    @Override");
+            writer.println("    public Kind kind() {");
+            writer.println("      return Kind." + kind(type) + ";");
+            writer.println("    }");
+            writer.println("  }");
+            writer.println();
+        }
+
+        String parameter = baseName.toLowerCase();
+        writer.println("  static " + nodeName + " of(" + baseName + " " + parameter + ") {");
+        writer.println("    if (" + parameter + " == null) return null;");
+        for (String type : nodes) {
+            String className = type.split(":")[0].trim();
+            String[] fields = type.split(":")[1].trim().split(", ");
+            List<String> arguments = new ArrayList<>();
+            for (String field : fields) {
+                arguments.add(convert(field.split(" ")[0], "node." + field.split(" ")[1]));
+            }
+            writer.println("    if (" + parameter + " instanceof " + baseName + "." + className + ") {");
+            writer.println("      " + baseName + "." + className + " node = (" +
+                baseName + "." + className + ") " + parameter + ";");
+            writer.println("      return new " + className + "(" + String.join(", ", arguments) + ");");
+            writer.println("    }");
+        }
+        writer.println("    throw new IllegalArgumentException(\"Unknown node \" + " +
+            parameter + ".getClass().getName());");
+        writer.println("  }");
+        writer.println();
+        writer.println("  static List<" + nodeName + "> of(List<" + baseName + "> " + parameter + "s) {");
+        writer.println("    return " + parameter + "s.stream().map(" + nodeName + "::of).toList();");
+        writer.println("  }");
+
+        writer.println("}");
+        writer.close();
+    }
+
+    private static String kind(String type) {
+        return type.split(":")[0].trim().toUpperCase();
+    }
+
+    private static String nodeType(String type) {
+        switch (type) {
+            case "Expr": return "ExprNode";
+            case "Stmt": return "StmtNode";
+            case "List<Expr>": return "List<ExprNode>";
+            case "List<Stmt>": return "List<StmtNode>";
+            default: return type;
+        }
+    }
+
+    private static String convert(String type, String value) {
+        switch (type) {
+            case "Expr":
+            case "List<Expr>":
+                return "ExprNode.of(" + value + ")";
+            case "Stmt":
+            case "List<Stmt>":
+                return "StmtNode.of(" + value + ")";
+            default:
+                return value;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Finds dam factors that make chosen rivers deliver target flows.
+//
+//   jlox --solve <script> --target <river>=<flow>... --free <river>=<min>:<max>...
+//                [--rainfall <mm>]
+//
+// The program is compiled once and evaluated in memory, with each free
+// river's dam statements overridden by the factor being tried. Every
+// evaluation is traced as in --sensitivity, so one reverse sweep per target
+// gives its derivatives with respect to all free dams at once. The step is
+// the minimum-norm Gauss-Newton step, which for a single dam is exact in one
+// iteration because flow is linear in each dam factor; with several dams
+// the flows are only multilinear, so the step is halved until the error
+// shrinks. Dams that reach a bound are held there for the step.
+final class GoalSeek {
+    static final int EXIT_UNSOLVED = 1;
+
+    private static final int MAX_ITERATIONS = 100;
+    private static final int MAX_HALVINGS = 30;
+    private static final double TOLERANCE = 1e-9;
+
+    private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+    private final Program program;
+    private final double rainfallMm;
+    private final List<String> targets = new ArrayList<>();
+    private final double[] goals;
+    private final List<String> free = new ArrayList<>();
+    private final double[] lower;
+    private final double[] upper;
+    private int evaluations = 0;
+
+    // One evaluation: how far each target is from its goal, and the
+    // derivative of each target's flow with respect to each free dam.
+    private static final class Evaluation {
+        final double[] factors;
+        final double[] flows;
+        final double[] residuals;
+        final double[][] jacobian;
+
+        Evaluation(double[] factors, int targets, int free) {
+            this.factors = factors;
+            this.flows = new double[targets];
+            this.residuals = new double[targets];
+            this.jacobian = new double[targets][free];
+        }
+
+        double error() {
+            double sum = 0.0;
+            for (double r : residuals) sum += r * r;
+            return Math.sqrt(sum);
+        }
+    }
+
+    private GoalSeek(Program program, double rainfallMm, Map<String, Double> targets,
+                     Map<String, double[]> bounds) {
+        this.program = program;
+        this.rainfallMm = rainfallMm;
+        this.targets.addAll(targets.keySet());
+        this.goals = targets.values().stream().mapToDouble(Double::doubleValue).toArray();
+        this.free.addAll(bounds.keySet());
+        this.lower = new double[free.size()];
+        this.upper = new double[free.size()];
+        int i = 0;
+        for (double[] bound : bounds.values()) {
+            lower[i] = bound[0];
+            upper[i] = bound[1];
+            i++;
+        }
+    }
+
+    static int main(String[] args) throws IOException {
+        if (args.length < 1) return usage();
+        Map<String, Double> targets = new LinkedHashMap<>();
+        Map<String, double[]> bounds = new LinkedHashMap<>();
+        double rainfallMm = 1.0;
+        try {
+            for (int i = 1; i < args.length; i += 2) {
+                if (i + 1 >= args.length) return usage();
+                String value = args[i + 1];
+                int equals = value.lastIndexOf('=');
+                switch (args[i]) {
+                    case "--target":
+                        if (equals <= 0) return usage();
+                        targets.put(value.substring(0, equals), Double.parseDouble(value.substring(equals + 1)));
+                        break;
+                    case "--free":
+                        if (equals <= 0) return usage();
+                        String[] range = value.substring(equals + 1).split(":");
+                        if (range.length != 2) return usage();
+                        double min = Double.parseDouble(range[0]);
+                        double max = Double.parseDouble(range[1]);
+                        if (min < 0 || max < min) {
+                            System.out.println("Dam bounds must satisfy 0 <= min <= max.");
+                            return BatchRunner.EXIT_USAGE;
+                        }
+                        bounds.put(value.substring(0, equals), new double[] {min, max});
+                        break;
+                    case "--rainfall":
+                        rainfallMm = Double.parseDouble(value);
+                        break;
+                    default:
+                        return usage();
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return usage();
+        }
+        if (targets.isEmpty() || bounds.isEmpty()) return usage();
+
+        String source;
+        try {
+            source = new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            System.err.println("Cannot read " + args[0] + ": " + ex.getMessage());
+            return BatchRunner.EXIT_NO_INPUT;
+        }
+        Program program;
+        try {
+            program = Program.compileOrThrow(args[0], source);
+        } catch (CompileError error) {
+            error.errors.forEach(System.err::println);
+            return BatchRunner.EXIT_COMPILE;
+        }
+
+        try {
+            return new GoalSeek(program, rainfallMm, targets, bounds).solve(System.out);
+        } catch (RuntimeError error) {
+            System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+            return BatchRunner.EXIT_RUNTIME;
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return BatchRunner.EXIT_RUNTIME;
+        }
+    }
+
+    private static int usage() {
+        System.out.println("Usage: jlox --solve <script> --target <river>=<flow>... "
+                + "--free <river>=<min>:<max>... [--rainfall <mm>]");
+        return BatchRunner.EXIT_USAGE;
+    }
+
+    private int solve(PrintStream out) {
+        long start = System.nanoTime();
+        Evaluation current = evaluate(startingFactors());
+        int iterations = 0;
+        while (!converged(current) && iterations < MAX_ITERATIONS) {
+            Evaluation next = improve(current);
+            if (next == null) break;
+            current = next;
+            iterations++;
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+
+        boolean solved = converged(current);
+        if (solved) {
+            out.printf("Solved in %d iterations (%d evaluations, %.1f ms).%n", iterations, evaluations, millis);
+        } else {
+            out.printf("No dam settings within the bounds meet the targets; closest found "
+                    + "after %d iterations (%d evaluations, %.1f ms):%n", iterations, evaluations, millis);
+        }
+        for (int j = 0; j < free.size(); j++) {
+            out.printf("dam %-20s %.6f  [%.4f, %.4f]%n", free.get(j), current.factors[j], lower[j], upper[j]);
+        }
+        for (int i = 0; i < targets.size(); i++) {
+            out.printf("%-24s %.6f L/s  (target %.6f)%n", targets.get(i), current.flows[i], goals[i]);
+        }
+        return solved ? BatchRunner.EXIT_OK : EXIT_UNSOLVED;
+    }
+
+    // The script's own final setting of each free dam, pulled into bounds.
+    private double[] startingFactors() {
+        Interpreter interpreter = program.newEvaluation(rainfallMm, DISCARD);
+        interpreter.run(program.statements);
+        evaluations++;
+        double[] factors = new double[free.size()];
+        for (int j = 0; j < free.size(); j++) {
+            RiverState state = interpreter.riverStore().get(free.get(j));
+            double factor = state == null ? 1.0 : state.damFactor;
+            factors[j] = clamp(factor, j);
+        }
+        return factors;
+    }
+
+    private Evaluation evaluate(double[] factors) {
+        Map<String, Double> overrides = new HashMap<>();
+        for (int j = 0; j < free.size(); j++) {
+            overrides.put(free.get(j), factors[j]);
+        }
+
+        Interpreter interpreter = program.newEvaluation(rainfallMm, DISCARD);
+        interpreter.traceSensitivity();
+        interpreter.overrideDams(overrides);
+        interpreter.run(program.statements);
+        evaluations++;
+
+        for (String river : free) {
+            if (!interpreter.overriddenDams().contains(river)) {
+                throw new IllegalArgumentException("River " + river + " has no dam statement to solve for.");
+            }
+        }
+
+        SensitivityTrace trace = interpreter.sensitivityTrace();
+        Map<String, Double> flows = new HashMap<>();
+        Map<String, Integer> nodes = trace.finalFlows(interpreter.riverStore(), targets::contains, flows);
+
+        Evaluation evaluation = new Evaluation(factors, targets.size(), free.size());
+        for (int i = 0; i < targets.size(); i++) {
+            String target = targets.get(i);
+            if (!nodes.containsKey(target)) {
+                throw new IllegalArgumentException("Target river " + target + " does not exist.");
+            }
+            evaluation.flows[i] = flows.get(target);
+            evaluation.residuals[i] = goals[i] - flows.get(target);
+
+            Map<String, Double> gradient = new HashMap<>();
+            for (Map.Entry<String, Double> partial : trace.tape.gradient(nodes.get(target))) {
+                gradient.put(partial.getKey(), partial.getValue());
+            }
+            for (int j = 0; j < free.size(); j++) {
+                evaluation.jacobian[i][j] = gradient.getOrDefault("dam " + free.get(j), 0.0);
+            }
+        }
+        return evaluation;
+    }
+
+    private boolean converged(Evaluation evaluation) {
+        for (int i = 0; i < goals.length; i++) {
+            if (Math.abs(evaluation.residuals[i]) > TOLERANCE * Math.max(1.0, Math.abs(goals[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The next evaluation along the Gauss-Newton direction, or null if no
+    // step within the bounds reduces the error.
+    private Evaluation improve(Evaluation current) {
+        boolean[] held = new boolean[free.size()];
+        double[] step = step(current, held);
+        // Hold dams the step would push past a bound they already sit on,
+        // and aim the remaining ones at the whole residual.
+        boolean anyHeld = false;
+        for (int j = 0; j < step.length; j++) {
+            double x = current.factors[j];
+            if ((x <= lower[j] && step[j] < 0) || (x >= upper[j] && step[j] > 0)) {
+                held[j] = true;
+                anyHeld = true;
+            }
+        }
+        if (anyHeld) step = step(current, held);
+
+        double scale = 1.0;
+        for (int attempt = 0; attempt < MAX_HALVINGS; attempt++) {
+            double[] factors = new double[step.length];
+            boolean moved = false;
+            for (int j = 0; j < step.length; j++) {
+                factors[j] = clamp(current.factors[j] + scale * step[j], j);
+                if (factors[j] != current.factors[j]) moved = true;
+            }
+            if (!moved) return null;
+
+            Evaluation candidate = evaluate(factors);
+            if (candidate.error() < current.error()) return candidate;
+            scale /= 2;
+        }
+        return null;
+    }
+
+    // Minimum-norm solution of J dx = r over the dams not held: with m
+    // targets this is one m-by-m solve, however many dams are free.
+    private double[] step(Evaluation evaluation, boolean[] held) {
+        int m = targets.size();
+        int n = free.size();
+        double[][] j = evaluation.jacobian;
+
+        double[][] a = new double[m][m + 1];
+        double trace = 0.0;
+        for (int r = 0; r < m; r++) {
+            for (int c = 0; c < m; c++) {
+                double sum = 0.0;
+                for (int k = 0; k < n; k++) {
+                    if (!held[k]) sum += j[r][k] * j[c][k];
+                }
+                a[r][c] = sum;
+            }
+            a[r][m] = evaluation.residuals[r];
+            trace += a[r][r];
+        }
+        // A touch of damping keeps targets no free dam can move, or two
+        // targets that move together, from making the system singular.
+        double damping = 1e-12 * Math.max(trace, 1.0);
+        for (int r = 0; r < m; r++) a[r][r] += damping;
+
+        double[] y = solve(a);
+        double[] step = new double[n];
+        for (int k = 0; k < n; k++) {
+            if (held[k]) continue;
+            double sum = 0.0;
+            for (int r = 0; r < m; r++) sum += j[r][k] * y[r];
+            step[k] = sum;
+        }
+        return step;
+    }
+
+    // Gaussian elimination with partial pivoting on an augmented matrix.
+    private static double[] solve(double[][] a) {
+        int m = a.length;
+        for (int col = 0; col < m; col++) {
+            int pivot = col;
+            for (int r = col + 1; r < m; r++) {
+                if (Math.abs(a[r][col]) > Math.abs(a[pivot][col])) pivot = r;
+            }
+            double[] swap = a[col];
+            a[col] = a[pivot];
+            a[pivot] = swap;
+            if (a[col][col] == 0.0) continue;
+            for (int r = col + 1; r < m; r++) {
+                double factor = a[r][col] / a[col][col];
+                for (int c = col; c <= m; c++) a[r][c] -= factor * a[col][c];
+            }
+        }
+        double[] x = new double[m];
+        for (int r = m - 1; r >= 0; r--) {
+            if (a[r][r] == 0.0) continue;
+            double sum = a[r][m];
+            for (int c = r + 1; c < m; c++) sum -= a[r][c] * x[c];
+            x[r] = sum / a[r][r];
+        }
+        return x;
+    }
+
+    private double clamp(double value, int j) {
+        return Math.max(lower[j], Math.min(upper[j], value));
+    }
+}
@@ -1,34 +1,146 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+    // Marks a hoisted slot that has not been evaluated in the current run of
+    // its loop; null is a real value (nil).
+    private static final Object UNSET = new Object();
+    // Above 2^53 doubles skip whole numbers, so larger indexes would alias.
+    static final double MAX_INDEX = 9007199254740992.0;
+    static final long MAX_GROUP_SIZE = Integer.MAX_VALUE - 8;
+    private static final int MEMO_CAPACITY = 4096;
+
     private final Environment globals = new Environment();
     private Environment environment = globals;
-    private final Map<String, RiverState> rivers = new LinkedHashMap<>();
+    private RiverStore rivers;
     private final double rainfallMm;
+    private final PrintStream out;
+    private final String programName;
+    // The fields below that start out null are only created when a run
+    // needs them, so evaluating a plain network allocates none of them.
+
+    // One frame of hoisted values per loop nesting depth, live while that
+    // loop runs.
+    private Object[][] loopFrames;
+
+    // Results of calls to pure functions, least recently used first. An
+    // entry stays valid until a name that some pure function calls is
+    // rebound, which clears the lot.
+    private Map<MemoKey, Object> memo;
+    private Set<String> memoCallees;
+    // Counts calls to impure functions, so a pure function that turns out to
+    // call one is not memoized.
+    private long impureCalls = 0;
+    // Modules this interpreter has run. Importing one again does nothing,
+    // which also ends import cycles.
+    private Set<Path> imported;
+    // The directory of the module being imported, if any; relative imports
+    // resolve against it.
+    private Path importBase;
+    private Path programBase;
+    // Set for programs from untrusted sources: imports must stay inside
+    // moduleRoot, and with no root there are none.
+    private boolean importsRestricted = false;
+    private Path moduleRoot;
+    // Statements left before the run is stopped.
+    private long stepsLeft = Long.MAX_VALUE;
+    // Set only for sensitivity runs.
+    private SensitivityTrace trace;
+    // Dam factors fixed from outside, by river name, replacing whatever
+    // each dam statement on that river computes; null when there are none.
+    private Map<String, Double> damOverrides;
+    private Set<String> overriddenDams;
+    // Rivers the summary is limited to; null lists every river.
+    private Set<String> summaryRivers;
+    // Per-river rainfall from a raster, replacing rainfallMm as the default
+    // intrinsic flow of bound rivers; null when rain is uniform.
+    private RainfallGrid rainfallGrid;
 
     public Interpreter(double rainfallMm) {
+        this(rainfallMm, System.out, Lox.programName);
+    }
+
+    Interpreter(double rainfallMm, PrintStream out, String programName) {
+        this(rainfallMm, out, programName, 0);
+    }
+
+    Interpreter(double rainfallMm, PrintStream out, String programName, int expectedRivers) {
+        this(rainfallMm, out, programName, new RiverStore(expectedRivers));
+    }
+
+    Interpreter(double rainfallMm, PrintStream out, String programName, RiverStore rivers) {
+        this.rivers = rivers;
         this.rainfallMm = rainfallMm;
+        this.out = out;
+        this.programName = programName;
         globals.define("rainfall", rainfallMm);
     }
 
     public void interpret(List<Stmt> statements) {
         try {
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
+            run(statements);
             printRiverSummary();
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
         }
     }
 
+    // Executes the statements without reporting errors or printing the
+    // summary, for callers that want the RuntimeError and the summary as data.
+    void run(List<Stmt> statements) {
+        FlowEvents.Interpret event = new FlowEvents.Interpret();
+        event.begin();
+        try {
+            for (Stmt statement : statements) {
+                execute(statement);
+            }
+        } finally {
+            event.program = programName;
+            event.statements = statements.size();
+            event.rivers = rivers.size();
+            event.rainfall = rainfallMm;
+            event.commit();
+        }
+    }
+
+    // Executes one top-level statement, for callers that feed statements in
+    // as they are parsed.
+    void step(Stmt statement) {
+        execute(statement);
+    }
+
     private void execute(Stmt stmt) {
         if (stmt == null) return;
+        if (--stepsLeft < 0) {
+            throw new RuntimeError(new Token(TokenType.IDENTIFIER, "", null, AstPrinter.line(stmt)),
+                    "Stopped: the program ran too many statements.");
+        }
         stmt.accept(this);
     }
 
+    // Imports resolve against root and may not leave it, or are refused
+    // altogether when root (a real path) is null.
+    void restrictImports(Path root) {
+        importsRestricted = true;
+        moduleRoot = root;
+    }
+
+    // Stops the run with a runtime error once it has executed this many
+    // statements, so a program that never ends cannot hold its thread.
+    void limitSteps(long steps) {
+        stepsLeft = steps;
+    }
+
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
         executeBlock(stmt.statements, new Environment(environment));
@@ -56,7 +168,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        out.println(stringify(value));
         return null;
     }
 
@@ -67,50 +179,208 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = evaluate(stmt.initializer);
         }
         environment.define(stmt.name.lexeme, value);
+        rebound(stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.pure) {
+            if (memoCallees == null) memoCallees = new HashSet<>();
+            memoCallees.addAll(stmt.callees);
+        }
+        environment.define(stmt.name.lexeme, new LoxFunction(stmt, environment));
+        rebound(stmt.name.lexeme);
         return null;
     }
 
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        Object value = null;
+        if (stmt.value != null) value = evaluate(stmt.value);
+        throw new Return(value);
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        if (importsRestricted && moduleRoot == null) {
+            throw new RuntimeError(stmt.path, "Imports are disabled here.");
+        }
+        Path path;
+        try {
+            path = importBase().resolve((String) stmt.path.literal).toRealPath();
+        } catch (IOException | InvalidPathException ex) {
+            throw new RuntimeError(stmt.path, "Cannot find module " + stmt.path.lexeme + ".");
+        }
+        // Same message as a missing file, so nothing is learned about what
+        // lies outside the root.
+        if (importsRestricted && !path.startsWith(moduleRoot)) {
+            throw new RuntimeError(stmt.path, "Cannot find module " + stmt.path.lexeme + ".");
+        }
+        if (imported == null) imported = new HashSet<>();
+        if (!imported.add(path)) return null;
+
+        Program module;
+        try {
+            module = ModuleCache.load(path);
+        } catch (IOException ex) {
+            throw new RuntimeError(stmt.path, "Cannot read module " + stmt.path.lexeme + ".");
+        } catch (CompileError ex) {
+            throw new RuntimeError(stmt.path, "Module " + stmt.path.lexeme + " has errors:\n" + ex.getMessage());
+        }
+
+        Path enclosing = importBase;
+        importBase = path.getParent();
+        try {
+            executeBlock(module.statements, globals);
+        } finally {
+            importBase = enclosing;
+        }
+        return null;
+    }
+
+    // Imports in the main program resolve against its file's directory, or
+    // the working directory when it did not come from a file. The main file
+    // counts as imported, so a module importing it back does not rerun it.
+    private Path importBase() {
+        if (importBase != null) return importBase;
+        if (importsRestricted) return moduleRoot;
+        if (programBase == null) {
+            programBase = Path.of("").toAbsolutePath();
+            try {
+                Path program = Path.of(programName);
+                if (Files.isRegularFile(program)) {
+                    if (imported == null) imported = new HashSet<>();
+                    imported.add(program.toRealPath());
+                    programBase = program.toAbsolutePath().getParent();
+                }
+            } catch (IOException | InvalidPathException ex) {
+                // Not a file, e.g. "<prompt>" or a program hash.
+            }
+        }
+        return programBase;
+    }
+
+    // Defines a global function as if its declaration had just run, for
+    // functions restored from a checkpoint.
+    void defineGlobalFunction(String name, Stmt.Function declaration) {
+        if (declaration.pure) {
+            if (memoCallees == null) memoCallees = new HashSet<>();
+            memoCallees.addAll(declaration.callees);
+        }
+        globals.define(name, new LoxFunction(declaration, globals));
+    }
+
+    private void rebound(String name) {
+        if (memo != null && !memo.isEmpty() && memoCallees != null && memoCallees.contains(name)) {
+            memo.clear();
+        }
+    }
+
     @Override
     public Void visitRiverStmt(Stmt.River stmt) {
-        double flow = stmt.flowRate == null ? rainfallMm : requireNumber(stmt.flowRate, stmt.name);
-        RiverState state = getRiverState(stmt.name.lexeme);
-        state.setIntrinsicFlow(flow);
-        rivers.putIfAbsent(stmt.name.lexeme, state);
+        River river = resolve(stmt.name, true);
+        Object value = stmt.flowRate == null ? null : requireNumberValue(stmt.flowRate, stmt.name.token);
+        if (value == null && rainfallGrid != null && rainfallGrid.binds(river.name())) {
+            value = rainfallGrid.rainfall(river.name(), rainfallMm);
+        }
+        river.setIntrinsicFlow(value == null ? rainfallMm : (double) value);
+        if (trace != null) {
+            trace.declared(river.name(), value == null ? trace.rainfall() : trace.node(value), true);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupStmt(Stmt.Group stmt) {
+        long first = wholeIndex(stmt.name, evaluate(stmt.first));
+        long end = wholeIndex(stmt.name, evaluate(stmt.end));
+        if (end < first) {
+            throw new RuntimeError(stmt.name, "River group range ends before it starts.");
+        }
+        if (end - first > MAX_GROUP_SIZE) {
+            throw new RuntimeError(stmt.name, "River group is too large.");
+        }
+        Object value = stmt.flowRate == null ? null : requireNumberValue(stmt.flowRate, stmt.name);
+        double flow = value == null ? rainfallMm : (double) value;
+
+        String name = stmt.name.lexeme;
+        String existing = rivers.memberOutsideGroup(name, first, end);
+        if (existing != null) {
+            throw new RuntimeError(stmt.name, "River '" + existing + "' already exists outside a group.");
+        }
+        RiverGroup group = rivers.declareGroup(name, first, (int) (end - first));
+        group.setAllIntrinsicFlow(flow);
+        boolean gridded = value == null && rainfallGrid != null && rainfallGrid.bindsMemberOf(name);
+        if (gridded) {
+            for (int i = 0; i < group.size(); i++) {
+                group.setIntrinsicFlow(i, rainfallGrid.rainfall(group.memberName(name, i), rainfallMm));
+            }
+        }
+        if (trace != null) {
+            int node = value == null ? trace.rainfall() : trace.node(value);
+            for (int i = 0; i < group.size(); i++) {
+                String member = group.memberName(name, i);
+                // Rain from the grid is a constant, not the rainfall input.
+                trace.declaredMember(member, gridded && rainfallGrid.binds(member) ? -1 : node);
+            }
+        }
         return null;
     }
 
     @Override
     public Void visitOutputStmt(Stmt.Output stmt) {
-        double flow = getRiverFlow(stmt.riverName);
-        System.out.printf("%s flow: %.2f L/s%n", stmt.riverName.lexeme, flow);
+        River river = resolve(stmt.riverName, false);
+        double flow = river.currentFlow();
+        out.printf("%s flow: %.2f L/s%n", river.name(), flow);
+        if (trace != null) trace.output(river.name());
         return null;
     }
 
     @Override
     public Void visitCombineStmt(Stmt.Combine stmt) {
         double total = 0.0;
-        for (Token source : stmt.sources) {
-            total += getRiverFlow(source);
+        int node = -1;
+        for (RiverRef source : stmt.sources) {
+            if (source.wholeGroup) {
+                RiverGroup group = requireGroup(source.token);
+                total += group.sum();
+                if (trace != null) node = trace.tape.add(node, groupNode(source.token.lexeme, group));
+            } else {
+                River river = resolve(source, false);
+                total += river.currentFlow();
+                if (trace != null) node = trace.tape.add(node, river.node());
+            }
         }
-        RiverState state = getRiverState(stmt.name.lexeme);
-        state.setIntrinsicFlow(total);
-        rivers.putIfAbsent(stmt.name.lexeme, state);
+        River target = resolve(stmt.name, true);
+        target.setIntrinsicFlow(total);
+        if (trace != null) trace.declared(target.name(), node, false);
         return null;
     }
 
     @Override
     public Void visitFlowStmt(Stmt.Flow stmt) {
-        double transfer = getRiverFlow(stmt.from);
-        RiverState target = getRiverState(stmt.to.lexeme);
-        target.addIncomingFlow(transfer);
-        rivers.putIfAbsent(stmt.to.lexeme, target);
+        River from = resolve(stmt.from, false);
+        double flow = from.currentFlow();
+        River to = resolve(stmt.to, true);
+        to.addIncomingFlow(flow);
+        if (trace != null) trace.flowedInto(to.name(), from.node());
         return null;
     }
 
     @Override
     public Void visitDamStmt(Stmt.Dam stmt) {
-        RiverState state = getRiverState(stmt.riverName.lexeme);
+        River river = null;
+        RiverGroup group = null;
+        if (stmt.riverName.wholeGroup) {
+            requireGroup(stmt.riverName.token);
+            group = rivers.mutableGroup(stmt.riverName.token.lexeme);
+        } else {
+            river = resolve(stmt.riverName, true);
+            river.touch();
+        }
         double factor;
+        int node = -1;
         switch (stmt.mode.type) {
             case OPEN:
                 factor = 1.0;
@@ -119,24 +389,244 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 factor = 0.0;
                 break;
             case ADJUST:
-                factor = requireNumber(stmt.adjustment, stmt.mode);
+                Object value = requireNumberValue(stmt.adjustment, stmt.mode);
+                factor = (double) value;
+                if (trace != null) node = trace.node(value);
                 break;
             default:
                 throw new RuntimeError(stmt.mode, "Unsupported dam mode.");
         }
+        if (damOverrides != null) {
+            if (group == null && damOverrides.containsKey(river.name())) {
+                factor = damOverrides.get(river.name());
+                node = -1;
+                overriddenDams.add(river.name());
+            } else if (group != null) {
+                overrideMembers(stmt.riverName.token.lexeme, group, factor, node, stmt.mode);
+                return null;
+            }
+        }
         if (factor < 0) {
             throw new RuntimeError(stmt.mode, "Dam factor cannot be negative.");
         }
-        state.setDamFactor(factor);
-        rivers.putIfAbsent(stmt.riverName.lexeme, state);
+        if (group != null) {
+            group.setAllDamFactors(factor);
+            if (trace != null) {
+                for (int i = 0; i < group.size(); i++) {
+                    trace.dammed(group.memberName(stmt.riverName.token.lexeme, i), node);
+                }
+            }
+        } else {
+            river.setDamFactor(factor);
+            if (trace != null) trace.dammed(river.name(), node);
+        }
+        return null;
+    }
+
+    // A whole-group dam with some members' factors fixed from outside.
+    private void overrideMembers(String name, RiverGroup group, double factor, int node, Token context) {
+        if (factor < 0) {
+            for (int i = 0; i < group.size(); i++) {
+                if (!damOverrides.containsKey(group.memberName(name, i))) {
+                    throw new RuntimeError(context, "Dam factor cannot be negative.");
+                }
+            }
+        }
+        for (int i = 0; i < group.size(); i++) {
+            String member = group.memberName(name, i);
+            Double fixed = damOverrides.get(member);
+            if (fixed != null) overriddenDams.add(member);
+            group.setDamFactor(i, fixed != null ? fixed : factor);
+            if (trace != null) trace.dammed(member, fixed != null ? -1 : node);
+        }
+    }
+
+    // Fixes the named rivers' dam factors for every dam statement that runs
+    // from now on; see overriddenDams() for which ones were actually hit.
+    void overrideDams(Map<String, Double> factors) {
+        damOverrides = factors;
+        overriddenDams = new HashSet<>();
+    }
+
+    Set<String> overriddenDams() {
+        return overriddenDams == null ? Set.of() : overriddenDams;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        if (isTruthy(evaluate(stmt.condition))) {
+            execute(stmt.thenBranch);
+        } else if (stmt.elseBranch != null) {
+            execute(stmt.elseBranch);
+        }
         return null;
     }
 
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        if (loopFrames == null) {
+            loopFrames = new Object[Math.max(4, stmt.depth + 1)][];
+        } else if (stmt.depth >= loopFrames.length) {
+            loopFrames = Arrays.copyOf(loopFrames, stmt.depth * 2);
+        }
+        // A loop can be re-entered at the same depth before it finishes only
+        // through an enclosing loop's next iteration, so saving the frame
+        // here is enough to keep each run's hoisted values separate.
+        Object[] saved = loopFrames[stmt.depth];
+        Object[] frame = new Object[stmt.hoistedSlots];
+        Arrays.fill(frame, UNSET);
+        loopFrames[stmt.depth] = frame;
+        try {
+            while (isTruthy(evaluate(stmt.condition))) {
+                execute(stmt.body);
+            }
+        } finally {
+            loopFrames[stmt.depth] = saved;
+        }
+        return null;
+    }
+
+    // The river a reference names at this point in the run. reach[i + 1]
+    // with i = 2 is the river "reach[3]": a member of the group reach if one
+    // is declared, otherwise an individual river of that name. Writers ask
+    // for the group copied into this store's own layer.
+    private River resolve(RiverRef ref, boolean write) {
+        if (!ref.isIndexed()) {
+            return new River(ref.token.lexeme, null, 0);
+        }
+        return member(ref.token, evaluate(ref.index), write);
+    }
+
+    private River member(Token name, Object indexValue, boolean write) {
+        long index = wholeIndex(name, indexValue);
+        RiverGroup group = rivers.group(name.lexeme);
+        if (group == null) {
+            return new River(name.lexeme + "[" + index + "]", null, 0);
+        }
+        int slot = group.slot(index);
+        if (slot < 0) {
+            throw new RuntimeError(name, "Index " + index + " is outside river group '" + name.lexeme + "'.");
+        }
+        if (write) group = rivers.mutableGroup(name.lexeme);
+        return new River(name.lexeme, group, slot);
+    }
+
+    private RiverGroup requireGroup(Token name) {
+        RiverGroup group = rivers.group(name.lexeme);
+        if (group == null) {
+            throw new RuntimeError(name, "Undefined river group '" + name.lexeme + "'.");
+        }
+        return group;
+    }
+
+    private static long wholeIndex(Token name, Object index) {
+        if (!(index instanceof Double)) {
+            throw new RuntimeError(name, "River index must be a number.");
+        }
+        double value = (double) index;
+        if (value != Math.rint(value) || Math.abs(value) > MAX_INDEX) {
+            throw new RuntimeError(name, "River index must be a whole number.");
+        }
+        return (long) value;
+    }
+
+    // A resolved river: an individual one by name, or a slot in a group.
+    private final class River {
+        private final String name;
+        private final RiverGroup group;
+        private final int slot;
+
+        River(String name, RiverGroup group, int slot) {
+            this.name = name;
+            this.group = group;
+            this.slot = slot;
+        }
+
+        String name() {
+            return group == null ? name : group.memberName(name, slot);
+        }
+
+        double currentFlow() {
+            return group == null ? getRiverFlow(name) : group.currentFlow(slot);
+        }
+
+        // The flow as an expression value, traced in sensitivity runs.
+        Object value() {
+            double flow = currentFlow();
+            return trace == null ? (Object) flow : trace.traced(flow, node());
+        }
+
+        // The tape node for the current flow.
+        int node() {
+            if (group != null) {
+                return trace.flow(name(), group.intrinsicFlow[slot], group.incomingFlow[slot], group.damFactor[slot]);
+            }
+            RiverState state = rivers.get(name);
+            if (state == null) return -1;
+            return trace.flow(name, state.intrinsicFlow, state.incomingFlow, state.damFactor);
+        }
+
+        // Makes sure an individual river exists even if the statement
+        // touching it fails part-way.
+        void touch() {
+            if (group == null) rivers.mutable(name);
+        }
+
+        void setIntrinsicFlow(double flow) {
+            if (group == null) {
+                declareRiver(name, flow);
+            } else {
+                group.setIntrinsicFlow(slot, flow);
+            }
+        }
+
+        void addIncomingFlow(double flow) {
+            if (group == null) {
+                rivers.mutable(name).addIncomingFlow(flow);
+            } else {
+                group.addIncomingFlow(slot, flow);
+            }
+        }
+
+        void setDamFactor(double factor) {
+            if (group == null) {
+                rivers.mutable(name).setDamFactor(factor);
+            } else {
+                group.setDamFactor(slot, factor);
+            }
+        }
+    }
+
+    // The river operations behind the statements above, also used by loaders
+    // that build a network without going through the parser.
+    void declareRiver(String name, double flow) {
+        rivers.mutable(name).setIntrinsicFlow(flow);
+    }
+
+    void transfer(String from, String to) {
+        double flow = getRiverFlow(from);
+        rivers.mutable(to).addIncomingFlow(flow);
+    }
+
+    void setDamFactor(String name, double factor, Token context) {
+        if (factor < 0) {
+            throw new RuntimeError(context, "Dam factor cannot be negative.");
+        }
+        rivers.mutable(name).setDamFactor(factor);
+    }
+
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        Object result = binary(expr, left, right);
+        if (trace != null && result instanceof Double) {
+            return trace.traced((double) result, trace.binary(expr.operator.type, left, right));
+        }
+        return result;
+    }
 
+    private Object binary(Expr.Binary expr, Object left, Object right) {
         switch (expr.operator.type) {
             case GREATER:
                 checkNumberOperands(expr.operator, left, right);
@@ -193,6 +683,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         switch (expr.operator.type) {
             case MINUS:
                 checkNumberOperand(expr.operator, right);
+                if (trace != null) return trace.traced(-(double) right, trace.negate(right));
                 return -(double) right;
             case BANG:
                 return !isTruthy(right);
@@ -203,12 +694,127 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        if (rivers.containsKey(expr.name.lexeme)) {
+        // A function's parameters and locals hide rivers of the same name,
+        // so it only sees what it is given. Elsewhere rivers win.
+        if (environment != globals && environment.definesInFunction(expr.name.lexeme)) {
+            return environment.get(expr.name);
+        }
+        if (rivers.contains(expr.name.lexeme)) {
+            if (trace != null) return new River(expr.name.lexeme, null, 0).value();
             return getRiverFlow(expr.name);
         }
         return environment.get(expr.name);
     }
 
+    @Override
+    public Object visitAssignExpr(Expr.Assign expr) {
+        Object value = evaluate(expr.value);
+        environment.assign(expr.name, value);
+        rebound(expr.name.lexeme);
+        return value;
+    }
+
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        Object callee = evaluate(expr.callee);
+
+        List<Object> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr argument : expr.arguments) {
+            arguments.add(evaluate(argument));
+        }
+
+        if (!(callee instanceof LoxFunction)) {
+            throw new RuntimeError(expr.paren, "Can only call functions.");
+        }
+        LoxFunction function = (LoxFunction) callee;
+        if (arguments.size() != function.arity()) {
+            throw new RuntimeError(expr.paren, "Expected " + function.arity()
+                    + " arguments but got " + arguments.size() + ".");
+        }
+
+        if (!function.isPure() || trace != null) {
+            impureCalls++;
+            return function.call(this, arguments);
+        }
+
+        if (memo == null) {
+            memo = new LinkedHashMap<MemoKey, Object>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<MemoKey, Object> eldest) {
+                    return size() > MEMO_CAPACITY;
+                }
+            };
+        }
+        MemoKey key = new MemoKey(function, arguments);
+        Object result = memo.get(key);
+        if (result != null || memo.containsKey(key)) return result;
+
+        long before = impureCalls;
+        result = function.call(this, arguments);
+        if (impureCalls == before) {
+            memo.put(key, result);
+        }
+        return result;
+    }
+
+    private static final class MemoKey {
+        private final LoxFunction function;
+        private final List<Object> arguments;
+        private final int hash;
+
+        MemoKey(LoxFunction function, List<Object> arguments) {
+            this.function = function;
+            this.arguments = arguments;
+            this.hash = 31 * System.identityHashCode(function) + arguments.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof MemoKey)) return false;
+            MemoKey key = (MemoKey) other;
+            return function == key.function && arguments.equals(key.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    @Override
+    public Object visitLogicalExpr(Expr.Logical expr) {
+        Object left = evaluate(expr.left);
+        if (expr.operator.type == TokenType.OR) {
+            if (isTruthy(left)) return left;
+        } else {
+            if (!isTruthy(left)) return left;
+        }
+        return evaluate(expr.right);
+    }
+
+    @Override
+    public Object visitIndexExpr(Expr.Index expr) {
+        return member(expr.name, evaluate(expr.index), false).value();
+    }
+
+    @Override
+    public Object visitSumExpr(Expr.Sum expr) {
+        RiverGroup group = requireGroup(expr.group);
+        if (trace != null) return trace.traced(group.sum(), groupNode(expr.group.lexeme, group));
+        return group.sum();
+    }
+
+    @Override
+    public Object visitHoistedExpr(Expr.Hoisted expr) {
+        Object[] frame = loopFrames[expr.depth];
+        Object value = frame[expr.slot];
+        if (value == UNSET) {
+            value = evaluate(expr.expression);
+            frame[expr.slot] = value;
+        }
+        return value;
+    }
+
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
@@ -217,47 +823,71 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return getRiverFlow(token.lexeme);
     }
 
+    // Reading a river that has never been mentioned creates it empty, so it
+    // still shows up in the summary.
     private double getRiverFlow(String name) {
-        RiverState state = getRiverState(name);
-        rivers.putIfAbsent(name, state);
+        RiverState state = rivers.get(name);
+        if (state == null) {
+            state = rivers.mutable(name);
+        }
         return state.currentFlow();
     }
 
-    private RiverState getRiverState(String name) {
-        return rivers.computeIfAbsent(name, key -> new RiverState());
-    }
-
-    private double requireNumber(Expr expr, Token context) {
+    private Object requireNumberValue(Expr expr, Token context) {
         Object value = evaluate(expr);
         if (!(value instanceof Double)) {
             throw new RuntimeError(context, "Expected number.");
         }
-        return (double) value;
+        return value;
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    private int groupNode(String name, RiverGroup group) {
+        int node = -1;
+        for (int i = 0; i < group.size(); i++) {
+            node = trace.tape.add(node, trace.flow(group.memberName(name, i),
+                    group.intrinsicFlow[i], group.incomingFlow[i], group.damFactor[i]));
+        }
+        return node;
+    }
+
+    // Records every flow computation from here on so that the final flows
+    // can be differentiated; see SensitivityTrace. Memoization is turned off,
+    // since a cached result would carry another call's derivatives.
+    void traceSensitivity() {
+        trace = new SensitivityTrace(globals.values().get("rainfall"));
+    }
+
+    void printSensitivities() {
+        trace.print(rivers, out);
+    }
+
+    SensitivityTrace sensitivityTrace() {
+        return trace;
+    }
+
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
         if (object instanceof Double) {
             String text = object.toString();
@@ -269,39 +899,76 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return object.toString();
     }
 
-    private void printRiverSummary() {
-        if (rivers.isEmpty()) {
-            System.out.println("No river flows computed.");
-            return;
+    double rainfall() {
+        return rainfallMm;
+    }
+
+    // Takes each bound river's default flow from the grid from now on.
+    void useRainfallGrid(RainfallGrid grid) {
+        rainfallGrid = grid;
+    }
+
+    RiverStore riverStore() {
+        return rivers;
+    }
+
+    // Branches this interpreter between statements. The rivers seen so far
+    // become a frozen shared base; this interpreter and the fork each get a
+    // copy-on-write layer over it, so a branch only pays for the rivers it
+    // touches and branches can run on separate threads.
+    Interpreter fork(PrintStream out, String programName) {
+        if (environment != globals) {
+            throw new IllegalStateException("Can only fork between top-level statements.");
         }
-        System.out.println();
-        System.out.printf("== Final river flows with %.1f mm rainfall ==%n", rainfallMm);
-        for (Map.Entry<String, RiverState> entry : rivers.entrySet()) {
-            RiverState state = entry.getValue();
-            System.out.printf("%-20s %.2f L/s (dam %.2fx)%n", entry.getKey(), state.currentFlow(), state.damFactor);
+        RiverStore base = rivers;
+        rivers = base.fork();
+
+        Interpreter branch = new Interpreter(rainfallMm, out, programName);
+        branch.rivers = base.fork();
+        for (Map.Entry<String, Object> entry : globals.values().entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof LoxFunction && ((LoxFunction) value).closure() == globals) {
+                // Top-level functions must see the branch's globals.
+                value = ((LoxFunction) value).rebind(branch.globals);
+            }
+            branch.globals.values().put(entry.getKey(), value);
         }
+        if (memoCallees != null) branch.memoCallees = new HashSet<>(memoCallees);
+        if (imported != null) branch.imported = new HashSet<>(imported);
+        return branch;
     }
 
-    private static class RiverState {
-        private double intrinsicFlow = 0.0;
-        private double incomingFlow = 0.0;
-        private double damFactor = 1.0;
+    Environment globals() {
+        return globals;
+    }
 
-        void setIntrinsicFlow(double flow) {
-            intrinsicFlow = flow;
-            incomingFlow = 0.0;
-        }
+    RiverSummary summary() {
+        RiverSummary summary = new RiverSummary(rainfallMm, rivers.size());
+        rivers.forEach((name, state) -> {
+            if (summaryRivers == null || summaryRivers.contains(name)) {
+                summary.add(name, state.currentFlow(), state.damFactor);
+            }
+        });
+        return summary;
+    }
 
-        void addIncomingFlow(double flow) {
-            incomingFlow += flow;
-        }
+    // Whether the run imported any module, whose files can change without
+    // the program's own source changing.
+    boolean importedModules() {
+        return imported != null && !imported.isEmpty();
+    }
 
-        void setDamFactor(double factor) {
-            damFactor = factor;
-        }
+    void summarizeOnly(Set<String> names) {
+        summaryRivers = names;
+    }
 
-        double currentFlow() {
-            return (intrinsicFlow + incomingFlow) * damFactor;
-        }
+    void printRiverSummary() {
+        FlowEvents.Flush event = new FlowEvents.Flush();
+        event.begin();
+        summary().print(out);
+        event.program = programName;
+        event.rivers = rivers.size();
+        event.rainfall = rainfallMm;
+        event.commit();
     }
 }
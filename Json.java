@@ -0,0 +1,55 @@
+// Just enough JSON writing for the server's responses.
+final class Json {
+    private Json() {}
+
+    static void quote(StringBuilder builder, String text) {
+        builder.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+
+    // JSON has no NaN or Infinity, so those are written as null.
+    static void number(StringBuilder builder, double value) {
+        if (Double.isFinite(value)) {
+            builder.append(value);
+        } else {
+            builder.append("null");
+        }
+    }
+
+    static void stringArray(StringBuilder builder, Iterable<String> values) {
+        builder.append('[');
+        boolean first = true;
+        for (String value : values) {
+            if (!first) builder.append(',');
+            quote(builder, value);
+            first = false;
+        }
+        builder.append(']');
+    }
+}
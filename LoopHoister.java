@@ -0,0 +1,474 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Builds a while loop with its loop-invariant expressions hoisted.
+//
+// An expression is invariant when nothing it reads can change while the
+// loop runs: it reads no variable that the loop declares or assigns, no
+// river that the loop mentions, no indexed river, and has no side effects.
+// Each maximal invariant expression that does real work (an operator, not a
+// lone literal or name) is wrapped in an Expr.Hoisted. The interpreter gives
+// each running loop a frame of hoisted slots, evaluates a hoisted expression
+// the first time it is reached, and reuses the value for the rest of that
+// run of the loop. Evaluating on first use rather than up front keeps
+// short-circuiting and runtime errors exactly where they were.
+//
+// Loops are hoisted as the parser finishes them, innermost first, so an
+// outer loop may take over an expression an inner loop already hoisted.
+final class LoopHoister implements Stmt.Visitor<Stmt>, Expr.Visitor<Expr> {
+  private final int depth;
+  private final Set<String> written;
+  // A call or an import can assign any global or river, so loops that
+  // contain one only hoist expressions that read no variables at all.
+  private final boolean calls;
+  private final Map<Expr, Boolean> invariant = new IdentityHashMap<>();
+  private int slots = 0;
+
+  private LoopHoister(int depth, Set<String> written, boolean calls) {
+    this.depth = depth;
+    this.written = written;
+    this.calls = calls;
+  }
+
+  static Stmt.While hoist(Expr condition, Stmt body, int depth) {
+    Set<String> written = new HashSet<>();
+    WriteCollector collector = new WriteCollector(written);
+    collector.expr(condition);
+    collector.stmt(body);
+
+    LoopHoister hoister = new LoopHoister(depth, written, collector.calls);
+    Expr newCondition = hoister.rewrite(condition);
+    Stmt newBody = hoister.stmt(body);
+    return new Stmt.While(newCondition, newBody, depth, hoister.slots);
+  }
+
+  private Stmt stmt(Stmt stmt) {
+    return stmt == null ? null : stmt.accept(this);
+  }
+
+  private Expr rewrite(Expr expr) {
+    if (expr == null) return null;
+    if (isInvariant(expr) && doesWork(expr)) {
+      return new Expr.Hoisted(depth, slots++, unwrap(expr));
+    }
+    return expr.accept(this);
+  }
+
+  private RiverRef ref(RiverRef ref) {
+    if (!ref.isIndexed()) return ref;
+    return new RiverRef(ref.token, rewrite(ref.index));
+  }
+
+  private static boolean doesWork(Expr expr) {
+    return expr instanceof Expr.Binary
+        || expr instanceof Expr.Unary
+        || expr instanceof Expr.Logical
+        || expr instanceof Expr.Grouping;
+  }
+
+  private boolean isInvariant(Expr expr) {
+    Boolean known = invariant.get(expr);
+    if (known != null) return known;
+
+    boolean result;
+    if (expr instanceof Expr.Literal) {
+      result = true;
+    } else if (expr instanceof Expr.Variable) {
+      result = !calls && !written.contains(((Expr.Variable) expr).name.lexeme);
+    } else if (expr instanceof Expr.Grouping) {
+      result = isInvariant(((Expr.Grouping) expr).expression);
+    } else if (expr instanceof Expr.Unary) {
+      result = isInvariant(((Expr.Unary) expr).right);
+    } else if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      result = isInvariant(binary.left) && isInvariant(binary.right);
+    } else if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical) expr;
+      result = isInvariant(logical.left) && isInvariant(logical.right);
+    } else if (expr instanceof Expr.Hoisted) {
+      result = isInvariant(((Expr.Hoisted) expr).expression);
+    } else {
+      // Assignments, calls, river reads and anything newer.
+      result = false;
+    }
+    invariant.put(expr, result);
+    return result;
+  }
+
+  // Inner loops' hoists inside an expression this loop takes over are
+  // dissolved; the outer slot now covers them.
+  private Expr unwrap(Expr expr) {
+    if (expr instanceof Expr.Hoisted) {
+      return unwrap(((Expr.Hoisted) expr).expression);
+    }
+    if (expr instanceof Expr.Grouping) {
+      return new Expr.Grouping(unwrap(((Expr.Grouping) expr).expression));
+    }
+    if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      return new Expr.Unary(unary.operator, unwrap(unary.right));
+    }
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      return new Expr.Binary(unwrap(binary.left), binary.operator, unwrap(binary.right));
+    }
+    if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical) expr;
+      return new Expr.Logical(unwrap(logical.left), logical.operator, unwrap(logical.right));
+    }
+    return expr;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    List<Stmt> statements = new ArrayList<>(stmt.statements.size());
+    for (Stmt statement : stmt.statements) {
+      statements.add(stmt(statement));
+    }
+    return new Stmt.Block(Collections.unmodifiableList(statements));
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    return new Stmt.Expression(rewrite(stmt.expression));
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    return new Stmt.Print(rewrite(stmt.expression));
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    return new Stmt.Var(stmt.name, rewrite(stmt.initializer));
+  }
+
+  @Override
+  public Stmt visitRiverStmt(Stmt.River stmt) {
+    return new Stmt.River(ref(stmt.name), rewrite(stmt.flowRate));
+  }
+
+  @Override
+  public Stmt visitGroupStmt(Stmt.Group stmt) {
+    return new Stmt.Group(stmt.name, rewrite(stmt.first), rewrite(stmt.end), rewrite(stmt.flowRate));
+  }
+
+  @Override
+  public Stmt visitOutputStmt(Stmt.Output stmt) {
+    return new Stmt.Output(ref(stmt.riverName));
+  }
+
+  @Override
+  public Stmt visitCombineStmt(Stmt.Combine stmt) {
+    List<RiverRef> sources = new ArrayList<>(stmt.sources.size());
+    for (RiverRef source : stmt.sources) {
+      sources.add(ref(source));
+    }
+    return new Stmt.Combine(ref(stmt.name), Collections.unmodifiableList(sources));
+  }
+
+  @Override
+  public Stmt visitFlowStmt(Stmt.Flow stmt) {
+    return new Stmt.Flow(ref(stmt.from), ref(stmt.to));
+  }
+
+  @Override
+  public Stmt visitDamStmt(Stmt.Dam stmt) {
+    return new Stmt.Dam(ref(stmt.riverName), stmt.mode, rewrite(stmt.adjustment));
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    return new Stmt.If(rewrite(stmt.condition), stmt(stmt.thenBranch), stmt(stmt.elseBranch));
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    return new Stmt.While(rewrite(stmt.condition), stmt(stmt.body), stmt.depth, stmt.hoistedSlots);
+  }
+
+  // A function body runs in its own loop frames wherever it is called from.
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitImportStmt(Stmt.Import stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    return new Stmt.Return(stmt.keyword, rewrite(stmt.value));
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    return new Expr.Binary(rewrite(expr.left), expr.operator, rewrite(expr.right));
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    return new Expr.Grouping(rewrite(expr.expression));
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    return new Expr.Unary(expr.operator, rewrite(expr.right));
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    return new Expr.Assign(expr.name, rewrite(expr.value));
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    return new Expr.Logical(rewrite(expr.left), expr.operator, rewrite(expr.right));
+  }
+
+  @Override
+  public Expr visitIndexExpr(Expr.Index expr) {
+    return new Expr.Index(expr.name, rewrite(expr.index));
+  }
+
+  @Override
+  public Expr visitHoistedExpr(Expr.Hoisted expr) {
+    // Hoisted by an inner loop and not invariant here: leave it to that loop,
+    // but look inside for anything this loop can take.
+    return new Expr.Hoisted(expr.depth, expr.slot, rewrite(expr.expression));
+  }
+
+  @Override
+  public Expr visitSumExpr(Expr.Sum expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+    for (Expr argument : expr.arguments) {
+      arguments.add(rewrite(argument));
+    }
+    return new Expr.Call(rewrite(expr.callee), expr.paren, Collections.unmodifiableList(arguments));
+  }
+
+  // Every name a loop might change: variables it declares or assigns, and
+  // every plain river name it mentions. Also notes whether it calls or
+  // imports anything, which could change any name.
+  private static final class WriteCollector implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+    private final Set<String> written;
+    boolean calls = false;
+
+    WriteCollector(Set<String> written) {
+      this.written = written;
+    }
+
+    void stmt(Stmt stmt) {
+      if (stmt != null) stmt.accept(this);
+    }
+
+    void expr(Expr expr) {
+      if (expr != null) expr.accept(this);
+    }
+
+    private void ref(RiverRef ref) {
+      if (ref.isIndexed()) {
+        expr(ref.index);
+      } else {
+        written.add(ref.token.lexeme);
+      }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      for (Stmt statement : stmt.statements) {
+        stmt(statement);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      expr(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      written.add(stmt.name.lexeme);
+      expr(stmt.initializer);
+      return null;
+    }
+
+    @Override
+    public Void visitRiverStmt(Stmt.River stmt) {
+      ref(stmt.name);
+      expr(stmt.flowRate);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupStmt(Stmt.Group stmt) {
+      written.add(stmt.name.lexeme);
+      expr(stmt.first);
+      expr(stmt.end);
+      expr(stmt.flowRate);
+      return null;
+    }
+
+    @Override
+    public Void visitOutputStmt(Stmt.Output stmt) {
+      ref(stmt.riverName);
+      return null;
+    }
+
+    @Override
+    public Void visitCombineStmt(Stmt.Combine stmt) {
+      ref(stmt.name);
+      for (RiverRef source : stmt.sources) {
+        ref(source);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitFlowStmt(Stmt.Flow stmt) {
+      ref(stmt.from);
+      ref(stmt.to);
+      return null;
+    }
+
+    @Override
+    public Void visitDamStmt(Stmt.Dam stmt) {
+      ref(stmt.riverName);
+      expr(stmt.adjustment);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      expr(stmt.condition);
+      stmt(stmt.thenBranch);
+      stmt(stmt.elseBranch);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      expr(stmt.condition);
+      stmt(stmt.body);
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      expr(expr.left);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      expr(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      written.add(expr.name.lexeme);
+      expr(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      expr(expr.left);
+      expr(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+      expr(expr.index);
+      return null;
+    }
+
+    @Override
+    public Void visitHoistedExpr(Expr.Hoisted expr) {
+      expr(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitSumExpr(Expr.Sum expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      written.add(stmt.name.lexeme);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      expr(stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+      calls = true;
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      calls = true;
+      expr(expr.callee);
+      for (Expr argument : expr.arguments) {
+        expr(argument);
+      }
+      return null;
+    }
+  }
+}
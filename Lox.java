@@ -1,28 +1,41 @@
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
 
 public class Lox {
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
     private static double rainfallMm = 1.0;
+    static String programName = "<prompt>";
+    private static final ThreadLocal<List<String>> errorSink = new ThreadLocal<>();
 
     public static void main(String[] args) throws IOException {
+        if (args.length >= 1 && args[0].startsWith("--")) {
+            runMode(args[0], Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         if (args.length > 2) {
             System.out.println("Usage: jlox [script] [rainfallMm]");
             System.exit(64);
         } else if (args.length >= 1) {
             if (args.length == 2) {
-                try {
-                    rainfallMm = Double.parseDouble(args[1]);
-                } catch (NumberFormatException ex) {
-                    System.out.println("Rainfall must be a number.");
-                    System.exit(64);
-                }
+                rainfallMm = parseRainfall(args[1]);
             }
             runFile(args[0]);
         } else {
@@ -30,9 +43,216 @@ public class Lox {
         }
     }
 
-    private static void runFile(String path) throws IOException {
+    private static void runMode(String mode, String[] args) throws IOException {
+        switch (mode) {
+            case "--serve":
+                SimulationServer.main(args);
+                return;
+            case "--batch":
+                System.exit(BatchRunner.main(args));
+                return;
+            case "--branches":
+                System.exit(ScenarioBranches.main(args));
+                return;
+            case "--watch":
+                WatchMode.main(args);
+                return;
+            case "--stream":
+                if (args.length < 1 || args.length > 2) break;
+                if (args.length == 2) rainfallMm = parseRainfall(args[1]);
+                streamFile(args[0]);
+                return;
+            case "--edges": {
+                List<String> positional = new ArrayList<>();
+                int threads = 1;
+                ConcurrentRiverState.Reduction reduction = ConcurrentRiverState.Reduction.PAIRWISE;
+                boolean valid = true;
+                for (int i = 0; i < args.length && valid; i++) {
+                    if (args[i].equals("--threads") && i + 1 < args.length) {
+                        try {
+                            threads = Integer.parseInt(args[++i]);
+                        } catch (NumberFormatException ex) {
+                            valid = false;
+                        }
+                        valid &= threads >= 1;
+                    } else if (args[i].equals("--reduce") && i + 1 < args.length) {
+                        String name = args[++i];
+                        valid = name.equals("striped") || name.equals("pairwise");
+                        if (name.equals("striped")) reduction = ConcurrentRiverState.Reduction.STRIPED;
+                    } else {
+                        positional.add(args[i]);
+                    }
+                }
+                if (!valid || positional.size() < 1 || positional.size() > 3) break;
+                if (positional.size() >= 2) rainfallMm = parseRainfall(positional.get(1));
+                runEdgeList(positional.get(0), positional.size() == 3 ? positional.get(2) : null, threads, reduction);
+                return;
+            }
+            case "--raster": {
+                List<String> positional = new ArrayList<>();
+                int step = 0;
+                boolean valid = true;
+                for (int i = 0; i < args.length && valid; i++) {
+                    if (args[i].equals("--step") && i + 1 < args.length) {
+                        try {
+                            step = Integer.parseInt(args[++i]);
+                        } catch (NumberFormatException ex) {
+                            valid = false;
+                        }
+                    } else if (args[i].equals("--rainfall") && i + 1 < args.length) {
+                        rainfallMm = parseRainfall(args[++i]);
+                    } else {
+                        positional.add(args[i]);
+                    }
+                }
+                if (!valid || positional.size() != 3) break;
+                rasterFile(positional.get(0), positional.get(1), positional.get(2), step);
+                return;
+            }
+            case "--cached":
+                if (args.length < 2 || args.length > 3) break;
+                if (args.length == 3) rainfallMm = parseRainfall(args[2]);
+                cachedFile(args[0], args[1]);
+                return;
+            case "--ast": {
+                if (args.length < 1 || args.length > 2) break;
+                int from = 1;
+                int to = Integer.MAX_VALUE;
+                if (args.length == 2) {
+                    String[] range = args[1].split("-", -1);
+                    try {
+                        from = Integer.parseInt(range[0]);
+                        to = range.length == 2 ? Integer.parseInt(range[1]) : from;
+                    } catch (NumberFormatException ex) {
+                        break;
+                    }
+                    if (range.length > 2 || to < from) break;
+                }
+                printAst(args[0], from, to);
+                return;
+            }
+            case "--flat":
+                if (args.length < 1 || args.length > 2) break;
+                if (args.length == 2) rainfallMm = parseRainfall(args[1]);
+                flatFile(args[0]);
+                return;
+            case "--checkpoint":
+                if (args.length < 2 || args.length > 3) break;
+                if (args.length == 3) rainfallMm = parseRainfall(args[2]);
+                checkpointFile(args[0], args[1]);
+                return;
+            case "--solve":
+                System.exit(GoalSeek.main(args));
+                return;
+            case "--targets":
+                if (args.length < 2 || args.length > 3) break;
+                if (args.length == 3) rainfallMm = parseRainfall(args[2]);
+                sliceFile(args[1], new LinkedHashSet<>(Arrays.asList(args[0].split(","))));
+                return;
+            case "--outputs-only":
+                if (args.length < 1 || args.length > 2) break;
+                if (args.length == 2) rainfallMm = parseRainfall(args[1]);
+                sliceFile(args[0], null);
+                return;
+            case "--shard":
+                System.exit(ShardCoordinator.main(args));
+                return;
+            case "--shard-worker":
+                System.exit(ShardWorker.main(args));
+                return;
+            case "--check":
+                System.exit(NetworkCheck.main(args));
+                return;
+            case "--sensitivity":
+                if (args.length < 1 || args.length > 2) break;
+                if (args.length == 2) rainfallMm = parseRainfall(args[1]);
+                sensitivityFile(args[0]);
+                return;
+            case "--resume":
+                if (args.length != 2) break;
+                resumeFile(args[0], args[1]);
+                return;
+        }
+        System.out.println("Usage: jlox [script] [rainfallMm]");
+        System.out.println("       jlox --serve [port] [cacheSize] [resultDirectory|-] [moduleDirectory]");
+        System.out.println("       jlox --batch <directory|manifest> [options]");
+        System.out.println("       jlox --watch <script> [rainfallMm]");
+        System.out.println("       jlox --branches <base> <scenario>... [--rainfall <mm>]");
+        System.out.println("       jlox --stream <script> [rainfallMm]");
+        System.out.println("       jlox --edges <csv> [rainfallMm] [script] [--threads <n>] [--reduce pairwise|striped]");
+        System.out.println("       jlox --shard <csv> --workers <n> [--rainfall <mm>]");
+        System.out.println("       jlox --cached <directory> <script> [rainfallMm]");
+        System.out.println("       jlox --ast <script> [fromLine-toLine]");
+        System.out.println("       jlox --flat <script> [rainfallMm]");
+        System.out.println("       jlox --raster <raster> <bindings> <script> [--step <n>] [--rainfall <mm>]");
+        System.out.println("       jlox --checkpoint <script> <checkpoint> [rainfallMm]");
+        System.out.println("       jlox --resume <checkpoint> <script>");
+        System.out.println("       jlox --sensitivity <script> [rainfallMm]");
+        System.out.println("       jlox --targets <river>,... <script> [rainfallMm]");
+        System.out.println("       jlox --outputs-only <script> [rainfallMm]");
+        System.out.println("       jlox --check <script>...");
+        System.out.println("       jlox --solve <script> --target <river>=<flow>... --free <river>=<min>:<max>...");
+        System.exit(64);
+    }
+
+    private static double parseRainfall(String text) {
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException ex) {
+            System.out.println("Rainfall must be a number.");
+            System.exit(64);
+            return 0;
+        }
+    }
+
+    private static String readSource(String path) throws IOException {
+        programName = path;
+        FlowEvents.Load load = new FlowEvents.Load();
+        load.begin();
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, StandardCharsets.UTF_8));
+        load.program = path;
+        load.bytes = bytes.length;
+        load.commit();
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void runFile(String path) throws IOException {
+        run(readSource(path));
+
+        if (hadError)
+            System.exit(65);
+        if (hadRuntimeError)
+            System.exit(70);
+    }
+
+    // Scans, parses and executes the file as one pull-driven pipeline: each
+    // top-level statement runs as soon as it is parsed and is then dropped,
+    // so neither the token list nor the AST is ever materialised. Statements
+    // before a syntax error have already run by the time it is reported.
+    private static void streamFile(String path) throws IOException {
+        programName = path;
+        Parser parser = new Parser(new Scanner(MappedSource.map(Paths.get(path))));
+        Interpreter interpreter = new Interpreter(rainfallMm);
+
+        FlowEvents.Interpret event = new FlowEvents.Interpret();
+        event.begin();
+        int statements = 0;
+        try {
+            while (parser.hasNext()) {
+                Stmt statement = parser.next();
+                statements++;
+                if (!hadError) interpreter.step(statement);
+            }
+            if (!hadError) interpreter.printRiverSummary();
+        } catch (RuntimeError error) {
+            runtimeError(error);
+        } finally {
+            event.program = path;
+            event.statements = statements;
+            event.rivers = interpreter.riverStore().size();
+            event.rainfall = rainfallMm;
+            event.commit();
+        }
 
         if (hadError)
             System.exit(65);
@@ -40,33 +260,255 @@ public class Lox {
             System.exit(70);
     }
 
+    // Runs the file like runFile, but keeps the result in a ResultCache in
+    // the directory, so running the same source with the same rainfall
+    // again just prints the stored output and summary.
+    private static void cachedFile(String directory, String path) throws IOException {
+        String source = readSource(path);
+        ResultCache cache = new ResultCache(SimulationServer.RESULT_MEMORY_LIMIT, Paths.get(directory),
+                SimulationServer.RESULT_DISK_LIMIT);
+        String key = ResultCache.key(Program.hash(source), rainfallMm, "");
+        ResultCache.Result cached = cache.get(key);
+        if (cached != null) {
+            System.out.print(cached.output);
+            cached.summary.print(System.out);
+            return;
+        }
+
+        Program program = Program.compile(path, source);
+        if (hadError)
+            System.exit(65);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Interpreter interpreter = program.newEvaluation(rainfallMm,
+                new PrintStream(buffer, true, StandardCharsets.UTF_8));
+        try {
+            interpreter.run(program.statements);
+        } catch (RuntimeError error) {
+            System.out.print(buffer.toString(StandardCharsets.UTF_8));
+            runtimeError(error);
+            System.exit(70);
+        }
+        String printed = buffer.toString(StandardCharsets.UTF_8);
+        RiverSummary summary = interpreter.summary();
+        if (!interpreter.importedModules()) cache.put(key, summary, printed);
+        System.out.print(printed);
+        summary.print(System.out);
+    }
+
+    // Dumps the program's syntax tree as S-expressions, one top-level
+    // statement per line, printing each as soon as it is parsed. With a line
+    // range, only statements starting in it are printed and parsing stops
+    // after it.
+    private static void printAst(String path, int from, int to) throws IOException {
+        programName = path;
+        Parser parser = new Parser(new Scanner(MappedSource.map(Paths.get(path))));
+        AstPrinter printer = new AstPrinter();
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+        while (parser.hasNext()) {
+            Stmt statement = parser.next();
+            if (statement == null) continue;
+            if (AstPrinter.line(statement) > to) break;
+            printer.print(statement, out, from, to);
+        }
+        out.flush();
+
+        if (hadError)
+            System.exit(65);
+    }
+
+    // Parses the file straight into a FlatAst and runs that, keeping no Stmt
+    // or Expr objects. Programs using anything the flat form does not cover
+    // are run the ordinary way instead.
+    private static void flatFile(String path) throws IOException {
+        programName = path;
+        List<String> errors = new ArrayList<>();
+        FlatAst ast = collectingErrors(errors, () -> {
+            try {
+                return new Parser(new Scanner(MappedSource.map(Paths.get(path)))).parseFlat();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+        if (ast == null) {
+            runFile(path);
+            return;
+        }
+        for (String error : errors) {
+            System.err.println(error);
+        }
+        if (!errors.isEmpty())
+            System.exit(65);
+
+        new FlatInterpreter(ast, rainfallMm, System.out, path).interpret();
+        if (hadRuntimeError)
+            System.exit(70);
+    }
+
+    // Loads a network from a CSV edge list, then runs an optional program
+    // (outputs, extra dams, ...) on top of it.
+    private static void runEdgeList(String csv, String script, int threads,
+                                    ConcurrentRiverState.Reduction reduction) throws IOException {
+        programName = csv;
+        Interpreter interpreter = new Interpreter(rainfallMm);
+        try {
+            EdgeListLoader.load(Paths.get(csv), interpreter, threads, reduction);
+        } catch (RuntimeError error) {
+            runtimeError(error);
+            System.exit(70);
+        } catch (NoSuchFileException ex) {
+            System.err.println("Cannot read " + csv + ".");
+            System.exit(66);
+        } catch (IOException ex) {
+            // A malformed row; the message names the file and line.
+            System.err.println(ex.getMessage());
+            System.exit(65);
+        }
+
+        List<Stmt> statements = List.of();
+        if (script != null) {
+            Program program = Program.compile(script, readSource(script));
+            if (hadError)
+                System.exit(65);
+            statements = program.statements;
+        }
+        interpreter.interpret(statements);
+        if (hadRuntimeError)
+            System.exit(70);
+    }
+
+    // Runs the program with each bound river's default flow taken from its
+    // cells in one timestep of a rainfall raster; other rivers get rainfallMm.
+    private static void rasterFile(String raster, String bindings, String path, int step) throws IOException {
+        RainfallGrid grid = RainfallGrid.load(Paths.get(raster), Paths.get(bindings), step);
+        Program program = Program.compile(path, readSource(path));
+        if (hadError)
+            System.exit(65);
+
+        Interpreter interpreter = program.newEvaluation(rainfallMm, System.out);
+        interpreter.useRainfallGrid(grid);
+        interpreter.interpret(program.statements);
+        if (hadRuntimeError)
+            System.exit(70);
+    }
+
+    // Runs the base network and snapshots the resulting state so later
+    // scenarios can --resume from it instead of re-executing it.
+    private static void checkpointFile(String path, String checkpoint) throws IOException {
+        String source = readSource(path);
+        Program program = Program.compile(path, source);
+        if (hadError)
+            System.exit(65);
+
+        Interpreter interpreter = program.newEvaluation(rainfallMm, System.out);
+        interpreter.interpret(program.statements);
+        if (hadRuntimeError)
+            System.exit(70);
+
+        try {
+            Checkpoint.save(interpreter, program, source, Paths.get(checkpoint));
+        } catch (IOException ex) {
+            System.err.println("Cannot write checkpoint: " + ex.getMessage());
+            System.exit(65);
+        }
+    }
+
+    private static void resumeFile(String checkpoint, String path) throws IOException {
+        Interpreter interpreter = Checkpoint.restore(Paths.get(checkpoint), System.out, path);
+        Program program = Program.compile(path, readSource(path));
+        if (hadError)
+            System.exit(65);
+
+        interpreter.interpret(program.statements);
+        if (hadRuntimeError)
+            System.exit(70);
+    }
+
+    // Runs the program once while recording its flow arithmetic, then prints
+    // the derivatives of each output river from one reverse sweep apiece.
+    private static void sensitivityFile(String path) throws IOException {
+        Program program = Program.compile(path, readSource(path));
+        if (hadError)
+            System.exit(65);
+
+        Interpreter interpreter = program.newEvaluation(rainfallMm, System.out);
+        interpreter.traceSensitivity();
+        interpreter.interpret(program.statements);
+        if (hadRuntimeError)
+            System.exit(70);
+
+        interpreter.printSensitivities();
+    }
+
+    // Runs only the statements that can affect the target rivers and
+    // summarises just those, or with no targets runs what the program's own
+    // output statements need and prints nothing else.
+    private static void sliceFile(String path, Set<String> targets) throws IOException {
+        Program program = Program.compile(path, readSource(path));
+        if (hadError)
+            System.exit(65);
+
+        Interpreter interpreter = program.newEvaluation(rainfallMm, System.out);
+        if (targets != null) {
+            interpreter.summarizeOnly(targets);
+            interpreter.interpret(FlowSlice.slice(program.statements, targets));
+        } else {
+            try {
+                interpreter.run(FlowSlice.outputsOnly(program.statements));
+            } catch (RuntimeError error) {
+                runtimeError(error);
+            }
+        }
+        if (hadRuntimeError)
+            System.exit(70);
+    }
+
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
 
+        // One session for the whole prompt so rivers and variables declared
+        // on earlier lines stay live; each line only runs its own statements.
+        Interpreter session = new Interpreter(rainfallMm);
         for (;;) {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null)
                 break;
-            run(line);
+            String command = line.trim();
+            if (command.equals(":summary")) {
+                session.printRiverSummary();
+            } else if (command.equals(":quit")) {
+                break;
+            } else {
+                runIncremental(session, line);
+            }
             hadError = false;
             hadRuntimeError = false;
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+    private static void runIncremental(Interpreter session, String source) {
+        Program program = Program.compile(programName, source);
 
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+        if (hadError)
+            return;
+
+        try {
+            session.run(program.statements);
+        } catch (RuntimeError error) {
+            runtimeError(error);
+        }
+    }
+
+    private static void run(String source) {
+        Program program = Program.compile(programName, source);
 
         if (hadError)
             return;
 
-        Interpreter interpreter = new Interpreter(rainfallMm);
-        interpreter.interpret(statements);
+        Interpreter interpreter = program.newEvaluation(rainfallMm, System.out);
+        interpreter.interpret(program.statements);
     }
 
     static void error(int line, String message) {
@@ -82,11 +524,41 @@ public class Lox {
     }
 
     private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
+        String text = "[line " + line + "] Error" + where + ": " + message;
+        List<String> sink = errorSink.get();
+        if (sink != null) {
+            sink.add(text);
+            return;
+        }
+        System.err.println(text);
         hadError = true;
     }
 
+    // Runs the action with scan and parse errors on this thread appended to
+    // the sink instead of printed, leaving hadError untouched. Used wherever
+    // several programs are compiled concurrently.
+    static <T> T collectingErrors(List<String> sink, Supplier<T> action) {
+        List<String> previous = errorSink.get();
+        errorSink.set(sink);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                errorSink.remove();
+            } else {
+                errorSink.set(previous);
+            }
+        }
+    }
+
     static void runtimeError(RuntimeError error) {
+        FlowEvents.RuntimeFailure event = new FlowEvents.RuntimeFailure();
+        if (event.isEnabled()) {
+            event.program = programName;
+            event.message = error.getMessage();
+            event.line = error.token.line;
+            event.commit();
+        }
         System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
         hadRuntimeError = true;
     }
@@ -0,0 +1,53 @@
+import java.util.List;
+
+// A function value: the declaration plus the environment it was declared in.
+class LoxFunction {
+    private final Stmt.Function declaration;
+    private final Environment closure;
+
+    LoxFunction(Stmt.Function declaration, Environment closure) {
+        this.declaration = declaration;
+        this.closure = closure;
+    }
+
+    int arity() {
+        return declaration.params.size();
+    }
+
+    boolean isPure() {
+        return declaration.pure;
+    }
+
+    Environment closure() {
+        return closure;
+    }
+
+    Stmt.Function declaration() {
+        return declaration;
+    }
+
+    // The same function closing over a different environment, for copying
+    // top-level functions into a forked interpreter.
+    LoxFunction rebind(Environment environment) {
+        return new LoxFunction(declaration, environment);
+    }
+
+    Object call(Interpreter interpreter, List<Object> arguments) {
+        Environment environment = new Environment(closure, true);
+        for (int i = 0; i < declaration.params.size(); i++) {
+            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+        }
+
+        try {
+            interpreter.executeBlock(declaration.body, environment);
+        } catch (Return returnValue) {
+            return returnValue.value;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + declaration.name.lexeme + ">";
+    }
+}
@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A source file memory-mapped as a CharSequence, one char per byte, so the
+// scanner can walk it without first copying it into a String. Every
+// character the grammar cares about is ASCII; text handed out through
+// subSequence (lexemes and string literals) is decoded as UTF-8. Limited to
+// files under 2 GB by the CharSequence interface.
+final class MappedSource implements CharSequence {
+    private final MappedByteBuffer buffer;
+    private final int length;
+
+    private MappedSource(MappedByteBuffer buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    static MappedSource map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to stream (over 2 GB).");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new MappedSource(buffer, (int) size);
+        }
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (buffer.get(index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        return toString(from, to);
+    }
+
+    @Override
+    public String toString() {
+        return toString(0, length);
+    }
+
+    private String toString(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Compiled modules for import statements, shared by every program and thread
+// in the process. Each file is parsed once and reused until its
+// modification time changes. Programs are immutable, so one cached module
+// can be executed by any number of interpreters at the same time.
+final class ModuleCache {
+    private static final ConcurrentMap<Path, Module> modules = new ConcurrentHashMap<>();
+
+    private ModuleCache() {}
+
+    private static final class Module {
+        final FileTime modified;
+        final Program program;
+
+        Module(FileTime modified, Program program) {
+            this.modified = modified;
+            this.program = program;
+        }
+    }
+
+    // The compiled module at a real (already resolved) path. Threads asking
+    // for the same stale or missing module wait for one parse rather than
+    // each doing their own.
+    static Program load(Path path) throws IOException {
+        FileTime modified = Files.getLastModifiedTime(path);
+        Module cached = modules.get(path);
+        if (cached != null && cached.modified.equals(modified)) {
+            return cached.program;
+        }
+
+        try {
+            return modules.compute(path, (key, current) -> {
+                if (current != null && current.modified.equals(modified)) {
+                    return current;
+                }
+                return new Module(modified, compile(key));
+            }).program;
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    static int size() {
+        return modules.size();
+    }
+
+    private static Program compile(Path path) {
+        FlowEvents.Load load = new FlowEvents.Load();
+        load.begin();
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        load.program = path.toString();
+        load.bytes = bytes.length;
+        load.commit();
+        return Program.compileOrThrow(path.toString(), new String(bytes, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,846 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Static validation of a program without running it.
+//
+//   jlox --check <script>...
+//
+// One pass over the statements in program order tracks which rivers, groups
+// and variables exist at each point, folds constant expressions far enough
+// to catch type errors and negative dam factors, and records the flow graph.
+// A read that cannot be resolved when it happens is kept until the end of
+// the pass, when it is known whether the name is defined later (read before
+// definition) or nowhere at all; a later definition inside the same loop
+// settles it, since the next iteration sees it. Code in function bodies
+// runs whenever the function is called, so there only existence is checked.
+// Flow cycles are found afterwards by one Tarjan walk over the graph, which
+// keeps the whole check linear in the size of the program.
+//
+// Every problem is reported at once, in line order. Rivers that are declared
+// and never mentioned again are warnings; everything else is an error and
+// makes the exit status 65. Indexes that are only known at runtime are
+// checked per family: reach[i] is fine once any reach[...] river exists.
+final class NetworkCheck implements Stmt.Visitor<Void>, Expr.Visitor<Object> {
+    // Kinds of values that are known without running the program. Constants
+    // are represented by the values themselves.
+    private static final Object NUMBER = new Object();
+    private static final Object STRING = new Object();
+    private static final Object BOOLEAN = new Object();
+    private static final Object NIL = new Object();
+    private static final Object UNKNOWN = new Object();
+
+    // What a pending read was looking for.
+    private static final int RIVER = 0;
+    private static final int FAMILY = 1;
+    private static final int GROUP = 2;
+    private static final int NAME = 3;
+    private static final int ASSIGN = 4;
+
+    private static final class Problem {
+        final Token token;
+        final boolean error;
+        final String message;
+
+        Problem(Token token, boolean error, String message) {
+            this.token = token;
+            this.error = error;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return "[line " + token.line + "] " + (error ? "Error" : "Warning")
+                    + " at '" + token.lexeme + "': " + message;
+        }
+    }
+
+    private static final class Read {
+        final Token token;
+        final String name;
+        final int kind;
+        // The outermost loop open when the read happened, or -1.
+        final int loop;
+
+        Read(Token token, String name, int kind, int loop) {
+            this.token = token;
+            this.name = name;
+            this.kind = kind;
+            this.loop = loop;
+        }
+    }
+
+    private static final class Edge {
+        final int to;
+        final Token token;
+
+        Edge(int to, Token token) {
+            this.to = to;
+            this.token = token;
+        }
+    }
+
+    private final List<Problem> problems = new ArrayList<>();
+
+    private final Map<String, Integer> rivers = new HashMap<>();
+    private final Set<String> families = new HashSet<>();
+    private final Map<String, long[]> groupRanges = new HashMap<>();
+    private final Set<String> groups = new HashSet<>();
+    private final Map<String, Token> declared = new LinkedHashMap<>();
+    private final Set<String> mentioned = new HashSet<>();
+
+    private final Deque<Set<String>> scopes = new ArrayDeque<>();
+    private final Set<String> globals = new HashSet<>();
+
+    // Unresolved reads by name, and reads that only need the name to exist
+    // somewhere by the end.
+    private final Map<String, List<Read>> pending = new HashMap<>();
+    private final List<Read> deferred = new ArrayList<>();
+    private final Deque<Integer> openLoops = new ArrayDeque<>();
+    private int loops = 0;
+    private int functionDepth = 0;
+
+    private final Map<String, Integer> nodes = new HashMap<>();
+    private final List<String> nodeNames = new ArrayList<>();
+    private final List<List<Edge>> edges = new ArrayList<>();
+
+    // Imported modules are walked for what they define but their own
+    // problems are left to checking them directly.
+    private boolean reporting = true;
+    private Path base;
+    private final Set<Path> imported = new HashSet<>();
+
+    private NetworkCheck(Path base) {
+        this.base = base;
+        globals.add("rainfall");
+        scopes.push(globals);
+    }
+
+    static int main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: jlox --check <script>...");
+            return BatchRunner.EXIT_USAGE;
+        }
+        int exitCode = BatchRunner.EXIT_OK;
+        for (String arg : args) {
+            int result = checkFile(arg, System.out);
+            if (result != BatchRunner.EXIT_OK && exitCode != BatchRunner.EXIT_NO_INPUT) {
+                exitCode = result;
+            }
+        }
+        return exitCode;
+    }
+
+    private static int checkFile(String file, PrintStream out) {
+        Path path;
+        String source;
+        try {
+            path = Path.of(file).toRealPath();
+            source = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        } catch (IOException | InvalidPathException ex) {
+            System.err.println("Cannot read " + file + ": " + ex.getMessage());
+            return BatchRunner.EXIT_NO_INPUT;
+        }
+
+        Program program;
+        try {
+            program = Program.compileOrThrow(file, source);
+        } catch (CompileError error) {
+            error.errors.forEach(out::println);
+            out.printf("%s: %d %s.%n", file, error.errors.size(), error.errors.size() == 1 ? "error" : "errors");
+            return BatchRunner.EXIT_COMPILE;
+        }
+
+        NetworkCheck check = new NetworkCheck(path.getParent());
+        check.imported.add(path);
+        List<Problem> problems = check.run(program.statements);
+
+        int errors = 0;
+        for (Problem problem : problems) {
+            out.println(problem);
+            if (problem.error) errors++;
+        }
+        int warnings = problems.size() - errors;
+        out.printf("%s: %d %s, %d %s.%n", file,
+                errors, errors == 1 ? "error" : "errors",
+                warnings, warnings == 1 ? "warning" : "warnings");
+        return errors > 0 ? BatchRunner.EXIT_COMPILE : BatchRunner.EXIT_OK;
+    }
+
+    private List<Problem> run(List<Stmt> statements) {
+        statements(statements);
+        settleReads();
+        for (Map.Entry<String, Token> river : declared.entrySet()) {
+            if (!mentioned.contains(river.getKey())) {
+                boolean group = river.getKey().endsWith("[]");
+                warning(river.getValue(), (group ? "River group '" : "River '")
+                        + river.getValue().lexeme + "' is never used.");
+            }
+        }
+        findCycles();
+        problems.sort(Comparator.comparingInt(problem -> problem.token.line));
+        return problems;
+    }
+
+    private void statements(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement != null) statement.accept(this);
+        }
+    }
+
+    private Object expr(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void error(Token token, String message) {
+        if (reporting) problems.add(new Problem(token, true, message));
+    }
+
+    private void warning(Token token, String message) {
+        if (reporting) problems.add(new Problem(token, false, message));
+    }
+
+    // ---- Names ------------------------------------------------------------
+
+    private boolean isLocal(String name) {
+        for (Set<String> scope : scopes) {
+            if (scope == globals) return false;
+            if (scope.contains(name)) return true;
+        }
+        return false;
+    }
+
+    private void declare(String name) {
+        Set<String> scope = scopes.peek();
+        scope.add(name);
+        if (scope == globals) settle(name, NAME, ASSIGN);
+    }
+
+    private void pend(Token token, String name, int kind, boolean existenceOnly) {
+        if (!reporting) return;
+        if (existenceOnly || functionDepth > 0) {
+            deferred.add(new Read(token, name, kind, -1));
+            return;
+        }
+        int loop = openLoops.isEmpty() ? -1 : openLoops.peekLast();
+        pending.computeIfAbsent(name, key -> new ArrayList<>()).add(new Read(token, name, kind, loop));
+    }
+
+    // A definition has just happened: reads of it still waiting inside a
+    // loop that is open are fine, because the loop comes round again.
+    private void settle(String name, int kind, int otherKind) {
+        List<Read> reads = pending.get(name);
+        if (reads == null || openLoops.isEmpty()) return;
+        int outermost = openLoops.peekLast();
+        reads.removeIf(read -> read.loop == outermost && (read.kind == kind || read.kind == otherKind));
+        if (reads.isEmpty()) pending.remove(name);
+    }
+
+    private void settleReads() {
+        for (List<Read> reads : pending.values()) {
+            for (Read read : reads) {
+                settleRead(read, false);
+            }
+        }
+        for (Read read : deferred) {
+            settleRead(read, true);
+        }
+    }
+
+    private void settleRead(Read read, boolean existenceOnly) {
+        String name = read.name;
+        switch (read.kind) {
+            case RIVER:
+                if (!rivers.containsKey(name)) {
+                    error(read.token, "Undefined river '" + name + "'.");
+                } else if (!existenceOnly) {
+                    error(read.token, "River '" + name + "' is read before it is defined.");
+                }
+                break;
+            case FAMILY:
+                String family = familyOf(name);
+                if (!families.contains(family)) {
+                    error(read.token, "No river '" + family + "[...]' is ever defined.");
+                } else if (!existenceOnly) {
+                    error(read.token, "River '" + family + "[...]' is read before any is defined.");
+                }
+                break;
+            case GROUP:
+                String group = familyOf(name);
+                if (!groups.contains(group)) {
+                    error(read.token, "Undefined river group '" + group + "'.");
+                } else if (!existenceOnly) {
+                    error(read.token, "River group '" + group + "' is used before it is declared.");
+                }
+                break;
+            case NAME:
+                if (rivers.containsKey(name)) {
+                    if (!existenceOnly) error(read.token, "River '" + name + "' is read before it is defined.");
+                } else if (globals.contains(name)) {
+                    if (!existenceOnly) error(read.token, "Variable '" + name + "' is used before it is declared.");
+                } else {
+                    error(read.token, "Undefined variable or river '" + name + "'.");
+                }
+                break;
+            case ASSIGN:
+                if (!globals.contains(name)) {
+                    error(read.token, "Undefined variable '" + name + "'.");
+                } else if (!existenceOnly) {
+                    error(read.token, "Variable '" + name + "' is assigned before it is declared.");
+                }
+                break;
+        }
+    }
+
+    // Families and groups are kept under their own keys ("reach[]" and
+    // "reach[*]") so they never clash with a plain river of the same name.
+    private static String familyOf(String key) {
+        return key.substring(0, key.indexOf('['));
+    }
+
+    // ---- Rivers -----------------------------------------------------------
+
+    // The name of the river a reference denotes, or null when its index is
+    // only known at runtime. Checks the index along the way.
+    private String riverName(RiverRef ref) {
+        if (!ref.isIndexed()) return ref.token.lexeme;
+        return memberName(ref.token, ref.index);
+    }
+
+    private String memberName(Token name, Expr index) {
+        Object value = expr(index);
+        if (isKnown(value) && kindOf(value) != NUMBER) {
+            error(name, "River index must be a number.");
+            return null;
+        }
+        if (!(value instanceof Double)) return null;
+        double d = (double) value;
+        if (d != Math.rint(d) || Math.abs(d) > Interpreter.MAX_INDEX) {
+            error(name, "River index must be a whole number.");
+            return null;
+        }
+        long[] range = groupRanges.get(name.lexeme);
+        if (range != null && (d < range[0] || d >= range[1])) {
+            error(name, "Index " + (long) d + " is outside river group '" + name.lexeme + "'.");
+        }
+        return name.lexeme + "[" + (long) d + "]";
+    }
+
+    // A river that is read. Returns its graph name, if it has one.
+    private String readRiver(RiverRef ref, boolean existenceOnly) {
+        if (ref.wholeGroup) {
+            useGroup(ref.token, existenceOnly);
+            return null;
+        }
+        if (!ref.isIndexed()) {
+            String name = ref.token.lexeme;
+            mentioned.add(name);
+            if (!rivers.containsKey(name)) pend(ref.token, name, RIVER, existenceOnly);
+            return name;
+        }
+        return readMember(ref.token, ref.index, existenceOnly);
+    }
+
+    private String readMember(Token name, Expr index, boolean existenceOnly) {
+        String member = memberName(name, index);
+        String key = name.lexeme + "[]";
+        mentioned.add(key);
+        if (!families.contains(name.lexeme)) pend(name, key, FAMILY, existenceOnly);
+        return member;
+    }
+
+    private void useGroup(Token name, boolean existenceOnly) {
+        String key = name.lexeme + "[*]";
+        mentioned.add(name.lexeme + "[]");
+        if (!groups.contains(name.lexeme)) pend(name, key, GROUP, existenceOnly);
+    }
+
+    // A river that is written. Returns its graph name, if it has one.
+    private String defineRiver(RiverRef ref) {
+        if (!ref.isIndexed()) {
+            String name = ref.token.lexeme;
+            rivers.putIfAbsent(name, ref.token.line);
+            settle(name, RIVER, NAME);
+            return name;
+        }
+        String member = memberName(ref.token, ref.index);
+        if (member != null) rivers.putIfAbsent(member, ref.token.line);
+        families.add(ref.token.lexeme);
+        mentioned.add(ref.token.lexeme + "[]");
+        settle(ref.token.lexeme + "[]", FAMILY, FAMILY);
+        return member;
+    }
+
+    private void edge(String from, String to, Token token) {
+        if (from == null || to == null) return;
+        edges.get(node(from)).add(new Edge(node(to), token));
+    }
+
+    private int node(String name) {
+        Integer node = nodes.get(name);
+        if (node != null) return node;
+        nodes.put(name, nodeNames.size());
+        nodeNames.add(name);
+        edges.add(new ArrayList<>());
+        return nodeNames.size() - 1;
+    }
+
+    // ---- Statements -------------------------------------------------------
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes.push(new HashSet<>());
+        statements(stmt.statements);
+        scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        expr(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        expr(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) expr(stmt.initializer);
+        declare(stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitRiverStmt(Stmt.River stmt) {
+        if (stmt.flowRate != null) requireNumber(expr(stmt.flowRate), stmt.name.token);
+        String name = defineRiver(stmt.name);
+        if (reporting && !stmt.name.isIndexed()) declared.putIfAbsent(name, stmt.name.token);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupStmt(Stmt.Group stmt) {
+        Object first = wholeBound(expr(stmt.first), stmt.name);
+        Object end = wholeBound(expr(stmt.end), stmt.name);
+        if (first instanceof Double && end instanceof Double) {
+            if ((double) end < (double) first) {
+                error(stmt.name, "River group range ends before it starts.");
+            } else if ((double) end - (double) first > Interpreter.MAX_GROUP_SIZE) {
+                error(stmt.name, "River group is too large.");
+            } else {
+                groupRanges.put(stmt.name.lexeme, new long[] {(long) (double) first, (long) (double) end});
+            }
+        } else {
+            groupRanges.remove(stmt.name.lexeme);
+        }
+        if (stmt.flowRate != null) requireNumber(expr(stmt.flowRate), stmt.name);
+
+        String name = stmt.name.lexeme;
+        groups.add(name);
+        families.add(name);
+        settle(name + "[]", FAMILY, FAMILY);
+        settle(name + "[*]", GROUP, GROUP);
+        if (reporting) declared.putIfAbsent(name + "[]", stmt.name);
+        return null;
+    }
+
+    private Object wholeBound(Object value, Token name) {
+        if (isKnown(value) && kindOf(value) != NUMBER) {
+            error(name, "River index must be a number.");
+        } else if (value instanceof Double && (double) value != Math.rint((double) value)) {
+            error(name, "River index must be a whole number.");
+        }
+        return value;
+    }
+
+    @Override
+    public Void visitOutputStmt(Stmt.Output stmt) {
+        readRiver(stmt.riverName, false);
+        return null;
+    }
+
+    @Override
+    public Void visitCombineStmt(Stmt.Combine stmt) {
+        List<String> sources = new ArrayList<>();
+        for (RiverRef source : stmt.sources) {
+            sources.add(readRiver(source, false));
+        }
+        String target = defineRiver(stmt.name);
+        mentioned.add(target);
+        for (String source : sources) {
+            edge(source, target, stmt.name.token);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFlowStmt(Stmt.Flow stmt) {
+        String from = readRiver(stmt.from, false);
+        String to = defineRiver(stmt.to);
+        mentioned.add(to);
+        edge(from, to, stmt.from.token);
+        return null;
+    }
+
+    // Damming a river that does not exist yet quietly creates it, so only
+    // dams on rivers that never exist are reported; a whole-group dam needs
+    // its group to exist already.
+    @Override
+    public Void visitDamStmt(Stmt.Dam stmt) {
+        readRiver(stmt.riverName, !stmt.riverName.wholeGroup);
+        if (stmt.mode.type == TokenType.ADJUST) {
+            Object factor = expr(stmt.adjustment);
+            requireNumber(factor, stmt.mode);
+            if (factor instanceof Double && (double) factor < 0) {
+                error(stmt.mode, "Dam factor cannot be negative.");
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        expr(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        openLoops.push(loops++);
+        expr(stmt.condition);
+        stmt.body.accept(this);
+        openLoops.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name.lexeme);
+        Set<String> parameters = new HashSet<>();
+        for (Token param : stmt.params) {
+            parameters.add(param.lexeme);
+        }
+        scopes.push(parameters);
+        functionDepth++;
+        statements(stmt.body);
+        functionDepth--;
+        scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) expr(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        Path path;
+        try {
+            path = base.resolve((String) stmt.path.literal).toRealPath();
+        } catch (IOException | InvalidPathException ex) {
+            error(stmt.path, "Cannot find module " + stmt.path.lexeme + ".");
+            return null;
+        }
+        if (!imported.add(path)) return null;
+
+        Program module;
+        try {
+            module = ModuleCache.load(path);
+        } catch (IOException ex) {
+            error(stmt.path, "Cannot read module " + stmt.path.lexeme + ".");
+            return null;
+        } catch (CompileError ex) {
+            error(stmt.path, "Module " + stmt.path.lexeme + " has errors.");
+            return null;
+        }
+
+        Path enclosing = base;
+        boolean wasReporting = reporting;
+        Deque<Set<String>> enclosingScopes = new ArrayDeque<>(scopes);
+        base = path.getParent();
+        reporting = false;
+        scopes.clear();
+        scopes.push(globals);
+        try {
+            statements(module.statements);
+        } finally {
+            base = enclosing;
+            reporting = wasReporting;
+            scopes.clear();
+            scopes.addAll(enclosingScopes);
+        }
+        return null;
+    }
+
+    // ---- Expressions ------------------------------------------------------
+
+    private static boolean isKnown(Object value) {
+        return value != UNKNOWN;
+    }
+
+    private static Object kindOf(Object value) {
+        if (value instanceof Double) return NUMBER;
+        if (value instanceof String) return STRING;
+        if (value instanceof Boolean) return BOOLEAN;
+        return value;
+    }
+
+    private static boolean isNumber(Object value) {
+        return kindOf(value) == NUMBER;
+    }
+
+    private void requireNumber(Object value, Token context) {
+        if (isKnown(value) && !isNumber(value)) error(context, "Expected number.");
+    }
+
+    @Override
+    public Object visitBinaryExpr(Expr.Binary expr) {
+        Object left = expr(expr.left);
+        Object right = expr(expr.right);
+        boolean known = isKnown(left) && isKnown(right);
+        boolean constant = left instanceof Double && right instanceof Double;
+        switch (expr.operator.type) {
+            case PLUS:
+                if (kindOf(left) == STRING && kindOf(right) == STRING) {
+                    return left instanceof String && right instanceof String ? (String) left + right : STRING;
+                }
+                if (known && !(isNumber(left) && isNumber(right))) {
+                    error(expr.operator, "Operands must be two numbers or two strings.");
+                    return UNKNOWN;
+                }
+                if (constant) return (double) left + (double) right;
+                return known ? NUMBER : UNKNOWN;
+            case MINUS:
+            case STAR:
+            case SLASH:
+                if (!numberOperands(expr.operator, left, right)) return UNKNOWN;
+                if (!constant) return NUMBER;
+                double x = (double) left;
+                double y = (double) right;
+                return expr.operator.type == TokenType.MINUS ? x - y
+                        : expr.operator.type == TokenType.STAR ? x * y : x / y;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return numberOperands(expr.operator, left, right) ? BOOLEAN : UNKNOWN;
+            default:
+                return BOOLEAN;
+        }
+    }
+
+    private boolean numberOperands(Token operator, Object left, Object right) {
+        if ((isKnown(left) && !isNumber(left)) || (isKnown(right) && !isNumber(right))) {
+            error(operator, "Operands must be numbers.");
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Object visitGroupingExpr(Expr.Grouping expr) {
+        return expr(expr.expression);
+    }
+
+    @Override
+    public Object visitLiteralExpr(Expr.Literal expr) {
+        return expr.value == null ? NIL : expr.value;
+    }
+
+    @Override
+    public Object visitUnaryExpr(Expr.Unary expr) {
+        Object right = expr(expr.right);
+        if (expr.operator.type == TokenType.BANG) return BOOLEAN;
+        if (isKnown(right) && !isNumber(right)) {
+            error(expr.operator, "Operand must be a number.");
+            return UNKNOWN;
+        }
+        return right instanceof Double ? -(double) right : right;
+    }
+
+    @Override
+    public Object visitVariableExpr(Expr.Variable expr) {
+        String name = expr.name.lexeme;
+        if (isLocal(name)) return UNKNOWN;
+        mentioned.add(name);
+        if (rivers.containsKey(name)) return NUMBER;
+        if (globals.contains(name)) return name.equals("rainfall") ? NUMBER : UNKNOWN;
+        pend(expr.name, name, NAME, false);
+        return UNKNOWN;
+    }
+
+    @Override
+    public Object visitAssignExpr(Expr.Assign expr) {
+        expr(expr.value);
+        String name = expr.name.lexeme;
+        if (!isLocal(name) && !globals.contains(name)) pend(expr.name, name, ASSIGN, false);
+        return UNKNOWN;
+    }
+
+    @Override
+    public Object visitLogicalExpr(Expr.Logical expr) {
+        expr(expr.left);
+        expr(expr.right);
+        return UNKNOWN;
+    }
+
+    @Override
+    public Object visitIndexExpr(Expr.Index expr) {
+        readMember(expr.name, expr.index, false);
+        return NUMBER;
+    }
+
+    @Override
+    public Object visitHoistedExpr(Expr.Hoisted expr) {
+        return expr(expr.expression);
+    }
+
+    @Override
+    public Object visitSumExpr(Expr.Sum expr) {
+        useGroup(expr.group, false);
+        return NUMBER;
+    }
+
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        Object callee = expr(expr.callee);
+        if (isKnown(callee)) error(expr.paren, "Can only call functions.");
+        for (Expr argument : expr.arguments) {
+            expr(argument);
+        }
+        return UNKNOWN;
+    }
+
+    // ---- Flow cycles ------------------------------------------------------
+
+    // Tarjan's strongly connected components, iteratively so that long
+    // chains of rivers cannot overflow the stack. Every component with more
+    // than one river, or a river flowing into itself, contains a cycle.
+    private void findCycles() {
+        int n = nodeNames.size();
+        int[] index = new int[n];
+        int[] low = new int[n];
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int[] callNode = new int[n];
+        int[] callEdge = new int[n];
+        int[] component = new int[n];
+        Arrays.fill(index, -1);
+        Arrays.fill(component, -1);
+        int top = 0;
+        int counter = 0;
+        int components = 0;
+
+        for (int root = 0; root < n; root++) {
+            if (index[root] >= 0) continue;
+            int depth = 0;
+            callNode[0] = root;
+            callEdge[0] = 0;
+            index[root] = low[root] = counter++;
+            stack[top++] = root;
+            onStack[root] = true;
+
+            while (depth >= 0) {
+                int v = callNode[depth];
+                List<Edge> out = edges.get(v);
+                if (callEdge[depth] < out.size()) {
+                    int w = out.get(callEdge[depth]++).to;
+                    if (index[w] < 0) {
+                        index[w] = low[w] = counter++;
+                        stack[top++] = w;
+                        onStack[w] = true;
+                        depth++;
+                        callNode[depth] = w;
+                        callEdge[depth] = 0;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+                if (low[v] == index[v]) {
+                    int start = top;
+                    do {
+                        start--;
+                        onStack[stack[start]] = false;
+                        component[stack[start]] = components;
+                    } while (stack[start] != v);
+                    reportCycle(stack, start, top, component, components);
+                    top = start;
+                    components++;
+                }
+                depth--;
+                if (depth >= 0) {
+                    int parent = callNode[depth];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+            }
+        }
+    }
+
+    // Reports one concrete cycle through the component's first-mentioned
+    // river, found by a breadth-first search that stays inside it.
+    private void reportCycle(int[] stack, int start, int end, int[] component, int id) {
+        int first = stack[start];
+        for (int i = start + 1; i < end; i++) {
+            first = Math.min(first, stack[i]);
+        }
+        Map<Integer, Edge> reachedBy = new HashMap<>();
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(first);
+        Edge closing = null;
+        int last = -1;
+        search:
+        while (!queue.isEmpty()) {
+            int v = queue.poll();
+            for (Edge edge : edges.get(v)) {
+                if (edge.to == first) {
+                    closing = edge;
+                    last = v;
+                    break search;
+                }
+                if (component[edge.to] == id && !reachedBy.containsKey(edge.to)) {
+                    reachedBy.put(edge.to, new Edge(v, edge.token));
+                    queue.add(edge.to);
+                }
+            }
+        }
+        if (closing == null) return;
+
+        List<String> path = new ArrayList<>();
+        Token token = closing.token;
+        path.add(nodeNames.get(first));
+        for (int v = last; v != first; v = reachedBy.get(v).to) {
+            path.add(nodeNames.get(v));
+            Token via = reachedBy.get(v).token;
+            if (via.line < token.line) token = via;
+        }
+        path.add(nodeNames.get(first));
+        List<String> forward = new ArrayList<>();
+        for (int i = path.size() - 1; i >= 0; i--) {
+            forward.add(path.get(i));
+        }
+        error(token, "Flow cycle " + String.join(" -> ", forward) + ".");
+    }
+}
@@ -0,0 +1,160 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Applies a list of "from -> to" flows on several threads with the same
+// result as applying them one after another in list order.
+//
+// Each flow reads its source's current flow and adds it to its target. The
+// flows are put into levels: a flow goes one level after the last earlier
+// flow into its source, so it reads a settled value, and no earlier than the
+// last earlier flow that read its target, so it cannot change a value an
+// earlier flow still has to read. Within a level every source is read
+// before any target is written, which lets all of the level's flows run at
+// once. Contributions to a target collect in a ConcurrentRiverState and are
+// settled into the river at the end of the level.
+//
+// Rivers are created in the order a sequential run would first touch them,
+// before any thread starts, so the summary order is unchanged too.
+final class ParallelFlows {
+    // Levels smaller than this run on the calling thread; handing them out
+    // would cost more than it saves.
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    private final int threads;
+    private final ConcurrentRiverState.Reduction reduction;
+    private final int stripes;
+
+    private ParallelFlows(int threads, ConcurrentRiverState.Reduction reduction) {
+        this.threads = threads;
+        this.reduction = reduction;
+        this.stripes = Integer.highestOneBit(Math.max(1, threads * 2 - 1)) * 2;
+    }
+
+    static void apply(RiverStore store, String[] from, String[] to, int count,
+                      int threads, ConcurrentRiverState.Reduction reduction) {
+        new ParallelFlows(threads, reduction).run(store, from, to, count);
+    }
+
+    private void run(RiverStore store, String[] fromNames, String[] toNames, int count) {
+        Map<String, Integer> ids = new HashMap<>();
+        List<RiverState> states = new ArrayList<>();
+        int[] from = new int[count];
+        int[] to = new int[count];
+        for (int i = 0; i < count; i++) {
+            from[i] = id(fromNames[i], ids, states, store);
+            to[i] = id(toNames[i], ids, states, store);
+        }
+        int rivers = states.size();
+
+        int[] lastWrite = new int[rivers];
+        int[] lastRead = new int[rivers];
+        Arrays.fill(lastWrite, -1);
+        int[] level = new int[count];
+        int levels = 0;
+        for (int i = 0; i < count; i++) {
+            int l = Math.max(lastWrite[from[i]] + 1, lastRead[to[i]]);
+            level[i] = l;
+            lastRead[from[i]] = Math.max(lastRead[from[i]], l);
+            lastWrite[to[i]] = Math.max(lastWrite[to[i]], l);
+            levels = Math.max(levels, l + 1);
+        }
+
+        // Counting sort by level keeps each level in list order.
+        int[] start = new int[levels + 1];
+        for (int i = 0; i < count; i++) start[level[i] + 1]++;
+        for (int l = 0; l < levels; l++) start[l + 1] += start[l];
+        int[] order = new int[count];
+        int[] next = start.clone();
+        for (int i = 0; i < count; i++) order[next[level[i]]++] = i;
+
+        ExecutorService pool = threads > 1 && count >= PARALLEL_THRESHOLD
+                ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            int[] position = new int[count];
+            int[] seen = new int[rivers];
+            Arrays.fill(seen, -1);
+            int[] contributions = new int[rivers];
+            ConcurrentRiverState[] incoming = new ConcurrentRiverState[rivers];
+            List<Integer> touched = new ArrayList<>();
+
+            for (int l = 0; l < levels; l++) {
+                touched.clear();
+                for (int k = start[l]; k < start[l + 1]; k++) {
+                    int target = to[order[k]];
+                    if (seen[target] != l) {
+                        seen[target] = l;
+                        contributions[target] = 0;
+                        touched.add(target);
+                    }
+                    position[order[k]] = contributions[target]++;
+                }
+                for (int target : touched) {
+                    incoming[target] = new ConcurrentRiverState(states.get(target), reduction,
+                            contributions[target], stripes);
+                }
+
+                applyLevel(pool, states, incoming, order, start[l], start[l + 1], from, to, position);
+
+                for (int target : touched) {
+                    incoming[target].settle();
+                    incoming[target] = null;
+                }
+            }
+        } finally {
+            if (pool != null) pool.shutdown();
+        }
+    }
+
+    private static int id(String name, Map<String, Integer> ids, List<RiverState> states, RiverStore store) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        ids.put(name, states.size());
+        states.add(store.mutable(name));
+        return states.size() - 1;
+    }
+
+    private void applyLevel(ExecutorService pool, List<RiverState> states, ConcurrentRiverState[] incoming,
+                            int[] order, int begin, int end, int[] from, int[] to, int[] position) {
+        int size = end - begin;
+        if (pool == null || size < PARALLEL_THRESHOLD) {
+            applyRange(states, incoming, order, begin, end, from, to, position);
+            return;
+        }
+        int chunk = (size + threads - 1) / threads;
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int s = begin; s < end; s += chunk) {
+            int first = s;
+            int last = Math.min(end, s + chunk);
+            tasks.add(() -> {
+                applyRange(states, incoming, order, first, last, from, to, position);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while applying flows.", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Applying flows failed.", ex.getCause());
+        }
+    }
+
+    private static void applyRange(List<RiverState> states, ConcurrentRiverState[] incoming,
+                                   int[] order, int begin, int end, int[] from, int[] to, int[] position) {
+        for (int k = begin; k < end; k++) {
+            int flow = order[k];
+            incoming[to[flow]].addIncomingFlow(position[flow], states.get(from[flow]).currentFlow());
+        }
+    }
+}
@@ -1,15 +1,42 @@
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 public class Parser {
   private static class ParseError extends RuntimeException {}
 
+  // Thrown by the flat parse at anything FlatAst does not cover.
+  private static class Unsupported extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Unsupported() {
+      super(null, null, false, false);
+    }
+  }
+
   private final List<Token> tokens;
+  // Set when tokens are pulled from the scanner on demand rather than
+  // handed over as a complete list.
+  private final Scanner scanner;
   private int current = 0;
+  // How many loops enclose the statement being parsed, counted from the
+  // innermost enclosing function body.
+  private int loopDepth = 0;
+  private boolean inFunction = false;
 
   public Parser(List<Token> tokens) {
     this.tokens = tokens;
+    this.scanner = null;
+  }
+
+  // Streaming parser: tokens are pulled from the scanner as the grammar needs
+  // them and dropped once the statement they belong to has been returned by
+  // next(), so only the statement being parsed is ever buffered.
+  Parser(Scanner scanner) {
+    this.tokens = new ArrayList<>();
+    this.scanner = scanner;
   }
 
   public List<Stmt> parse() {
@@ -21,12 +48,46 @@ public class Parser {
     return statements;
   }
 
+  // Parses the top-level statements that start before token index 'to',
+  // beginning at token index 'from', and records where each one starts.
+  // Used to reparse just the edited part of a program.
+  List<Stmt> parseRange(int from, int to, List<Integer> starts) {
+    current = from;
+    List<Stmt> statements = new ArrayList<>();
+    while (!isAtEnd() && current < to) {
+      starts.add(current);
+      statements.add(declaration());
+    }
+
+    return statements;
+  }
+
+  boolean hasNext() {
+    return !isAtEnd();
+  }
+
+  // Parses the next top-level statement; null if it had a syntax error.
+  Stmt next() {
+    if (scanner != null && current > 0) {
+      tokens.subList(0, current).clear();
+      current = 0;
+    }
+    return declaration();
+  }
+
+  int position() {
+    return current;
+  }
+
   private Stmt declaration() {
     try {
       if (match(TokenType.RIVER)) return riverDeclaration();
       if (match(TokenType.OUTPUT)) return outputDeclaration();
       if (match(TokenType.COMBINE)) return combineDeclaration();
       if (match(TokenType.DAM)) return damDeclaration();
+      if (match(TokenType.VAR)) return varDeclaration();
+      if (match(TokenType.FUN)) return function();
+      if (match(TokenType.IMPORT)) return importDeclaration();
       if (check(TokenType.IDENTIFIER) && checkNext(TokenType.ARROW)) {
         return flowDeclaration();
       }
@@ -38,7 +99,17 @@ public class Parser {
   }
 
   private Stmt riverDeclaration() {
-    Token name = consume(TokenType.IDENTIFIER, "Expect river name.");
+    Token token = consume(TokenType.IDENTIFIER, "Expect river name.");
+    Expr index = null;
+    if (match(TokenType.LEFT_BRACKET)) {
+      index = expression();
+      if (match(TokenType.DOT)) {
+        consume(TokenType.DOT, "Expect '..' in river group range.");
+        return groupDeclaration(token, index);
+      }
+      consume(TokenType.RIGHT_BRACKET, "Expect ']' after river index.");
+    }
+    RiverRef name = new RiverRef(token, index);
     
     Expr flowRate = null;
     if (match(TokenType.EQUAL)) {
@@ -49,37 +120,114 @@ public class Parser {
     return new Stmt.River(name, flowRate);
   }
 
+  // river basin[first..end] = flow; declares members first up to but not
+  // including end, all starting with the same flow.
+  private Stmt groupDeclaration(Token name, Expr first) {
+    Expr end = expression();
+    consume(TokenType.RIGHT_BRACKET, "Expect ']' after river group range.");
+
+    Expr flowRate = null;
+    if (match(TokenType.EQUAL)) {
+      flowRate = expression();
+    }
+
+    consume(TokenType.SEMICOLON, "Expect ';' after river group declaration.");
+    return new Stmt.Group(name, first, end, flowRate);
+  }
+
   private Stmt outputDeclaration() {
-    Token riverName = consume(TokenType.IDENTIFIER, "Expect river name after 'output'.");
+    RiverRef riverName = riverRef("Expect river name after 'output'.");
     consume(TokenType.SEMICOLON, "Expect ';' after output declaration.");
     return new Stmt.Output(riverName);
   }
 
   private Stmt combineDeclaration() {
-    Token name = consume(TokenType.IDENTIFIER, "Expect combined river name.");
+    RiverRef name = riverRef("Expect combined river name.");
     consume(TokenType.EQUAL, "Expect '=' after combined river name.");
     
-    List<Token> sources = new ArrayList<>();
-    sources.add(consume(TokenType.IDENTIFIER, "Expect source river name."));
+    List<RiverRef> sources = new ArrayList<>();
+    sources.add(combineSource("Expect source river name."));
     
     while (match(TokenType.PLUS)) {
-      sources.add(consume(TokenType.IDENTIFIER, "Expect source river name after '+'."));
+      sources.add(combineSource("Expect source river name after '+'."));
     }
     
     consume(TokenType.SEMICOLON, "Expect ';' after combine declaration.");
-    return new Stmt.Combine(name, sources);
+    return new Stmt.Combine(name, Collections.unmodifiableList(sources));
   }
 
   private Stmt flowDeclaration() {
-    Token from = consume(TokenType.IDENTIFIER, "Expect source river name.");
+    RiverRef from = riverRef("Expect source river name.");
     consume(TokenType.ARROW, "Expect '->' after source river.");
-    Token to = consume(TokenType.IDENTIFIER, "Expect destination river name.");
+    return flowTo(from);
+  }
+
+  private Stmt flowTo(RiverRef from) {
+    RiverRef to = riverRef("Expect destination river name.");
     consume(TokenType.SEMICOLON, "Expect ';' after flow declaration.");
     return new Stmt.Flow(from, to);
   }
 
+  // A combine source: a river, or sum(group) for every member of a group.
+  private RiverRef combineSource(String message) {
+    if (checkSum()) {
+      return new RiverRef(sumGroup(), null, true);
+    }
+    return riverRef(message);
+  }
+
+  // A river name, optionally followed by '[' index ']'.
+  private RiverRef riverRef(String message) {
+    Token name = consume(TokenType.IDENTIFIER, message);
+    Expr index = null;
+    if (match(TokenType.LEFT_BRACKET)) {
+      if (check(TokenType.STAR)) {
+        throw error(peek(), "Only dams can apply to a whole river group.");
+      }
+      index = expression();
+      consume(TokenType.RIGHT_BRACKET, "Expect ']' after river index.");
+    }
+    return new RiverRef(name, index);
+  }
+
+  // sum is only special right before '(' so it stays usable as a name.
+  private boolean checkSum() {
+    return check(TokenType.IDENTIFIER) && peek().lexeme.equals("sum")
+        && checkNext(TokenType.LEFT_PAREN);
+  }
+
+  private Token sumGroup() {
+    advance();
+    consume(TokenType.LEFT_PAREN, "Expect '(' after 'sum'.");
+    Token group = consume(TokenType.IDENTIFIER, "Expect river group name.");
+    consume(TokenType.RIGHT_PAREN, "Expect ')' after river group name.");
+    return group;
+  }
+
+  private Stmt varDeclaration() {
+    Token name = consume(TokenType.IDENTIFIER, "Expect variable name.");
+
+    Expr initializer = null;
+    if (match(TokenType.EQUAL)) {
+      initializer = expression();
+    }
+
+    consume(TokenType.SEMICOLON, "Expect ';' after variable declaration.");
+    return new Stmt.Var(name, initializer);
+  }
+
   private Stmt damDeclaration() {
-    Token riverName = consume(TokenType.IDENTIFIER, "Expect river name after 'dam'.");
+    RiverRef riverName;
+    if (check(TokenType.IDENTIFIER) && checkNext(TokenType.LEFT_BRACKET)
+        && tokenAt(current + 2).type == TokenType.STAR) {
+      Token group = advance();
+      advance();
+      advance();
+      consume(TokenType.RIGHT_BRACKET, "Expect ']' after '*'.");
+      riverName = new RiverRef(group, null, true);
+    } else {
+      riverName = riverRef("Expect river name after 'dam'.");
+    }
 
     Token mode;
     if (match(TokenType.OPEN)) {
@@ -101,12 +249,152 @@ public class Parser {
     return new Stmt.Dam(riverName, mode, adjustment);
   }
 
+  private Stmt importDeclaration() {
+    Token keyword = previous();
+    Token path = consume(TokenType.STRING, "Expect module path string after 'import'.");
+    consume(TokenType.SEMICOLON, "Expect ';' after import.");
+    return new Stmt.Import(keyword, path);
+  }
+
+  private Stmt function() {
+    Token name = consume(TokenType.IDENTIFIER, "Expect function name.");
+    consume(TokenType.LEFT_PAREN, "Expect '(' after function name.");
+    List<Token> parameters = new ArrayList<>();
+    if (!check(TokenType.RIGHT_PAREN)) {
+      do {
+        if (parameters.size() >= 255) {
+          error(peek(), "Can't have more than 255 parameters.");
+        }
+        parameters.add(consume(TokenType.IDENTIFIER, "Expect parameter name."));
+      } while (match(TokenType.COMMA));
+    }
+    consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
+    consume(TokenType.LEFT_BRACE, "Expect '{' before function body.");
+
+    // Loops in the body run in the function's own frames, wherever the
+    // function is declared.
+    int enclosingDepth = loopDepth;
+    boolean enclosingFunction = inFunction;
+    loopDepth = 0;
+    inFunction = true;
+    List<Stmt> body;
+    try {
+      body = Collections.unmodifiableList(block());
+    } finally {
+      loopDepth = enclosingDepth;
+      inFunction = enclosingFunction;
+    }
+
+    Set<String> callees = Purity.callees(parameters, body);
+    boolean pure = callees != null;
+    return new Stmt.Function(name, Collections.unmodifiableList(parameters), body,
+        pure, pure ? callees : Collections.emptySet());
+  }
+
   private Stmt statement() {
+    if (match(TokenType.FOR)) return forStatement();
+    if (match(TokenType.RETURN)) return returnStatement();
+    if (match(TokenType.IF)) return ifStatement();
+    if (match(TokenType.WHILE)) return whileStatement();
     if (match(TokenType.PRINT)) return printStatement();
-    if (match(TokenType.LEFT_BRACE)) return new Stmt.Block(block());
+    if (match(TokenType.LEFT_BRACE)) return new Stmt.Block(Collections.unmodifiableList(block()));
     return expressionStatement();
   }
 
+  // for (init; condition; increment) body is desugared into a block that
+  // runs init and then a while loop whose body ends with the increment.
+  private Stmt forStatement() {
+    consume(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
+
+    Stmt initializer;
+    if (match(TokenType.SEMICOLON)) {
+      initializer = null;
+    } else if (match(TokenType.VAR)) {
+      initializer = varDeclaration();
+    } else {
+      initializer = expressionStatement();
+    }
+
+    Expr condition = null;
+    if (!check(TokenType.SEMICOLON)) {
+      condition = expression();
+    }
+    consume(TokenType.SEMICOLON, "Expect ';' after loop condition.");
+
+    Expr increment = null;
+    if (!check(TokenType.RIGHT_PAREN)) {
+      increment = expression();
+    }
+    consume(TokenType.RIGHT_PAREN, "Expect ')' after for clauses.");
+
+    Stmt body = loopBody();
+    if (increment != null) {
+      body = new Stmt.Block(List.of(body, new Stmt.Expression(increment)));
+    }
+    if (condition == null) condition = new Expr.Literal(true);
+
+    Stmt loop = LoopHoister.hoist(condition, body, loopDepth);
+    if (initializer != null) {
+      loop = new Stmt.Block(List.of(initializer, loop));
+    }
+    return loop;
+  }
+
+  private Stmt ifStatement() {
+    consume(TokenType.LEFT_PAREN, "Expect '(' after 'if'.");
+    Expr condition = expression();
+    consume(TokenType.RIGHT_PAREN, "Expect ')' after if condition.");
+
+    // Branches may be river statements too, so they parse as declarations.
+    Stmt thenBranch = branch();
+    Stmt elseBranch = null;
+    if (match(TokenType.ELSE)) {
+      elseBranch = branch();
+    }
+
+    return new Stmt.If(condition, thenBranch, elseBranch);
+  }
+
+  private Stmt whileStatement() {
+    consume(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
+    Expr condition = expression();
+    consume(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
+    Stmt body = loopBody();
+
+    return LoopHoister.hoist(condition, body, loopDepth);
+  }
+
+  private Stmt loopBody() {
+    loopDepth++;
+    try {
+      return branch();
+    } finally {
+      loopDepth--;
+    }
+  }
+
+  // The body of an if or a loop. One that failed to parse has already been
+  // reported; it becomes an empty block so later passes never meet a null
+  // branch.
+  private Stmt branch() {
+    Stmt body = declaration();
+    return body == null ? new Stmt.Block(List.of()) : body;
+  }
+
+  private Stmt returnStatement() {
+    Token keyword = previous();
+    if (!inFunction) {
+      error(keyword, "Can't return from top-level code.");
+    }
+    Expr value = null;
+    if (!check(TokenType.SEMICOLON)) {
+      value = expression();
+    }
+
+    consume(TokenType.SEMICOLON, "Expect ';' after return value.");
+    return new Stmt.Return(keyword, value);
+  }
+
   private Stmt printStatement() {
     Expr value = expression();
     consume(TokenType.SEMICOLON, "Expect ';' after value.");
@@ -115,6 +403,11 @@ public class Parser {
 
   private Stmt expressionStatement() {
     Expr expr = expression();
+    if (expr instanceof Expr.Index && match(TokenType.ARROW)) {
+      // An indexed source, as in reach[i] -> reach[i + 1];
+      Expr.Index source = (Expr.Index) expr;
+      return flowTo(new RiverRef(source.name, source.index));
+    }
     consume(TokenType.SEMICOLON, "Expect ';' after expression.");
     return new Stmt.Expression(expr);
   }
@@ -131,7 +424,49 @@ public class Parser {
   }
 
   private Expr expression() {
-    return equality();
+    return assignment();
+  }
+
+  private Expr assignment() {
+    Expr expr = or();
+
+    if (match(TokenType.EQUAL)) {
+      Token equals = previous();
+      Expr value = assignment();
+
+      if (expr instanceof Expr.Variable) {
+        Token name = ((Expr.Variable) expr).name;
+        return new Expr.Assign(name, value);
+      }
+
+      error(equals, "Invalid assignment target.");
+    }
+
+    return expr;
+  }
+
+  private Expr or() {
+    Expr expr = and();
+
+    while (match(TokenType.OR)) {
+      Token operator = previous();
+      Expr right = and();
+      expr = new Expr.Logical(expr, operator, right);
+    }
+
+    return expr;
+  }
+
+  private Expr and() {
+    Expr expr = equality();
+
+    while (match(TokenType.AND)) {
+      Token operator = previous();
+      Expr right = equality();
+      expr = new Expr.Logical(expr, operator, right);
+    }
+
+    return expr;
   }
 
   private Expr equality() {
@@ -189,7 +524,32 @@ public class Parser {
       return new Expr.Unary(operator, right);
     }
 
-    return primary();
+    return call();
+  }
+
+  private Expr call() {
+    Expr expr = primary();
+
+    while (match(TokenType.LEFT_PAREN)) {
+      expr = finishCall(expr);
+    }
+
+    return expr;
+  }
+
+  private Expr finishCall(Expr callee) {
+    List<Expr> arguments = new ArrayList<>();
+    if (!check(TokenType.RIGHT_PAREN)) {
+      do {
+        if (arguments.size() >= 255) {
+          error(peek(), "Can't have more than 255 arguments.");
+        }
+        arguments.add(expression());
+      } while (match(TokenType.COMMA));
+    }
+
+    Token paren = consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
+    return new Expr.Call(callee, paren, Collections.unmodifiableList(arguments));
   }
 
   private Expr primary() {
@@ -201,8 +561,18 @@ public class Parser {
       return new Expr.Literal(previous().literal);
     }
 
+    if (checkSum()) {
+      return new Expr.Sum(sumGroup());
+    }
+
     if (match(TokenType.IDENTIFIER)) {
-      return new Expr.Variable(previous());
+      Token name = previous();
+      if (match(TokenType.LEFT_BRACKET)) {
+        Expr index = expression();
+        consume(TokenType.RIGHT_BRACKET, "Expect ']' after river index.");
+        return new Expr.Index(name, index);
+      }
+      return new Expr.Variable(name);
     }
 
     if (match(TokenType.LEFT_PAREN)) {
@@ -214,6 +584,198 @@ public class Parser {
     throw error(peek(), "Expect expression.");
   }
 
+  // Parses the whole program straight into a FlatAst, or returns null at
+  // the first statement or expression the flat form does not cover (blocks,
+  // loops, ifs, functions, calls, imports, indexed rivers, groups, sum()).
+  // Callers then parse the source again the ordinary way. With a streaming
+  // parser the tokens of each statement are dropped once it is in the arena.
+  FlatAst parseFlat() {
+    FlatAst ast = new FlatAst();
+    try {
+      while (!isAtEnd()) {
+        if (scanner != null && current > 0) {
+          tokens.subList(0, current).clear();
+          current = 0;
+        }
+        flatDeclaration(ast);
+      }
+    } catch (Unsupported unsupported) {
+      return null;
+    }
+    return ast.trim();
+  }
+
+  private void flatDeclaration(FlatAst ast) {
+    try {
+      int statement;
+      if (match(TokenType.RIVER)) {
+        statement = flatRiver(ast);
+      } else if (match(TokenType.OUTPUT)) {
+        Token name = flatRiverName("Expect river name after 'output'.");
+        consume(TokenType.SEMICOLON, "Expect ';' after output declaration.");
+        statement = ast.node(FlatAst.OUTPUT, null, ast.name(name.lexeme), 0, name.line);
+      } else if (match(TokenType.COMBINE)) {
+        statement = flatCombine(ast);
+      } else if (match(TokenType.DAM)) {
+        statement = flatDam(ast);
+      } else if (match(TokenType.VAR)) {
+        Token name = consume(TokenType.IDENTIFIER, "Expect variable name.");
+        int initializer = match(TokenType.EQUAL) ? flatExpression(ast) : -1;
+        consume(TokenType.SEMICOLON, "Expect ';' after variable declaration.");
+        statement = ast.node(FlatAst.VAR, null, ast.name(name.lexeme), initializer, name.line);
+      } else if (check(TokenType.IDENTIFIER) && checkNext(TokenType.ARROW)) {
+        Token from = advance();
+        advance();
+        Token to = flatRiverName("Expect destination river name.");
+        consume(TokenType.SEMICOLON, "Expect ';' after flow declaration.");
+        statement = ast.node(FlatAst.FLOW, null, ast.name(from.lexeme), ast.name(to.lexeme), from.line);
+      } else if (match(TokenType.PRINT)) {
+        int value = flatExpression(ast);
+        consume(TokenType.SEMICOLON, "Expect ';' after value.");
+        statement = ast.node(FlatAst.PRINT, null, value, 0, previous().line);
+      } else if (check(TokenType.FUN) || check(TokenType.IMPORT) || check(TokenType.FOR)
+          || check(TokenType.IF) || check(TokenType.WHILE) || check(TokenType.RETURN)
+          || check(TokenType.LEFT_BRACE)) {
+        throw new Unsupported();
+      } else {
+        int value = flatExpression(ast);
+        consume(TokenType.SEMICOLON, "Expect ';' after expression.");
+        statement = ast.node(FlatAst.EXPRESSION, null, value, 0, previous().line);
+      }
+      ast.statement(statement);
+    } catch (ParseError error) {
+      synchronize();
+    }
+  }
+
+  private int flatRiver(FlatAst ast) {
+    Token name = consume(TokenType.IDENTIFIER, "Expect river name.");
+    if (check(TokenType.LEFT_BRACKET)) throw new Unsupported();
+    int flowRate = match(TokenType.EQUAL) ? flatExpression(ast) : -1;
+    consume(TokenType.SEMICOLON, "Expect ';' after river declaration.");
+    return ast.node(FlatAst.RIVER, null, ast.name(name.lexeme), flowRate, name.line);
+  }
+
+  private int flatCombine(FlatAst ast) {
+    Token name = flatRiverName("Expect combined river name.");
+    consume(TokenType.EQUAL, "Expect '=' after combined river name.");
+    int sources = ast.list();
+    if (checkSum()) throw new Unsupported();
+    ast.add(sources, ast.name(flatRiverName("Expect source river name.").lexeme));
+    while (match(TokenType.PLUS)) {
+      if (checkSum()) throw new Unsupported();
+      ast.add(sources, ast.name(flatRiverName("Expect source river name after '+'.").lexeme));
+    }
+    consume(TokenType.SEMICOLON, "Expect ';' after combine declaration.");
+    return ast.node(FlatAst.COMBINE, null, ast.name(name.lexeme), sources, name.line);
+  }
+
+  private int flatDam(FlatAst ast) {
+    Token name = flatRiverName("Expect river name after 'dam'.");
+    Token mode;
+    if (match(TokenType.OPEN, TokenType.CLOSE, TokenType.ADJUST)) {
+      mode = previous();
+    } else {
+      throw error(peek(), "Expect dam mode (open, close, adjust).");
+    }
+    int adjustment = mode.type == TokenType.ADJUST ? flatExpression(ast) : -1;
+    consume(TokenType.SEMICOLON, "Expect ';' after dam declaration.");
+    return ast.node(FlatAst.DAM, mode.type, ast.name(name.lexeme), adjustment, mode.line);
+  }
+
+  private Token flatRiverName(String message) {
+    Token name = consume(TokenType.IDENTIFIER, message);
+    if (check(TokenType.LEFT_BRACKET)) throw new Unsupported();
+    return name;
+  }
+
+  private int flatExpression(FlatAst ast) {
+    int expr = flatBinary(ast, 0);
+
+    if (match(TokenType.EQUAL)) {
+      Token equals = previous();
+      // A bare name only: parentheses leave no node, so look at the token.
+      boolean bare = tokenAt(current - 2).type == TokenType.IDENTIFIER;
+      int value = flatExpression(ast);
+
+      if (ast.kind[expr] == FlatAst.VARIABLE && bare) {
+        return ast.node(FlatAst.ASSIGN, null, ast.a[expr], value, ast.line[expr]);
+      }
+
+      error(equals, "Invalid assignment target.");
+    }
+
+    return expr;
+  }
+
+  // The binary levels of the grammar, loosest first: or, and, equality,
+  // comparison, term and factor, each left-associative as in the tree
+  // parser above.
+  private static final TokenType[][] FLAT_LEVELS = {
+    { TokenType.OR },
+    { TokenType.AND },
+    { TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL },
+    { TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL },
+    { TokenType.MINUS, TokenType.PLUS },
+    { TokenType.SLASH, TokenType.STAR },
+  };
+
+  private int flatBinary(FlatAst ast, int level) {
+    if (level == FLAT_LEVELS.length) return flatUnary(ast);
+    int expr = flatBinary(ast, level + 1);
+
+    while (match(FLAT_LEVELS[level])) {
+      Token operator = previous();
+      int right = flatBinary(ast, level + 1);
+      byte kind = level < 2 ? FlatAst.LOGICAL : FlatAst.BINARY;
+      expr = ast.node(kind, operator.type, expr, right, operator.line);
+    }
+
+    return expr;
+  }
+
+  private int flatUnary(FlatAst ast) {
+    if (match(TokenType.BANG, TokenType.MINUS)) {
+      Token operator = previous();
+      int right = flatUnary(ast);
+      return ast.node(FlatAst.UNARY, operator.type, right, 0, operator.line);
+    }
+
+    int expr = flatPrimary(ast);
+    if (check(TokenType.LEFT_PAREN)) throw new Unsupported();
+    return expr;
+  }
+
+  private int flatPrimary(FlatAst ast) {
+    if (match(TokenType.FALSE, TokenType.TRUE, TokenType.NIL)) {
+      return ast.node(FlatAst.LITERAL, previous().type, 0, 0, previous().line);
+    }
+    if (match(TokenType.NUMBER)) {
+      return ast.node(FlatAst.LITERAL, TokenType.NUMBER, ast.number((double) previous().literal), 0,
+          previous().line);
+    }
+    if (match(TokenType.STRING)) {
+      return ast.node(FlatAst.LITERAL, TokenType.STRING, ast.string((String) previous().literal), 0,
+          previous().line);
+    }
+
+    if (checkSum()) throw new Unsupported();
+
+    if (match(TokenType.IDENTIFIER)) {
+      Token name = previous();
+      if (check(TokenType.LEFT_BRACKET)) throw new Unsupported();
+      return ast.node(FlatAst.VARIABLE, null, ast.name(name.lexeme), 0, name.line);
+    }
+
+    if (match(TokenType.LEFT_PAREN)) {
+      int expr = flatExpression(ast);
+      consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+      return expr;
+    }
+
+    throw error(peek(), "Expect expression.");
+  }
+
   private boolean match(TokenType... types) {
     for (TokenType type : types) {
       if (check(type)) {
@@ -238,8 +800,8 @@ public class Parser {
 
   private boolean checkNext(TokenType type) {
     if (isAtEnd()) return false;
-    if (tokens.get(current + 1).type == TokenType.EOF) return false;
-    return tokens.get(current + 1).type == type;
+    if (tokenAt(current + 1).type == TokenType.EOF) return false;
+    return tokenAt(current + 1).type == type;
   }
 
   private Token advance() {
@@ -252,11 +814,23 @@ public class Parser {
   }
 
   private Token peek() {
-    return tokens.get(current);
+    return tokenAt(current);
   }
 
   private Token previous() {
-    return tokens.get(current - 1);
+    return tokenAt(current - 1);
+  }
+
+  private Token tokenAt(int index) {
+    if (scanner != null) {
+      while (index >= tokens.size()) {
+        if (!tokens.isEmpty() && tokens.get(tokens.size() - 1).type == TokenType.EOF) {
+          return tokens.get(tokens.size() - 1);
+        }
+        tokens.add(scanner.nextToken());
+      }
+    }
+    return tokens.get(index);
   }
 
   private ParseError error(Token token, String message) {
@@ -283,6 +857,7 @@ public class Parser {
         case OUTPUT:
         case COMBINE:
         case DAM:
+        case IMPORT:
           return;
       }
 
@@ -0,0 +1,213 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A scanned and parsed program, identified by the hash of its source so that
+// identical submissions can share one parse.
+//
+// A Program is immutable once compiled: every field is final, the statement
+// lists (including those inside blocks and combines) are unmodifiable, and
+// the AST nodes and tokens only hold final fields. It can therefore be
+// published to any number of threads and evaluated concurrently; all mutable
+// state lives in the Interpreter returned by newEvaluation().
+//
+// River names are resolved here once: each plain name the program mentions
+// gets a slot, and an evaluation keeps those rivers' state in an array by
+// slot instead of building a map of its own. The interpreter only allocates
+// memo tables, import sets and loop frames if the run uses them.
+final class Program {
+    final String name;
+    final String hash;
+    final List<Stmt> statements;
+    final int tokenCount;
+    final int sourceLength;
+    // Every river name the program mentions directly, in first-mention order,
+    // mapped to its position.
+    final Map<String, Integer> symbols;
+    // The same names by position.
+    final List<String> riverNames;
+
+    private Program(String name, String hash, List<Stmt> statements, int tokenCount, int sourceLength) {
+        this.name = name;
+        this.hash = hash;
+        this.statements = Collections.unmodifiableList(statements);
+        this.tokenCount = tokenCount;
+        this.sourceLength = sourceLength;
+        this.symbols = Collections.unmodifiableMap(collectSymbols(statements));
+        this.riverNames = List.copyOf(symbols.keySet());
+    }
+
+    // Fresh per-run state for evaluating this program: the river slots and
+    // the variables.
+    Interpreter newEvaluation(double rainfallMm, PrintStream out) {
+        return new Interpreter(rainfallMm, out, name, new RiverStore(symbols, riverNames));
+    }
+
+    // Scans and parses the source, reporting problems through Lox.error like
+    // the rest of the front end. Callers check Lox.hadError afterwards.
+    static Program compile(String name, String source) {
+        FlowEvents.Scan scan = new FlowEvents.Scan();
+        scan.begin();
+        Scanner scanner = new Scanner(source);
+        List<Token> tokens = scanner.scanTokens();
+        scan.program = name;
+        scan.characters = source.length();
+        scan.tokens = tokens.size();
+        scan.commit();
+
+        FlowEvents.Parse parse = new FlowEvents.Parse();
+        parse.begin();
+        Parser parser = new Parser(tokens);
+        List<Stmt> statements = parser.parse();
+        parse.program = name;
+        parse.tokens = tokens.size();
+        parse.statements = statements.size();
+        parse.commit();
+
+        return new Program(name, hash(source), statements, tokens.size(), source.length());
+    }
+
+    // Like compile, but collects the errors for this thread only and throws
+    // them instead of touching the global error flags.
+    static Program compileOrThrow(String name, String source) {
+        List<String> errors = new ArrayList<>();
+        Program program = Lox.collectingErrors(errors, () -> compile(name, source));
+        if (!errors.isEmpty()) {
+            throw new CompileError(errors);
+        }
+        return program;
+    }
+
+    static String hash(String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+                builder.append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available.", ex);
+        }
+    }
+
+    private static Map<String, Integer> collectSymbols(List<Stmt> statements) {
+        SymbolCollector collector = new SymbolCollector();
+        for (Stmt statement : statements) {
+            if (statement != null) statement.accept(collector);
+        }
+        return collector.symbols;
+    }
+
+    private static class SymbolCollector implements Stmt.Visitor<Void> {
+        final Map<String, Integer> symbols = new LinkedHashMap<>();
+
+        // Indexed references name their river only at runtime and groups
+        // are stored apart, so the table holds plain names only.
+        private void add(RiverRef ref) {
+            if (ref.isIndexed() || ref.wholeGroup) return;
+            symbols.putIfAbsent(ref.token.lexeme, symbols.size());
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            for (Stmt statement : stmt.statements) {
+                if (statement != null) statement.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitRiverStmt(Stmt.River stmt) {
+            add(stmt.name);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupStmt(Stmt.Group stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitOutputStmt(Stmt.Output stmt) {
+            add(stmt.riverName);
+            return null;
+        }
+
+        @Override
+        public Void visitCombineStmt(Stmt.Combine stmt) {
+            for (RiverRef source : stmt.sources) {
+                add(source);
+            }
+            add(stmt.name);
+            return null;
+        }
+
+        @Override
+        public Void visitFlowStmt(Stmt.Flow stmt) {
+            add(stmt.from);
+            add(stmt.to);
+            return null;
+        }
+
+        @Override
+        public Void visitDamStmt(Stmt.Dam stmt) {
+            add(stmt.riverName);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            stmt.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            for (Stmt statement : stmt.body) {
+                if (statement != null) statement.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitImportStmt(Stmt.Import stmt) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Bounded least-recently-used cache of compiled programs keyed by source hash.
+final class ProgramCache {
+    private final Map<String, Program> programs;
+    private long hits = 0;
+    private long misses = 0;
+
+    ProgramCache(int capacity) {
+        programs = new LinkedHashMap<String, Program>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Program> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // Returns the cached program for this source, compiling it on a miss and
+    // naming it by its hash. Compilation happens outside the lock so one slow
+    // parse does not stall lookups from other requests.
+    Program compile(String source) {
+        String hash = Program.hash(source);
+        synchronized (this) {
+            Program cached = programs.get(hash);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        Program program = Program.compileOrThrow(hash, source);
+        synchronized (this) {
+            programs.putIfAbsent(program.hash, program);
+        }
+        return program;
+    }
+
+    synchronized Program get(String hash) {
+        Program program = programs.get(hash);
+        if (program != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return program;
+    }
+
+    synchronized int size() {
+        return programs.size();
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+}
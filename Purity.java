@@ -0,0 +1,229 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// Decides whether a function is a pure computation on its arguments, so that
+// calls to it can be memoized.
+//
+// A pure function touches no rivers, prints nothing, and reads or assigns
+// only its parameters and its own local variables. It may call other
+// functions by name; those names are returned so the interpreter can check
+// at call time that whatever they are bound to is pure as well, and drop
+// memoized results whenever one of them is rebound. Anything else, including
+// reading a global such as rainfall, makes the function impure: pass the
+// value in as an argument instead.
+final class Purity implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+  private final Deque<Set<String>> scopes = new ArrayDeque<>();
+  private final Set<String> callees = new LinkedHashSet<>();
+  private boolean pure = true;
+
+  private Purity() {}
+
+  // The names the function calls if it is pure, or null if it is not.
+  static Set<String> callees(List<Token> params, List<Stmt> body) {
+    Purity purity = new Purity();
+    Set<String> parameters = new HashSet<>();
+    for (Token param : params) {
+      parameters.add(param.lexeme);
+    }
+    purity.scopes.push(parameters);
+    purity.statements(body);
+    return purity.pure ? purity.callees : null;
+  }
+
+  private void statements(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      if (!pure) return;
+      stmt(statement);
+    }
+  }
+
+  private void stmt(Stmt stmt) {
+    if (stmt != null && pure) stmt.accept(this);
+  }
+
+  private void expr(Expr expr) {
+    if (expr != null && pure) expr.accept(this);
+  }
+
+  private boolean isLocal(String name) {
+    for (Set<String> scope : scopes) {
+      if (scope.contains(name)) return true;
+    }
+    return false;
+  }
+
+  private Void impure() {
+    pure = false;
+    return null;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    scopes.push(new HashSet<>());
+    statements(stmt.statements);
+    scopes.pop();
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    expr(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    return impure();
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    expr(stmt.initializer);
+    scopes.peek().add(stmt.name.lexeme);
+    return null;
+  }
+
+  @Override
+  public Void visitRiverStmt(Stmt.River stmt) {
+    return impure();
+  }
+
+  @Override
+  public Void visitGroupStmt(Stmt.Group stmt) {
+    return impure();
+  }
+
+  @Override
+  public Void visitOutputStmt(Stmt.Output stmt) {
+    return impure();
+  }
+
+  @Override
+  public Void visitCombineStmt(Stmt.Combine stmt) {
+    return impure();
+  }
+
+  @Override
+  public Void visitFlowStmt(Stmt.Flow stmt) {
+    return impure();
+  }
+
+  @Override
+  public Void visitDamStmt(Stmt.Dam stmt) {
+    return impure();
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    expr(stmt.condition);
+    stmt(stmt.thenBranch);
+    stmt(stmt.elseBranch);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    expr(stmt.condition);
+    stmt(stmt.body);
+    return null;
+  }
+
+  // A nested function captures this one's locals; keep it simple and treat
+  // the enclosing function as impure.
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    return impure();
+  }
+
+  @Override
+  public Void visitImportStmt(Stmt.Import stmt) {
+    return impure();
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    expr(stmt.value);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    expr(expr.left);
+    expr(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    expr(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    expr(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    if (!isLocal(expr.name.lexeme)) impure();
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    if (!isLocal(expr.name.lexeme)) return impure();
+    expr(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    expr(expr.left);
+    expr(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitIndexExpr(Expr.Index expr) {
+    return impure();
+  }
+
+  @Override
+  public Void visitHoistedExpr(Expr.Hoisted expr) {
+    expr(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitSumExpr(Expr.Sum expr) {
+    return impure();
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    if (expr.callee instanceof Expr.Variable) {
+      String name = ((Expr.Variable) expr.callee).name.lexeme;
+      // Calling a parameter or local would mean calling whatever value was
+      // passed in, which the memo key cannot see through.
+      if (isLocal(name)) return impure();
+      callees.add(name);
+    } else {
+      return impure();
+    }
+    for (Expr argument : expr.arguments) {
+      expr(argument);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,185 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Spatial rainfall: one timestep of a gridded raster, memory-mapped, plus
+// the cells each river drains. A river bound to cells gets the weighted sum
+// of their rainfall as its default intrinsic flow instead of the uniform
+// rainfall; unbound rivers keep the uniform value.
+//
+// The raster is a little-endian binary file: the four bytes "WFRR", then
+// three ints, columns, rows and timesteps, then every timestep's cells as
+// 32-bit floats, row by row. Only the chosen timestep is mapped, and cells
+// are read straight from the mapping. NaN cells are treated as no data and
+// add nothing.
+//
+// Bindings are a CSV file of "river,row,column[,weight]" rows; a river with
+// several rows drains all of them, and the weight (1 when left out) is the
+// share of the cell it drains. An optional header row is skipped. Members
+// of river groups are bound by their full name, such as "basin[3]".
+final class RainfallGrid {
+    private static final int MAGIC = 0x52524657; // "WFRR" read little-endian
+    private static final int HEADER = 16;
+
+    private final FloatBuffer cells;
+    private final Map<String, Integer> bindings;
+    // Families with at least one bound member.
+    private final Set<String> families;
+    // Binding b's cells and weights are at [start[b], start[b + 1]).
+    private final int[] start;
+    private final int[] cell;
+    private final double[] weight;
+
+    private RainfallGrid(FloatBuffer cells, Map<String, Integer> bindings, Set<String> families,
+                         int[] start, int[] cell, double[] weight) {
+        this.cells = cells;
+        this.bindings = bindings;
+        this.families = families;
+        this.start = start;
+        this.cell = cell;
+        this.weight = weight;
+    }
+
+    static RainfallGrid load(Path raster, Path bindings, int step) throws IOException {
+        int columns;
+        int rows;
+        FloatBuffer cells;
+        try (FileChannel channel = FileChannel.open(raster, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER) {
+                throw new IOException(raster + " is not a rainfall raster.");
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(raster + " is not a rainfall raster.");
+            }
+            columns = header.getInt(4);
+            rows = header.getInt(8);
+            int steps = header.getInt(12);
+            if (columns < 0 || rows < 0 || steps < 0) {
+                throw new IOException(raster + " has a corrupt header.");
+            }
+            if (step < 0 || step >= steps) {
+                throw new IOException(raster + " has no timestep " + step + " (it has " + steps + ").");
+            }
+            long bytes = (long) columns * rows * Float.BYTES;
+            if (bytes > Integer.MAX_VALUE) {
+                throw new IOException(raster + " has timesteps over 2 GB.");
+            }
+            long offset = HEADER + bytes * step;
+            if (channel.size() < offset + bytes) {
+                throw new IOException(raster + " is truncated.");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes);
+            cells = buffer.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+        return readBindings(bindings, cells, columns, rows);
+    }
+
+    private static RainfallGrid readBindings(Path path, FloatBuffer cells, int columns, int rows)
+            throws IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        Set<String> families = new HashSet<>();
+        int[] owner = new int[1024];
+        int[] cell = new int[1024];
+        double[] weight = new double[1024];
+        int count = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            int line = 0;
+            for (String text = reader.readLine(); text != null; text = reader.readLine()) {
+                line++;
+                if (text.isBlank()) continue;
+                String[] fields = text.split(",", -1);
+                if (fields.length < 3 || fields.length > 4) {
+                    throw new IOException(path + ": line " + line + " should be river,row,column[,weight].");
+                }
+                int row;
+                int column;
+                double share = 1.0;
+                try {
+                    row = Integer.parseInt(fields[1].trim());
+                    column = Integer.parseInt(fields[2].trim());
+                    if (fields.length == 4 && !fields[3].isBlank()) {
+                        share = Double.parseDouble(fields[3].trim());
+                    }
+                } catch (NumberFormatException ex) {
+                    if (line == 1) continue; // header
+                    throw new IOException(path + ": line " + line + " has a malformed number.");
+                }
+                if (row < 0 || row >= rows || column < 0 || column >= columns) {
+                    throw new IOException(path + ": line " + line + ": cell " + row + "," + column
+                            + " is outside the " + rows + " by " + columns + " raster.");
+                }
+                String river = fields[0].trim();
+                if (river.isEmpty()) {
+                    throw new IOException(path + ": line " + line + " has no river.");
+                }
+                Integer id = ids.get(river);
+                if (id == null) {
+                    id = ids.size();
+                    ids.put(river, id);
+                    int bracket = river.indexOf('[');
+                    if (bracket > 0) families.add(river.substring(0, bracket));
+                }
+                if (count == owner.length) {
+                    owner = Arrays.copyOf(owner, count * 2);
+                    cell = Arrays.copyOf(cell, count * 2);
+                    weight = Arrays.copyOf(weight, count * 2);
+                }
+                owner[count] = id;
+                cell[count] = row * columns + column;
+                weight[count] = share;
+                count++;
+            }
+        }
+
+        // Gather each river's cells together, keeping file order within it.
+        int[] start = new int[ids.size() + 1];
+        for (int i = 0; i < count; i++) start[owner[i] + 1]++;
+        for (int b = 0; b < ids.size(); b++) start[b + 1] += start[b];
+        int[] next = Arrays.copyOf(start, ids.size());
+        int[] sortedCell = new int[count];
+        double[] sortedWeight = new double[count];
+        for (int i = 0; i < count; i++) {
+            int at = next[owner[i]]++;
+            sortedCell[at] = cell[i];
+            sortedWeight[at] = weight[i];
+        }
+        return new RainfallGrid(cells, ids, families, start, sortedCell, sortedWeight);
+    }
+
+    boolean binds(String river) {
+        return bindings.containsKey(river);
+    }
+
+    // Whether any member of the family is bound, so group declarations can
+    // skip looking members up one by one.
+    boolean bindsMemberOf(String family) {
+        return families.contains(family);
+    }
+
+    // The river's rainfall from its cells, or the fallback when unbound.
+    double rainfall(String river, double fallback) {
+        Integer binding = bindings.get(river);
+        if (binding == null) return fallback;
+        double total = 0.0;
+        for (int i = start[binding]; i < start[binding + 1]; i++) {
+            float value = cells.get(cell[i]);
+            if (!Float.isNaN(value)) total += weight[i] * value;
+        }
+        return total;
+    }
+}
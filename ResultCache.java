@@ -0,0 +1,262 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Finished evaluations, keyed by the program's content hash, the rainfall
+// and any options that change the result. An entry holds the river summary
+// and whatever the program printed, encoded as bytes.
+//
+// The memory tier is least-recently-used and bounded by the total size of
+// its entries. The optional disk tier keeps one file per entry in a
+// directory, so results survive restarts and can be shared between runs.
+// It is bounded too, dropping the files read or written longest ago. A hit
+// on disk is copied into memory.
+//
+// Editing a program changes its hash, so it can never be served a result
+// from its old source; entries for old sources are simply never hit again
+// and age out. Runs that import modules should not be stored, since a
+// module can change while the program's own source stays the same.
+final class ResultCache {
+    private static final int MAGIC = 0x57524553; // "WRES"
+    private static final byte VERSION = 1;
+    private static final String SUFFIX = ".wres";
+
+    static final class Result {
+        final RiverSummary summary;
+        final String output;
+
+        Result(RiverSummary summary, String output) {
+            this.summary = summary;
+            this.output = output;
+        }
+    }
+
+    private final long memoryLimit;
+    private final Path directory;
+    private final long diskLimit;
+    private final Map<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes = 0;
+    private long diskBytes = 0;
+    private long hits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+
+    // directory may be null for a memory-only cache.
+    ResultCache(long memoryLimit, Path directory, long diskLimit) throws IOException {
+        this.memoryLimit = memoryLimit;
+        this.directory = directory;
+        this.diskLimit = diskLimit;
+        if (directory != null) {
+            Files.createDirectories(directory);
+            for (Path file : entries()) {
+                diskBytes += Files.size(file);
+            }
+        }
+    }
+
+    static String key(String programHash, double rainfallMm, String options) {
+        return programHash + "/" + Long.toHexString(Double.doubleToLongBits(rainfallMm)) + "/" + options;
+    }
+
+    // The stored result, or null on a miss.
+    Result get(String key) {
+        byte[] bytes;
+        synchronized (this) {
+            bytes = memory.get(key);
+            if (bytes != null) hits++;
+        }
+        if (bytes == null && directory != null) {
+            bytes = readFile(key);
+            if (bytes != null) {
+                synchronized (this) {
+                    diskHits++;
+                    remember(key, bytes);
+                }
+            }
+        }
+        if (bytes == null) {
+            synchronized (this) {
+                misses++;
+            }
+            return null;
+        }
+        try {
+            return decode(key, bytes);
+        } catch (IOException ex) {
+            // Not ours or damaged; forget it and run again.
+            forget(key);
+            synchronized (this) {
+                misses++;
+            }
+            return null;
+        }
+    }
+
+    void put(String key, RiverSummary summary, String output) {
+        byte[] bytes = encode(key, summary, output);
+        synchronized (this) {
+            remember(key, bytes);
+        }
+        if (directory != null) writeFile(key, bytes);
+    }
+
+    private void remember(String key, byte[] bytes) {
+        if (bytes.length > memoryLimit) return;
+        byte[] previous = memory.put(key, bytes);
+        if (previous != null) memoryBytes -= previous.length;
+        memoryBytes += bytes.length;
+        Iterator<Map.Entry<String, byte[]>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > memoryLimit && eldest.hasNext()) {
+            memoryBytes -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    private void forget(String key) {
+        synchronized (this) {
+            byte[] bytes = memory.remove(key);
+            if (bytes != null) memoryBytes -= bytes.length;
+        }
+        if (directory != null) {
+            try {
+                long size = Files.size(file(key));
+                Files.deleteIfExists(file(key));
+                synchronized (this) {
+                    diskBytes -= size;
+                }
+            } catch (IOException ex) {
+                // Already gone.
+            }
+        }
+    }
+
+    // The key goes in too, so a file can be checked against the key that
+    // named it.
+    private static byte[] encode(String key, RiverSummary summary, String output) {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 + summary.size() * 32);
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(key);
+            summary.write(out);
+            byte[] text = output.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(text.length);
+            out.write(text);
+            out.flush();
+            return buffer.toByteArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static Result decode(String key, byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC || in.readByte() != VERSION || !in.readUTF().equals(key)) {
+            throw new IOException("Not a cached result for " + key + ".");
+        }
+        RiverSummary summary = RiverSummary.read(in);
+        byte[] text = new byte[in.readInt()];
+        in.readFully(text);
+        return new Result(summary, new String(text, StandardCharsets.UTF_8));
+    }
+
+    private Path file(String key) {
+        return directory.resolve(Program.hash(key) + SUFFIX);
+    }
+
+    private byte[] readFile(String key) {
+        Path file = file(key);
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return bytes;
+        } catch (IOException ex) {
+            // Missing or unreadable: a miss.
+            return null;
+        }
+    }
+
+    // Written under a temporary name and moved into place, so readers in
+    // other threads or processes never see half a file.
+    private void writeFile(String key, byte[] bytes) {
+        Path file = file(key);
+        try {
+            Path temporary = Files.createTempFile(directory, "result", ".tmp");
+            Files.write(temporary, bytes);
+            long previous = Files.exists(file) ? Files.size(file) : 0;
+            try {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            synchronized (this) {
+                diskBytes += bytes.length - previous;
+            }
+            trimDisk();
+        } catch (IOException ex) {
+            // The disk tier is best effort; the memory tier still has it.
+        }
+    }
+
+    private synchronized void trimDisk() throws IOException {
+        if (diskBytes <= diskLimit) return;
+        List<Path> files = entries();
+        Map<Path, FileTime> touched = new LinkedHashMap<>();
+        for (Path file : files) {
+            touched.put(file, Files.getLastModifiedTime(file));
+        }
+        files.sort(Comparator.comparing(touched::get));
+        for (Path file : files) {
+            if (diskBytes <= diskLimit) break;
+            long size = Files.size(file);
+            if (Files.deleteIfExists(file)) diskBytes -= size;
+        }
+    }
+
+    private List<Path> entries() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    synchronized int size() {
+        return memory.size();
+    }
+
+    synchronized long bytes() {
+        return memoryBytes;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long diskHits() {
+        return diskHits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+}
@@ -0,0 +1,11 @@
+// Unwinds a function call back to LoxFunction.call carrying the return value.
+class Return extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final Object value;
+
+    Return(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.Arrays;
+
+// A family of rivers declared together (river basin[0..10000] = ...), kept as
+// parallel primitive arrays instead of one RiverState per member so that
+// whole-group operations are plain loops over contiguous memory. Member i of
+// the group is the river named basin[base + i].
+final class RiverGroup {
+    final long base;
+    final double[] intrinsicFlow;
+    final double[] incomingFlow;
+    final double[] damFactor;
+
+    RiverGroup(long base, int size) {
+        this.base = base;
+        this.intrinsicFlow = new double[size];
+        this.incomingFlow = new double[size];
+        this.damFactor = new double[size];
+        Arrays.fill(damFactor, 1.0);
+    }
+
+    private RiverGroup(RiverGroup other) {
+        this.base = other.base;
+        this.intrinsicFlow = other.intrinsicFlow.clone();
+        this.incomingFlow = other.incomingFlow.clone();
+        this.damFactor = other.damFactor.clone();
+    }
+
+    RiverGroup copy() {
+        return new RiverGroup(this);
+    }
+
+    int size() {
+        return intrinsicFlow.length;
+    }
+
+    // The array slot of the member with the given index, or -1 if the index
+    // is outside the group.
+    int slot(long index) {
+        long slot = index - base;
+        return slot >= 0 && slot < size() ? (int) slot : -1;
+    }
+
+    void setIntrinsicFlow(int slot, double flow) {
+        intrinsicFlow[slot] = flow;
+        incomingFlow[slot] = 0.0;
+    }
+
+    void setAllIntrinsicFlow(double flow) {
+        Arrays.fill(intrinsicFlow, flow);
+        Arrays.fill(incomingFlow, 0.0);
+    }
+
+    void addIncomingFlow(int slot, double flow) {
+        incomingFlow[slot] += flow;
+    }
+
+    void setDamFactor(int slot, double factor) {
+        damFactor[slot] = factor;
+    }
+
+    void setAllDamFactors(double factor) {
+        Arrays.fill(damFactor, factor);
+    }
+
+    double currentFlow(int slot) {
+        return (intrinsicFlow[slot] + incomingFlow[slot]) * damFactor[slot];
+    }
+
+    // Total current flow of every member. Four independent accumulators let
+    // the additions overlap instead of each waiting on the previous one.
+    double sum() {
+        double[] intrinsic = intrinsicFlow;
+        double[] incoming = incomingFlow;
+        double[] dam = damFactor;
+        int n = intrinsic.length;
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += (intrinsic[i] + incoming[i]) * dam[i];
+            s1 += (intrinsic[i + 1] + incoming[i + 1]) * dam[i + 1];
+            s2 += (intrinsic[i + 2] + incoming[i + 2]) * dam[i + 2];
+            s3 += (intrinsic[i + 3] + incoming[i + 3]) * dam[i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += (intrinsic[i] + incoming[i]) * dam[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    String memberName(String name, int slot) {
+        return name + "[" + (base + slot) + "]";
+    }
+}
@@ -0,0 +1,22 @@
+// A river named in a statement: either a plain name, a name with an index
+// expression (reach[i + 1]) that picks out one river of a family at runtime,
+// or a whole river group (basin[*]).
+public class RiverRef {
+  public RiverRef(Token token, Expr index) {
+    this(token, index, false);
+  }
+
+  public RiverRef(Token token, Expr index, boolean wholeGroup) {
+    this.token = token;
+    this.index = index;
+    this.wholeGroup = wholeGroup;
+  }
+
+  public final Token token;
+  public final Expr index;
+  public final boolean wholeGroup;
+
+  public boolean isIndexed() {
+    return index != null;
+  }
+}
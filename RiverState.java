@@ -0,0 +1,24 @@
+// The flow bookkeeping for one river: what it was declared with, what has
+// flowed into it since, and the dam setting applied on the way out.
+class RiverState {
+    double intrinsicFlow = 0.0;
+    double incomingFlow = 0.0;
+    double damFactor = 1.0;
+
+    void setIntrinsicFlow(double flow) {
+        intrinsicFlow = flow;
+        incomingFlow = 0.0;
+    }
+
+    void addIncomingFlow(double flow) {
+        incomingFlow += flow;
+    }
+
+    void setDamFactor(double factor) {
+        damFactor = factor;
+    }
+
+    double currentFlow() {
+        return (intrinsicFlow + incomingFlow) * damFactor;
+    }
+}
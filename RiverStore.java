@@ -0,0 +1,307 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+
+// Rivers in first-touched order, layered for copy-on-write forking. A store
+// either owns all of its rivers or sits on top of a frozen parent: reads fall
+// through to the parent, and the first write to an inherited river copies
+// just that river into this layer. Frozen layers are never written again,
+// so any number of forks can share them across threads. River groups are
+// layered the same way, copied whole on their first write in a fork.
+final class RiverStore {
+    private final RiverStore parent;
+    private final Local local;
+    private final Map<String, RiverGroup> groups = new LinkedHashMap<>();
+    // Indices of the individual rivers named like group members, "reach[3]",
+    // by family, so declaring a group need not try every index in its range.
+    private final Map<String, TreeSet<Long>> members = new HashMap<>();
+    private int inheritedOverrides = 0;
+    private boolean frozen = false;
+
+    RiverStore() {
+        this(0);
+    }
+
+    RiverStore(int expectedRivers) {
+        this.parent = null;
+        this.local = new Local(Map.of(), List.of(), expectedRivers);
+    }
+
+    // A store for one evaluation of a program, keeping the rivers named in
+    // the program's symbol table in slots rather than map entries.
+    RiverStore(Map<String, Integer> symbols, List<String> names) {
+        this.parent = null;
+        this.local = new Local(symbols, names, 0);
+    }
+
+    private RiverStore(RiverStore parent) {
+        this.parent = parent;
+        this.local = new Local(Map.of(), List.of(), 0);
+    }
+
+    // Freezes this store and returns a fresh writable layer on top of it.
+    // Both the original owner and every fork should continue on their own
+    // layer created this way.
+    RiverStore fork() {
+        if (local.isEmpty() && groups.isEmpty() && parent != null) {
+            // Nothing of our own to share; skip the empty layer so repeated
+            // forking does not lengthen the lookup chain.
+            frozen = true;
+            return new RiverStore(parent);
+        }
+        frozen = true;
+        return new RiverStore(this);
+    }
+
+    // The current state of a river for reading, or null if it has never been
+    // touched. The result may be shared with other forks and must not be
+    // modified; use mutable() for that.
+    RiverState get(String name) {
+        RiverState state = local.get(name);
+        if (state != null || parent == null) return state;
+        return parent.get(name);
+    }
+
+    boolean contains(String name) {
+        return get(name) != null;
+    }
+
+    // The state of a river owned by this layer, created or copied on demand.
+    RiverState mutable(String name) {
+        RiverState state = local.get(name);
+        if (state != null) return state;
+        if (frozen) {
+            throw new IllegalStateException("River store is frozen.");
+        }
+
+        RiverState inherited = parent == null ? null : parent.get(name);
+        state = new RiverState();
+        if (inherited != null) {
+            state.intrinsicFlow = inherited.intrinsicFlow;
+            state.incomingFlow = inherited.incomingFlow;
+            state.damFactor = inherited.damFactor;
+            inheritedOverrides++;
+        }
+        local.put(name, state);
+        if (inherited == null) indexMember(name);
+        return state;
+    }
+
+    private void indexMember(String name) {
+        int open = name.indexOf('[');
+        if (open <= 0 || !name.endsWith("]")) return;
+        String digits = name.substring(open + 1, name.length() - 1);
+        long index;
+        try {
+            index = Long.parseLong(digits);
+        } catch (NumberFormatException ex) {
+            return;
+        }
+        // Only the spelling a group member would have.
+        if (!Long.toString(index).equals(digits)) return;
+        members.computeIfAbsent(name.substring(0, open), family -> new TreeSet<>()).add(index);
+    }
+
+    // The name of an individual river family[i] with first <= i < end, or
+    // null if there is none. Only indices that exist are looked at.
+    String memberOutsideGroup(String family, long first, long end) {
+        for (RiverStore layer = this; layer != null; layer = layer.parent) {
+            TreeSet<Long> indices = layer.members.get(family);
+            if (indices == null) continue;
+            Long index = indices.ceiling(first);
+            if (index != null && index < end) return family + "[" + index + "]";
+        }
+        return null;
+    }
+
+    // The group with the given name, or null; read-only like get().
+    RiverGroup group(String name) {
+        RiverGroup group = groups.get(name);
+        if (group != null || parent == null) return group;
+        return parent.group(name);
+    }
+
+    // Declares a group in this layer, replacing any earlier one of that name.
+    RiverGroup declareGroup(String name, long base, int size) {
+        if (frozen) {
+            throw new IllegalStateException("River store is frozen.");
+        }
+        RiverGroup group = new RiverGroup(base, size);
+        groups.put(name, group);
+        return group;
+    }
+
+    // The named group owned by this layer, copied from the parent on the
+    // first write; null if there is no such group.
+    RiverGroup mutableGroup(String name) {
+        RiverGroup group = groups.get(name);
+        if (group != null) return group;
+        if (frozen) {
+            throw new IllegalStateException("River store is frozen.");
+        }
+        RiverGroup inherited = parent == null ? null : parent.group(name);
+        if (inherited == null) return null;
+        group = inherited.copy();
+        groups.put(name, group);
+        return group;
+    }
+
+    // Every river, counting each member of a group.
+    int size() {
+        int[] members = new int[1];
+        forEachGroup((name, group) -> members[0] += group.size());
+        return riverCount() + members[0];
+    }
+
+    // Individually declared rivers only.
+    int riverCount() {
+        int size = local.size() - inheritedOverrides;
+        return parent == null ? size : size + parent.riverCount();
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // Visits every river once with the state visible from this layer:
+    // individual rivers in the order they were first touched, then the
+    // members of each group. Group members are passed in one reused
+    // RiverState that is only valid during the call.
+    void forEach(BiConsumer<String, RiverState> action) {
+        forEachRiver(action);
+        RiverState member = new RiverState();
+        forEachGroup((name, group) -> {
+            for (int i = 0; i < group.size(); i++) {
+                member.intrinsicFlow = group.intrinsicFlow[i];
+                member.incomingFlow = group.incomingFlow[i];
+                member.damFactor = group.damFactor[i];
+                action.accept(group.memberName(name, i), member);
+            }
+        });
+    }
+
+    // Visits every individual river once, in the order it was first touched.
+    // Linear in the total number of entries across the layers, however deep
+    // the fork chain is.
+    void forEachRiver(BiConsumer<String, RiverState> action) {
+        if (parent == null) {
+            local.forEach(action);
+            return;
+        }
+
+        List<RiverStore> layers = new ArrayList<>();
+        for (RiverStore layer = this; layer != null; layer = layer.parent) {
+            layers.add(layer);
+        }
+
+        Map<String, RiverState> visible = new HashMap<>();
+        for (RiverStore layer : layers) {
+            layer.local.forEach(visible::putIfAbsent);
+        }
+
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            layers.get(i).local.forEach((name, ignored) -> {
+                RiverState state = visible.remove(name);
+                if (state != null) {
+                    action.accept(name, state);
+                }
+            });
+        }
+    }
+
+    // Visits every visible group once, in the order the groups were first
+    // declared.
+    void forEachGroup(BiConsumer<String, RiverGroup> action) {
+        if (parent == null) {
+            groups.forEach(action);
+            return;
+        }
+        Map<String, RiverGroup> visible = new LinkedHashMap<>();
+        collectGroups(visible);
+        visible.forEach(action);
+    }
+
+    private void collectGroups(Map<String, RiverGroup> visible) {
+        if (parent != null) parent.collectGroups(visible);
+        // put keeps the position of an inherited name and takes our copy.
+        visible.putAll(groups);
+    }
+
+    // The rivers one layer owns, in the order they were first touched. A
+    // name from the program's symbol table keeps its state in that slot, so
+    // a run allocates no map entry for it; other names (indexed members,
+    // rivers from modules or CSV rows) go in a map. With slots, order lists
+    // the touches: a slot, or -1 for the map's next entry.
+    private static final class Local {
+        private final Map<String, Integer> symbols;
+        private final List<String> names;
+        private final RiverState[] slots;
+        private final Map<String, RiverState> others;
+        private int[] order;
+        private int size = 0;
+
+        Local(Map<String, Integer> symbols, List<String> names, int expectedOthers) {
+            this.symbols = symbols;
+            this.names = names;
+            this.slots = new RiverState[names.size()];
+            this.others = new LinkedHashMap<>(Math.max(16, (int) (expectedOthers / 0.75f) + 1));
+            this.order = slots.length == 0 ? null : new int[slots.length];
+        }
+
+        RiverState get(String name) {
+            if (order != null) {
+                Integer slot = symbols.get(name);
+                if (slot != null) return slots[slot];
+            }
+            return others.get(name);
+        }
+
+        // Only for names not yet present.
+        void put(String name, RiverState state) {
+            int touch = -1;
+            if (order != null) {
+                Integer slot = symbols.get(name);
+                if (slot != null) {
+                    slots[slot] = state;
+                    touch = slot;
+                }
+            }
+            if (touch < 0) others.put(name, state);
+            if (order != null) {
+                if (size == order.length) order = Arrays.copyOf(order, size * 2);
+                order[size] = touch;
+            }
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void forEach(BiConsumer<String, RiverState> action) {
+            if (order == null) {
+                others.forEach(action);
+                return;
+            }
+            Iterator<Map.Entry<String, RiverState>> rest = others.entrySet().iterator();
+            for (int i = 0; i < size; i++) {
+                if (order[i] >= 0) {
+                    action.accept(names.get(order[i]), slots[order[i]]);
+                } else {
+                    Map.Entry<String, RiverState> entry = rest.next();
+                    action.accept(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+// The final flow of every river in first-touched order, detached from the
+// interpreter that produced it so it can be printed, serialised or cached.
+final class RiverSummary {
+    final double rainfallMm;
+    private String[] names;
+    private double[] flows;
+    private double[] damFactors;
+    private int size = 0;
+
+    RiverSummary(double rainfallMm, int expectedRivers) {
+        this.rainfallMm = rainfallMm;
+        int capacity = Math.max(expectedRivers, 4);
+        names = new String[capacity];
+        flows = new double[capacity];
+        damFactors = new double[capacity];
+    }
+
+    void add(String name, double flow, double damFactor) {
+        if (size == names.length) {
+            int capacity = size * 2;
+            names = Arrays.copyOf(names, capacity);
+            flows = Arrays.copyOf(flows, capacity);
+            damFactors = Arrays.copyOf(damFactors, capacity);
+        }
+        names[size] = name;
+        flows[size] = flow;
+        damFactors[size] = damFactor;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String name(int i) {
+        return names[i];
+    }
+
+    double flow(int i) {
+        return flows[i];
+    }
+
+    double damFactor(int i) {
+        return damFactors[i];
+    }
+
+    void print(PrintStream out) {
+        if (size == 0) {
+            out.println("No river flows computed.");
+            return;
+        }
+        printHeader(out, rainfallMm);
+        for (int i = 0; i < size; i++) {
+            printRiver(out, names[i], flows[i], damFactors[i]);
+        }
+    }
+
+    // The pieces of print(), for callers that stream a summary without
+    // holding all of it.
+    static void printHeader(PrintStream out, double rainfallMm) {
+        out.println();
+        out.printf("== Final river flows with %.1f mm rainfall ==%n", rainfallMm);
+    }
+
+    static void printRiver(PrintStream out, String name, double flow, double damFactor) {
+        out.printf("%-20s %.2f L/s (dam %.2fx)%n", name, flow, damFactor);
+    }
+
+    // Compact binary form: the rainfall and river count, then each river's
+    // name, flow and dam factor.
+    void write(DataOutputStream out) throws IOException {
+        out.writeDouble(rainfallMm);
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeUTF(names[i]);
+            out.writeDouble(flows[i]);
+            out.writeDouble(damFactors[i]);
+        }
+    }
+
+    static RiverSummary read(DataInputStream in) throws IOException {
+        double rainfallMm = in.readDouble();
+        int count = in.readInt();
+        if (count < 0) throw new IOException("Corrupt river summary.");
+        RiverSummary summary = new RiverSummary(rainfallMm, Math.min(count, 1 << 16));
+        for (int i = 0; i < count; i++) {
+            summary.add(in.readUTF(), in.readDouble(), in.readDouble());
+        }
+        return summary;
+    }
+
+    // The "rainfall" and "rivers" members of a JSON object, without braces,
+    // so callers can add members of their own.
+    void appendJsonFields(StringBuilder builder) {
+        builder.append("\"rainfall\":");
+        Json.number(builder, rainfallMm);
+        builder.append(",\"rivers\":[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) builder.append(',');
+            builder.append("{\"name\":");
+            Json.quote(builder, names[i]);
+            builder.append(",\"flow\":");
+            Json.number(builder, flows[i]);
+            builder.append(",\"dam\":");
+            Json.number(builder, damFactors[i]);
+            builder.append('}');
+        }
+        builder.append(']');
+    }
+}
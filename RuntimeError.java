@@ -1,8 +1,10 @@
 class RuntimeError extends RuntimeException {
     final Token token;
 
+    // The token already says where in the program things went wrong; a Java
+    // stack trace would only cost time to capture.
     RuntimeError(Token token, String message) {
-        super(message);
+        super(message, null, false, false);
         this.token = token;
     }
 }
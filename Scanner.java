@@ -4,7 +4,7 @@ import java.util.List;
 import java.util.Map;
 
 public class Scanner {
-    private final String source;
+    private final CharSequence source;
     private final List<Token> tokens = new ArrayList<>();
     private int start = 0;
     private int current = 0;
@@ -30,6 +30,7 @@ public class Scanner {
         keywords.put("true", TokenType.TRUE);
         keywords.put("var", TokenType.VAR);
         keywords.put("while", TokenType.WHILE);
+        keywords.put("import", TokenType.IMPORT);
 
         // Waterflow language keywords
         keywords.put("river", TokenType.RIVER);
@@ -46,6 +47,29 @@ public class Scanner {
         this.source = source;
     }
 
+    // Scans any character sequence, e.g. a MappedSource over a file, so a
+    // streamed program never has to exist as one String.
+    Scanner(CharSequence source) {
+        this.source = source;
+    }
+
+    // Scans a fragment cut out of a larger program, numbering its lines from
+    // firstLine so errors still point into that program.
+    Scanner(CharSequence source, int firstLine) {
+        this.source = source;
+        this.line = firstLine;
+    }
+
+    // Whether the text would scan as one identifier, i.e. could name a river
+    // in a program.
+    static boolean isIdentifier(String text) {
+        if (text.isEmpty() || !isAlpha(text.charAt(0)) || keywords.containsKey(text)) return false;
+        for (int i = 1; i < text.length(); i++) {
+            if (!isAlphaNumeric(text.charAt(i))) return false;
+        }
+        return true;
+    }
+
     public List<Token> scanTokens() {
         while (!isAtEnd()) {
             start = current;
@@ -56,6 +80,18 @@ public class Scanner {
         return tokens;
     }
 
+    // Pull-based alternative to scanTokens: scans just far enough to return
+    // the next token, and returns EOF once the source is exhausted. Only the
+    // token being handed out is ever held.
+    Token nextToken() {
+        while (tokens.isEmpty()) {
+            if (isAtEnd()) return new Token(TokenType.EOF, "", null, line);
+            start = current;
+            scanToken();
+        }
+        return tokens.remove(tokens.size() - 1);
+    }
+
     private void scanToken() {
         char c = advance();
         switch (c) {
@@ -71,6 +107,12 @@ public class Scanner {
             case '}':
                 addToken(TokenType.RIGHT_BRACE);
                 break;
+            case '[':
+                addToken(TokenType.LEFT_BRACKET);
+                break;
+            case ']':
+                addToken(TokenType.RIGHT_BRACKET);
+                break;
             case ',':
                 addToken(TokenType.COMMA);
                 break;
@@ -139,7 +181,7 @@ public class Scanner {
         while (isAlphaNumeric(peek()))
             advance();
 
-        String text = source.substring(start, current);
+        String text = text(start, current);
         TokenType type = keywords.get(text);
         if (type == null)
             type = TokenType.IDENTIFIER;
@@ -157,7 +199,7 @@ public class Scanner {
         }
 
         addToken(TokenType.NUMBER,
-                Double.parseDouble(source.substring(start, current)));
+                Double.parseDouble(text(start, current)));
     }
 
     private void string() {
@@ -174,7 +216,7 @@ public class Scanner {
 
         advance(); 
 
-        String value = source.substring(start + 1, current - 1);
+        String value = text(start + 1, current - 1);
         addToken(TokenType.STRING, value);
     }
 
@@ -200,17 +242,17 @@ public class Scanner {
         return source.charAt(current + 1);
     }
 
-    private boolean isAlpha(char c) {
+    private static boolean isAlpha(char c) {
         return (c >= 'a' && c <= 'z') ||
                 (c >= 'A' && c <= 'Z') ||
                 c == '_';
     }
 
-    private boolean isAlphaNumeric(char c) {
+    private static boolean isAlphaNumeric(char c) {
         return isAlpha(c) || isDigit(c);
     }
 
-    private boolean isDigit(char c) {
+    private static boolean isDigit(char c) {
         return c >= '0' && c <= '9';
     }
 
@@ -223,12 +265,16 @@ public class Scanner {
         return source.charAt(current - 1);
     }
 
+    private String text(int from, int to) {
+        return source.subSequence(from, to).toString();
+    }
+
     private void addToken(TokenType type) {
         addToken(type, null);
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
+        String text = text(start, current);
         tokens.add(new Token(type, text, literal, line));
     }
 }
\ No newline at end of file
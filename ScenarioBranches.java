@@ -0,0 +1,126 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs a shared base program once, then forks the interpreter for each
+// scenario and runs the scenarios in parallel on their own copy-on-write
+// branches. A branch that crashes the interpreter fails on its own, like
+// a runtime error, and the other branches still finish.
+//
+//   jlox --branches <base> <scenario>... [--rainfall <mm>]
+final class ScenarioBranches {
+    private ScenarioBranches() {}
+
+    static int main(String[] args) throws IOException {
+        List<String> paths = new ArrayList<>();
+        double rainfallMm = 1.0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--rainfall") && i + 1 < args.length) {
+                try {
+                    rainfallMm = Double.parseDouble(args[++i]);
+                } catch (NumberFormatException ex) {
+                    return usage();
+                }
+            } else {
+                paths.add(args[i]);
+            }
+        }
+        if (paths.size() < 2) return usage();
+
+        String basePath = paths.get(0);
+        Program base = compile(basePath);
+        if (base == null) return BatchRunner.EXIT_COMPILE;
+
+        Interpreter root = new Interpreter(rainfallMm, System.out, basePath);
+        try {
+            root.run(base.statements);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+            return BatchRunner.EXIT_RUNTIME;
+        }
+
+        List<String> scenarios = paths.subList(1, paths.size());
+        List<Program> programs = new ArrayList<>();
+        for (String path : scenarios) {
+            Program program = compile(path);
+            if (program == null) return BatchRunner.EXIT_COMPILE;
+            programs.add(program);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(programs.size(), Runtime.getRuntime().availableProcessors()));
+        List<ByteArrayOutputStream> buffers = new ArrayList<>();
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < programs.size(); i++) {
+            Program program = programs.get(i);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(buffer, false, StandardCharsets.UTF_8);
+            Interpreter branch = root.fork(out, scenarios.get(i));
+            buffers.add(buffer);
+            results.add(pool.submit(() -> {
+                try {
+                    branch.run(program.statements);
+                    branch.printRiverSummary();
+                    return true;
+                } catch (RuntimeError error) {
+                    out.println(error.getMessage() + "\n[line " + error.token.line + "]");
+                    return false;
+                } catch (RuntimeException | StackOverflowError error) {
+                    out.println("error: " + BatchRunner.crashMessage(error));
+                    return false;
+                } finally {
+                    out.flush();
+                }
+            }));
+        }
+
+        int exitCode = BatchRunner.EXIT_OK;
+        try {
+            for (int i = 0; i < results.size(); i++) {
+                String crash = null;
+                try {
+                    if (!results.get(i).get()) {
+                        exitCode = BatchRunner.EXIT_RUNTIME;
+                    }
+                } catch (ExecutionException ex) {
+                    crash = "error: " + BatchRunner.crashMessage(ex.getCause()) + System.lineSeparator();
+                    exitCode = BatchRunner.EXIT_RUNTIME;
+                }
+                String output = buffers.get(i).toString(StandardCharsets.UTF_8);
+                System.out.printf("### %s%n%s%n", scenarios.get(i), crash == null ? output : output + crash);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return BatchRunner.EXIT_RUNTIME;
+        } finally {
+            pool.shutdownNow();
+        }
+        return exitCode;
+    }
+
+    private static Program compile(String path) throws IOException {
+        String source = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+        try {
+            return Program.compileOrThrow(path, source);
+        } catch (CompileError error) {
+            for (String message : error.errors) {
+                System.err.println(path + ": " + message);
+            }
+            return null;
+        }
+    }
+
+    private static int usage() {
+        System.out.println("Usage: jlox --branches <base> <scenario>... [--rainfall <mm>]");
+        return BatchRunner.EXIT_USAGE;
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+// Follows an interpreter run on a Tape so that river flows can be
+// differentiated afterwards.
+//
+// Numbers are tracked by identity: every arithmetic result is a fresh boxed
+// Double, so the object itself says which tape node produced it, through
+// variables, function calls and hoisted loop values alike. Rivers keep a
+// node for each of their intrinsic flow, incoming flow and dam factor.
+//
+// The inputs are rainfall, one "base <river>" per river declaration (added
+// to whatever its flow expression computed) and one "dam <river>" per
+// dammed river (added to the factor each time it is set), so a derivative
+// with respect to "dam weir" answers how the outputs move if every setting
+// of that dam were nudged up.
+final class SensitivityTrace {
+    private static final int INTRINSIC = 0;
+    private static final int INCOMING = 1;
+    private static final int DAM = 2;
+
+    final Tape tape = new Tape();
+    private final Map<Object, Integer> values = new IdentityHashMap<>();
+    private final Map<String, int[]> rivers = new HashMap<>();
+    private final Set<String> outputs = new LinkedHashSet<>();
+    private final int rainfall;
+
+    SensitivityTrace(Object rainfallValue) {
+        rainfall = tape.input("rainfall");
+        values.put(rainfallValue, rainfall);
+    }
+
+    int rainfall() {
+        return rainfall;
+    }
+
+    int node(Object value) {
+        Integer node = values.get(value);
+        return node == null ? -1 : node;
+    }
+
+    // Boxes a computed number and remembers the node it came from.
+    Object traced(double value, int node) {
+        Object boxed = value;
+        if (node >= 0) values.put(boxed, node);
+        return boxed;
+    }
+
+    // The node for an arithmetic result, given the operands as evaluated.
+    int binary(TokenType operator, Object left, Object right) {
+        int a = node(left);
+        int b = node(right);
+        double x = (double) left;
+        double y = (double) right;
+        switch (operator) {
+            case PLUS:
+                return tape.linear(a, 1.0, b, 1.0);
+            case MINUS:
+                return tape.linear(a, 1.0, b, -1.0);
+            case STAR:
+                return tape.linear(a, y, b, x);
+            case SLASH:
+                return tape.linear(a, 1.0 / y, b, -x / (y * y));
+            default:
+                return -1;
+        }
+    }
+
+    int negate(Object operand) {
+        return tape.linear(node(operand), -1.0, -1, 0.0);
+    }
+
+    // A river (re)declared with the given flow node. Declarations add a base
+    // input; combines do not, their flow being nothing but their sources.
+    void declared(String river, int flow, boolean withBase) {
+        int[] nodes = nodes(river);
+        nodes[INTRINSIC] = withBase ? tape.add(flow, tape.input("base " + river)) : flow;
+        nodes[INCOMING] = -1;
+    }
+
+    // A new group member starts with a fresh dam as well.
+    void declaredMember(String river, int flow) {
+        declared(river, flow, true);
+        rivers.get(river)[DAM] = -1;
+    }
+
+    void flowedInto(String river, int flow) {
+        int[] nodes = nodes(river);
+        nodes[INCOMING] = tape.add(nodes[INCOMING], flow);
+    }
+
+    void dammed(String river, int factor) {
+        nodes(river)[DAM] = tape.add(factor, tape.input("dam " + river));
+    }
+
+    // The node for a river's current flow, (intrinsic + incoming) * dam.
+    int flow(String river, double intrinsic, double incoming, double dam) {
+        int[] nodes = rivers.get(river);
+        if (nodes == null) return -1;
+        int sum = tape.add(nodes[INTRINSIC], nodes[INCOMING]);
+        return tape.linear(sum, dam, nodes[DAM], intrinsic + incoming);
+    }
+
+    void output(String river) {
+        outputs.add(river);
+    }
+
+    private int[] nodes(String river) {
+        return rivers.computeIfAbsent(river, name -> new int[] {-1, -1, -1});
+    }
+
+    // The tape node and value of the final flow of each river whose name is
+    // accepted, in summary order.
+    Map<String, Integer> finalFlows(RiverStore store, Predicate<String> wanted, Map<String, Double> flows) {
+        Map<String, Integer> nodes = new LinkedHashMap<>();
+        store.forEach((name, state) -> {
+            if (wanted.test(name)) {
+                nodes.put(name, flow(name, state.intrinsicFlow, state.incomingFlow, state.damFactor));
+                flows.put(name, state.currentFlow());
+            }
+        });
+        return nodes;
+    }
+
+    // For each river named by an output statement, or every river if the
+    // program has none, one reverse sweep giving its non-zero derivatives.
+    void print(RiverStore store, PrintStream out) {
+        Map<String, Double> flows = new HashMap<>();
+        Map<String, Integer> targets = finalFlows(store,
+                name -> outputs.isEmpty() || outputs.contains(name), flows);
+
+        for (Map.Entry<String, Integer> target : targets.entrySet()) {
+            out.println();
+            out.printf("== Sensitivity of %s (%.2f L/s) ==%n", target.getKey(), flows.get(target.getKey()));
+            List<Map.Entry<String, Double>> gradient = tape.gradient(target.getValue());
+            if (gradient.isEmpty()) {
+                out.println("Depends on no inputs.");
+            }
+            for (Map.Entry<String, Double> partial : gradient) {
+                out.printf("%-24s %.6f%n", partial.getKey(), partial.getValue());
+            }
+        }
+    }
+}
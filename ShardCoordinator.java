@@ -0,0 +1,412 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// Evaluates a CSV edge-list network split across several worker JVMs.
+//
+//   jlox --shard <csv> --workers <n> [--rainfall <mm>]
+//
+// The coordinator only learns the topology: it maps each river name to a
+// number and its first downstream river, cuts that forest into sub-basins
+// of roughly equal size, and packs the sub-basins onto the workers. It then
+// streams every worker just the rows that touch its rivers, in the order
+// EdgeListLoader applies them (declarations, dams, flows), so no process
+// ever holds the whole network's state. That takes one scan of the file per
+// kind plus one for the topology: four reads of the file instead of one,
+// the price of not keeping the rows in memory.
+//
+// Each worker applies its rows in row order. A flow whose source lives on
+// another worker waits for the value that worker computed for that row;
+// values travel directly between workers over loopback sockets, batched,
+// and a worker sends what it has before it waits, so every row's value is
+// available by the time anyone needs it and the result is exactly that of
+// the equivalent .wflow program, flows applied one by one in row order.
+// --edges sums each level's inflows pairwise instead, so the two can differ
+// in the last bits at confluences. Most flows stay inside their sub-basin,
+// so workers mostly run independently.
+//
+// Every river carries the position of its first touch in a sequential run.
+// Workers send their summaries in that order and the coordinator merges
+// them, so the output matches --edges line for line.
+final class ShardCoordinator {
+    // Coordinator to worker.
+    static final byte DECLARE = 1;
+    static final byte DAM = 2;
+    static final byte LOCAL = 3;
+    static final byte SEND = 4;
+    static final byte RECEIVE = 5;
+    static final byte END = 6;
+    // Worker to coordinator.
+    static final byte RIVER = 1;
+    static final byte DONE = 2;
+    static final byte FAILED = 3;
+
+    private static final int CONNECT_TIMEOUT_MS = 60_000;
+    // Sub-basins per worker to aim for, so that packing can even out the
+    // load.
+    private static final int PIECES_PER_WORKER = 8;
+
+    private final int workers;
+    private final double rainfallMm;
+
+    private final EdgeListLoader loader;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private int[] parent = new int[1024];
+    private int rivers = 0;
+    private int[] owner;
+
+    private final List<Process> processes = new ArrayList<>();
+    private final DataOutputStream[] toWorker;
+    private final DataInputStream[] fromWorker;
+
+    private ShardCoordinator(Path csv, int workers, double rainfallMm) {
+        this.workers = workers;
+        this.rainfallMm = rainfallMm;
+        this.loader = new EdgeListLoader(csv);
+        this.toWorker = new DataOutputStream[workers];
+        this.fromWorker = new DataInputStream[workers];
+    }
+
+    // Sequential first-touch position: pass, then row, then source before
+    // target within a flow row.
+    static long stamp(int pass, long row, int side) {
+        return ((long) pass << 61) | (row << 1) | side;
+    }
+
+    static int main(String[] args) {
+        if (args.length < 1) return usage();
+        int workers = 0;
+        double rainfallMm = 1.0;
+        try {
+            for (int i = 1; i < args.length; i += 2) {
+                if (i + 1 >= args.length) return usage();
+                switch (args[i]) {
+                    case "--workers":
+                        workers = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "--rainfall":
+                        rainfallMm = Double.parseDouble(args[i + 1]);
+                        break;
+                    default:
+                        return usage();
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return usage();
+        }
+        if (workers < 1) return usage();
+
+        Path csv = Paths.get(args[0]);
+        if (!Files.isReadable(csv)) {
+            System.err.println("Cannot read " + csv + ".");
+            return BatchRunner.EXIT_NO_INPUT;
+        }
+        try {
+            return new ShardCoordinator(csv, workers, rainfallMm).run(System.out);
+        } catch (IOException ex) {
+            System.err.println("Sharded run failed: " + ex.getMessage());
+            return BatchRunner.EXIT_RUNTIME;
+        }
+    }
+
+    private static int usage() {
+        System.out.println("Usage: jlox --shard <csv> --workers <n> [--rainfall <mm>]");
+        return BatchRunner.EXIT_USAGE;
+    }
+
+    private int run(PrintStream out) throws IOException {
+        try (ServerSocket listener = new ServerSocket(0, workers, InetAddress.getLoopbackAddress())) {
+            // Start the JVMs first so they boot while the topology is read.
+            for (int i = 0; i < workers; i++) {
+                processes.add(spawnWorker(listener.getLocalPort()));
+            }
+            partition();
+            connect(listener);
+            streamRows();
+            return mergeSummaries(out);
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    private static Process spawnWorker(int port) throws IOException {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "Lox", "--shard-worker", String.valueOf(port))
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    // ---- Partitioning -----------------------------------------------------
+
+    private int id(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        if (rivers == parent.length) parent = Arrays.copyOf(parent, rivers * 2);
+        parent[rivers] = -1;
+        ids.put(name, rivers);
+        return rivers++;
+    }
+
+    // Cuts the forest of first-downstream links into sub-basins, working up
+    // from the headwaters: a river whose upstream area (counting itself)
+    // reaches the target size closes a sub-basin and passes nothing on.
+    // Outlets close whatever is left. Rivers on flow cycles have no
+    // well-defined upstream and each start a sub-basin of their own.
+    private void partition() throws IOException {
+        loader.scan((line, from, to, baseFlow, damFactor) -> {
+            int source = id(from);
+            if (to != null) {
+                int target = id(to);
+                if (parent[source] < 0 && target != source) parent[source] = target;
+            }
+        });
+
+        int target = Math.max(1, rivers / (workers * PIECES_PER_WORKER));
+        int[] children = new int[rivers];
+        for (int v = 0; v < rivers; v++) {
+            if (parent[v] >= 0) children[parent[v]]++;
+        }
+        int[] area = new int[rivers];
+        boolean[] cut = new boolean[rivers];
+        int[] order = new int[rivers];
+        int ordered = 0;
+        Deque<Integer> ready = new ArrayDeque<>();
+        for (int v = 0; v < rivers; v++) {
+            if (children[v] == 0) ready.add(v);
+        }
+        while (!ready.isEmpty()) {
+            int v = ready.poll();
+            order[ordered++] = v;
+            area[v]++;
+            int p = parent[v];
+            if (p < 0 || area[v] >= target) {
+                cut[v] = true;
+            } else {
+                area[p] += area[v];
+            }
+            if (p >= 0 && --children[p] == 0) ready.add(p);
+        }
+
+        int[] basin = new int[rivers];
+        for (int v = 0; v < rivers; v++) {
+            if (children[v] > 0) {
+                cut[v] = true;
+                area[v]++;
+            }
+            if (cut[v]) basin[v] = v;
+        }
+        // Downstream before upstream, so each river can take its parent's
+        // sub-basin.
+        for (int k = ordered - 1; k >= 0; k--) {
+            int v = order[k];
+            if (!cut[v]) basin[v] = basin[parent[v]];
+        }
+
+        // Largest sub-basins first, each onto the least loaded worker.
+        List<Integer> basins = new ArrayList<>();
+        for (int v = 0; v < rivers; v++) {
+            if (cut[v]) basins.add(v);
+        }
+        basins.sort(Comparator.comparingInt((Integer v) -> area[v]).reversed());
+        long[] load = new long[workers];
+        PriorityQueue<Integer> least = new PriorityQueue<>(
+                Comparator.<Integer>comparingLong(w -> load[w]).thenComparingInt(w -> w));
+        for (int w = 0; w < workers; w++) least.add(w);
+        int[] basinOwner = new int[rivers];
+        for (int b : basins) {
+            int w = least.poll();
+            basinOwner[b] = w;
+            load[w] += area[b];
+            least.add(w);
+        }
+        owner = new int[rivers];
+        for (int v = 0; v < rivers; v++) {
+            owner[v] = basinOwner[basin[v]];
+        }
+        parent = null;
+    }
+
+    // ---- Talking to workers -----------------------------------------------
+
+    private void connect(ServerSocket listener) throws IOException {
+        listener.setSoTimeout(CONNECT_TIMEOUT_MS);
+        int[] ports = new int[workers];
+        for (int i = 0; i < workers; i++) {
+            Socket socket = listener.accept();
+            socket.setTcpNoDelay(true);
+            toWorker[i] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            fromWorker[i] = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            toWorker[i].writeInt(i);
+            toWorker[i].writeInt(workers);
+            toWorker[i].flush();
+            ports[i] = fromWorker[i].readInt();
+        }
+        for (DataOutputStream worker : toWorker) {
+            for (int port : ports) {
+                worker.writeInt(port);
+            }
+            worker.flush();
+        }
+    }
+
+    // One scan each for declarations, dams and flows, each row going to
+    // the workers that own the rivers it touches. Workers buffer what they
+    // are sent before they start, so writing to one never waits on another.
+    private void streamRows() throws IOException {
+        long[] row = new long[1];
+        loader.scan((line, from, to, baseFlow, damFactor) -> {
+            if (!Double.isNaN(baseFlow)) {
+                DataOutputStream out = toWorker[owner[ids.get(from)]];
+                out.writeByte(DECLARE);
+                out.writeLong(stamp(0, row[0], 0));
+                out.writeUTF(from);
+                out.writeDouble(baseFlow);
+            }
+            row[0]++;
+        });
+        row[0] = 0;
+        loader.scan((line, from, to, baseFlow, damFactor) -> {
+            if (!Double.isNaN(damFactor)) {
+                DataOutputStream out = toWorker[owner[ids.get(from)]];
+                out.writeByte(DAM);
+                out.writeLong(stamp(1, row[0], 0));
+                out.writeUTF(from);
+                out.writeDouble(damFactor);
+                out.writeInt(line);
+            }
+            row[0]++;
+        });
+        row[0] = 0;
+        loader.scan((line, from, to, baseFlow, damFactor) -> {
+            if (to != null) {
+                int source = owner[ids.get(from)];
+                int target = owner[ids.get(to)];
+                long stamp = stamp(2, row[0], 0);
+                if (source == target) {
+                    DataOutputStream out = toWorker[source];
+                    out.writeByte(LOCAL);
+                    out.writeLong(stamp);
+                    out.writeUTF(from);
+                    out.writeUTF(to);
+                } else {
+                    DataOutputStream out = toWorker[source];
+                    out.writeByte(SEND);
+                    out.writeLong(stamp);
+                    out.writeUTF(from);
+                    out.writeInt(target);
+                    out = toWorker[target];
+                    out.writeByte(RECEIVE);
+                    out.writeLong(stamp | 1);
+                    out.writeUTF(to);
+                    out.writeInt(source);
+                }
+            }
+            row[0]++;
+        });
+        for (DataOutputStream out : toWorker) {
+            out.writeByte(END);
+            out.flush();
+        }
+    }
+
+    // Each worker's summary arrives in first-touch order; a k-way merge on
+    // the stamps restores the order of a single run. Every worker's first
+    // message is read before anything is printed, so a failure anywhere is
+    // reported instead of a partial summary.
+    private int mergeSummaries(PrintStream console) throws IOException {
+        // One flush at the end rather than one per line.
+        PrintStream out = new PrintStream(new BufferedOutputStream(console, 1 << 16), false);
+        try {
+            return merge(out);
+        } finally {
+            out.flush();
+        }
+    }
+
+    private int merge(PrintStream out) throws IOException {
+        PriorityQueue<Entry> heads = new PriorityQueue<>(Comparator.comparingLong((Entry e) -> e.stamp));
+        for (int w = 0; w < workers; w++) {
+            Entry head = next(w);
+            if (head == null) continue;
+            if (head.failure != null) {
+                System.err.println(head.failure);
+                return BatchRunner.EXIT_RUNTIME;
+            }
+            heads.add(head);
+        }
+        if (heads.isEmpty()) {
+            out.println("No river flows computed.");
+            return BatchRunner.EXIT_OK;
+        }
+        RiverSummary.printHeader(out, rainfallMm);
+        while (!heads.isEmpty()) {
+            Entry entry = heads.poll();
+            RiverSummary.printRiver(out, entry.name, entry.flow, entry.damFactor);
+            Entry following = next(entry.worker);
+            if (following == null) continue;
+            if (following.failure != null) {
+                System.err.println(following.failure);
+                return BatchRunner.EXIT_RUNTIME;
+            }
+            heads.add(following);
+        }
+        return BatchRunner.EXIT_OK;
+    }
+
+    private static final class Entry {
+        final int worker;
+        final long stamp;
+        final String name;
+        final double flow;
+        final double damFactor;
+        final String failure;
+
+        Entry(int worker, long stamp, String name, double flow, double damFactor, String failure) {
+            this.worker = worker;
+            this.stamp = stamp;
+            this.name = name;
+            this.flow = flow;
+            this.damFactor = damFactor;
+            this.failure = failure;
+        }
+    }
+
+    // The worker's next summary entry, null when it is done, or an entry
+    // carrying its failure.
+    private Entry next(int worker) throws IOException {
+        DataInputStream in = fromWorker[worker];
+        byte kind = in.readByte();
+        switch (kind) {
+            case RIVER:
+                return new Entry(worker, in.readLong(), in.readUTF(), in.readDouble(), in.readDouble(), null);
+            case DONE:
+                return null;
+            case FAILED:
+                return new Entry(worker, 0, null, 0, 0, in.readUTF());
+            default:
+                throw new IOException("Unexpected message " + kind + " from worker " + worker + ".");
+        }
+    }
+}
@@ -0,0 +1,284 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// One worker JVM of a sharded run; see ShardCoordinator. Started by the
+// coordinator as "jlox --shard-worker <port>".
+//
+// The worker connects back to the coordinator, opens a loopback port of its
+// own and links up with every other worker, then reads all of its rows
+// before applying any. Values for flows into other workers are batched per
+// destination and sent whenever the batch fills or this worker is about to
+// wait for a value itself. Incoming batches are drained by one reader
+// thread per peer into a queue, so a sender never blocks on a receiver that
+// is busy waiting somewhere else.
+final class ShardWorker {
+    private static final int BATCH = 8192;
+    // Marks the end of a peer's stream in its queue.
+    private static final double[] CLOSED = new double[0];
+
+    private final Interpreter interpreter = new Interpreter(1.0);
+    private final RiverStore store = interpreter.riverStore();
+    private long[] stamps = new long[1024];
+    private int touched = 0;
+
+    // Rows as received, in order.
+    private byte[] kinds = new byte[1024];
+    private long[] rowStamps = new long[1024];
+    private String[] first = new String[1024];
+    private String[] second = new String[1024];
+    private double[] values = new double[1024];
+    private int[] extras = new int[1024];
+    private int rows = 0;
+
+    private Peer[] peers;
+
+    private static final class Peer {
+        DataOutputStream out;
+        final double[] pending = new double[BATCH];
+        int pendingCount = 0;
+        final BlockingQueue<double[]> received = new LinkedBlockingQueue<>();
+        double[] batch = new double[0];
+        int position = 0;
+
+        void send(double value) throws IOException {
+            pending[pendingCount++] = value;
+            if (pendingCount == BATCH) flush();
+        }
+
+        void flush() throws IOException {
+            if (pendingCount == 0) return;
+            out.writeInt(pendingCount);
+            for (int i = 0; i < pendingCount; i++) {
+                out.writeDouble(pending[i]);
+            }
+            out.flush();
+            pendingCount = 0;
+        }
+
+        double receive(Peer[] all) throws IOException, InterruptedException {
+            if (position == batch.length) {
+                double[] next = received.poll();
+                if (next == null) {
+                    // About to wait: whoever we wait on may need our values.
+                    for (Peer peer : all) {
+                        if (peer != null) peer.flush();
+                    }
+                    next = received.take();
+                }
+                if (next == CLOSED) throw new EOFException("A shard worker stopped early.");
+                batch = next;
+                position = 0;
+            }
+            return batch[position++];
+        }
+    }
+
+    static int main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: jlox --shard-worker <coordinator port>");
+            return BatchRunner.EXIT_USAGE;
+        }
+        int port;
+        try {
+            port = Integer.parseInt(args[0]);
+        } catch (NumberFormatException ex) {
+            System.err.println("Usage: jlox --shard-worker <coordinator port>");
+            return BatchRunner.EXIT_USAGE;
+        }
+        try (Socket coordinator = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            coordinator.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(coordinator.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(coordinator.getOutputStream(), 1 << 16));
+            new ShardWorker().serve(in, out);
+            return BatchRunner.EXIT_OK;
+        } catch (IOException | UncheckedIOException | InterruptedException ex) {
+            System.err.println("Shard worker failed: " + ex.getMessage());
+            return BatchRunner.EXIT_RUNTIME;
+        }
+    }
+
+    private void serve(DataInputStream in, DataOutputStream out) throws IOException, InterruptedException {
+        int index = in.readInt();
+        int workers = in.readInt();
+        try (ServerSocket listener = new ServerSocket(0, workers, InetAddress.getLoopbackAddress())) {
+            out.writeInt(listener.getLocalPort());
+            out.flush();
+            int[] ports = new int[workers];
+            for (int i = 0; i < workers; i++) {
+                ports[i] = in.readInt();
+            }
+            link(index, ports, listener);
+        }
+
+        readRows(in);
+        try {
+            apply();
+        } catch (RuntimeError error) {
+            out.writeByte(ShardCoordinator.FAILED);
+            out.writeUTF(error.getMessage() + "\n[line " + error.token.line + "]");
+            out.flush();
+            return;
+        } catch (EOFException ex) {
+            out.writeByte(ShardCoordinator.FAILED);
+            out.writeUTF(ex.getMessage());
+            out.flush();
+            return;
+        }
+        for (Peer peer : peers) {
+            if (peer != null) peer.flush();
+        }
+
+        int[] next = {0};
+        store.forEachRiver((name, state) -> {
+            try {
+                out.writeByte(ShardCoordinator.RIVER);
+                out.writeLong(stamps[next[0]++]);
+                out.writeUTF(name);
+                out.writeDouble(state.currentFlow());
+                out.writeDouble(state.damFactor);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+        out.writeByte(ShardCoordinator.DONE);
+        out.flush();
+    }
+
+    // Lower-numbered workers accept, higher-numbered ones connect, so every
+    // pair ends up with exactly one socket.
+    private void link(int index, int[] ports, ServerSocket listener) throws IOException {
+        peers = new Peer[ports.length];
+        for (int j = 0; j < index; j++) {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), ports[j]);
+            DataOutputStream out = open(j, socket);
+            out.writeInt(index);
+            out.flush();
+        }
+        for (int k = index + 1; k < ports.length; k++) {
+            Socket socket = listener.accept();
+            int j = new DataInputStream(socket.getInputStream()).readInt();
+            open(j, socket);
+        }
+    }
+
+    private DataOutputStream open(int j, Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        Peer peer = new Peer();
+        peer.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        peers[j] = peer;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        Thread reader = new Thread(() -> drain(in, peer.received), "shard-peer-" + j);
+        reader.setDaemon(true);
+        reader.start();
+        return peer.out;
+    }
+
+    private static void drain(DataInputStream in, BlockingQueue<double[]> queue) {
+        try {
+            for (;;) {
+                double[] batch = new double[in.readInt()];
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = in.readDouble();
+                }
+                queue.add(batch);
+            }
+        } catch (IOException ex) {
+            queue.add(CLOSED);
+        }
+    }
+
+    private void readRows(DataInputStream in) throws IOException {
+        for (;;) {
+            byte kind = in.readByte();
+            if (kind == ShardCoordinator.END) return;
+            if (rows == kinds.length) grow();
+            kinds[rows] = kind;
+            rowStamps[rows] = in.readLong();
+            first[rows] = in.readUTF();
+            switch (kind) {
+                case ShardCoordinator.DECLARE:
+                    values[rows] = in.readDouble();
+                    break;
+                case ShardCoordinator.DAM:
+                    values[rows] = in.readDouble();
+                    extras[rows] = in.readInt();
+                    break;
+                case ShardCoordinator.LOCAL:
+                    second[rows] = in.readUTF();
+                    break;
+                case ShardCoordinator.SEND:
+                case ShardCoordinator.RECEIVE:
+                    extras[rows] = in.readInt();
+                    break;
+                default:
+                    throw new IOException("Unexpected message " + kind + " from the coordinator.");
+            }
+            rows++;
+        }
+    }
+
+    private void grow() {
+        int capacity = rows * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        rowStamps = Arrays.copyOf(rowStamps, capacity);
+        first = Arrays.copyOf(first, capacity);
+        second = Arrays.copyOf(second, capacity);
+        values = Arrays.copyOf(values, capacity);
+        extras = Arrays.copyOf(extras, capacity);
+    }
+
+    // The same river operations as EdgeListLoader, with flows that cross
+    // to another worker split into their sending and receiving halves.
+    private void apply() throws IOException, InterruptedException {
+        for (int i = 0; i < rows; i++) {
+            String name = first[i];
+            switch (kinds[i]) {
+                case ShardCoordinator.DECLARE:
+                    touch(name, rowStamps[i]);
+                    interpreter.declareRiver(name, values[i]);
+                    break;
+                case ShardCoordinator.DAM:
+                    touch(name, rowStamps[i]);
+                    interpreter.setDamFactor(name, values[i],
+                            new Token(TokenType.IDENTIFIER, name, null, extras[i]));
+                    break;
+                case ShardCoordinator.LOCAL:
+                    touch(name, rowStamps[i]);
+                    touch(second[i], rowStamps[i] | 1);
+                    interpreter.transfer(name, second[i]);
+                    break;
+                case ShardCoordinator.SEND:
+                    touch(name, rowStamps[i]);
+                    peers[extras[i]].send(store.get(name).currentFlow());
+                    break;
+                case ShardCoordinator.RECEIVE:
+                    double flow = peers[extras[i]].receive(peers);
+                    touch(name, rowStamps[i]);
+                    store.mutable(name).addIncomingFlow(flow);
+                    break;
+            }
+            first[i] = null;
+            second[i] = null;
+        }
+    }
+
+    // Creates the river now if this is its first touch, remembering when a
+    // sequential run would have created it.
+    private void touch(String name, long stamp) {
+        if (store.contains(name)) return;
+        store.mutable(name);
+        if (touched == stamps.length) stamps = Arrays.copyOf(stamps, touched * 2);
+        stamps[touched++] = stamp;
+    }
+}
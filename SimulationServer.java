@@ -0,0 +1,258 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Long-running local simulation service. Programs are compiled once and kept
+// in a ProgramCache keyed by content hash; each request then only pays for
+// evaluation. A cached Program is immutable, so concurrent requests for the
+// same program share it and each gets its own Interpreter.
+//
+//   POST /programs                      body = source, returns {"id": ...}
+//   POST /simulate?rainfall=2.5         body = source
+//   GET  /simulate?id=<id>&rainfall=2.5 a previously posted program
+//   GET  /stats                         cache counters and imported modules
+//
+// rainfall may be repeated to evaluate several scenarios in one request.
+// Finished runs are kept in a ResultCache, so asking for the same program
+// and rainfall again returns the stored summary without evaluating; runs
+// that fail or import modules are not kept. With a result directory the
+// cache also persists across restarts.
+//
+// Programs come from whoever can reach the port, so they are fenced in:
+// import only works with a module directory and cannot leave it, each run
+// stops after STEP_LIMIT statements, and a program that overflows the stack
+// gets a 422 instead of taking the handler down.
+final class SimulationServer {
+    private static final int DEFAULT_PORT = 8417;
+    private static final int DEFAULT_CACHE_SIZE = 256;
+    static final long RESULT_MEMORY_LIMIT = 64L << 20;
+    static final long RESULT_DISK_LIMIT = 1L << 30;
+    static final long STEP_LIMIT = 50_000_000;
+
+    private final ProgramCache cache;
+    private final ResultCache results;
+    // Real path of the directory imports may use; null disables import.
+    private final Path moduleRoot;
+
+    SimulationServer(int cacheSize, Path resultDirectory, Path moduleRoot) throws IOException {
+        this.cache = new ProgramCache(cacheSize);
+        this.results = new ResultCache(RESULT_MEMORY_LIMIT, resultDirectory, RESULT_DISK_LIMIT);
+        this.moduleRoot = moduleRoot == null ? null : moduleRoot.toRealPath();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        int cacheSize = DEFAULT_CACHE_SIZE;
+        Path resultDirectory = null;
+        Path moduleRoot = null;
+        try {
+            if (args.length >= 1) port = Integer.parseInt(args[0]);
+            if (args.length >= 2) cacheSize = Integer.parseInt(args[1]);
+            if (args.length >= 3 && !args[2].equals("-")) resultDirectory = Paths.get(args[2]);
+            if (args.length >= 4) moduleRoot = Paths.get(args[3]);
+        } catch (NumberFormatException ex) {
+            System.out.println("Usage: jlox --serve [port] [cacheSize] [resultDirectory|-] [moduleDirectory]");
+            System.exit(64);
+        }
+        new SimulationServer(cacheSize, resultDirectory, moduleRoot).start(port);
+    }
+
+    void start(int port) throws IOException {
+        HttpServer server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/programs", this::handlePrograms);
+        server.createContext("/simulate", this::handleSimulate);
+        server.createContext("/stats", this::handleStats);
+        server.setExecutor(requestExecutor());
+        server.start();
+        System.out.println("Serving simulations on http://localhost:" + server.getAddress().getPort());
+    }
+
+    // One virtual thread per request where the runtime has them (JDK 21+),
+    // otherwise an unbounded pool of platform threads.
+    static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void handlePrograms(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                send(exchange, 405, error("Use POST with the program as the body."));
+                return;
+            }
+            Program program = cache.compile(readBody(exchange));
+            StringBuilder json = new StringBuilder();
+            json.append("{\"id\":");
+            Json.quote(json, program.hash);
+            json.append(",\"statements\":").append(program.statements.size()).append('}');
+            send(exchange, 201, json.toString());
+        } catch (CompileError error) {
+            send(exchange, 400, compileErrors(error));
+        } catch (StackOverflowError error) {
+            send(exchange, 422, error("The program is nested too deeply to parse."));
+        } catch (RuntimeException ex) {
+            send(exchange, 500, error("Internal error: " + ex));
+        }
+    }
+
+    private void handleSimulate(HttpExchange exchange) throws IOException {
+        try {
+            List<String> idParams = queryValues(exchange, "id");
+            List<String> rainfallParams = queryValues(exchange, "rainfall");
+
+            Program program;
+            if (!idParams.isEmpty()) {
+                program = cache.get(idParams.get(0));
+                if (program == null) {
+                    send(exchange, 404, error("Unknown program id; POST it to /programs first."));
+                    return;
+                }
+            } else if (exchange.getRequestMethod().equals("POST")) {
+                program = cache.compile(readBody(exchange));
+            } else {
+                send(exchange, 400, error("Pass a program id or POST the program body."));
+                return;
+            }
+
+            List<Double> rainfalls = new ArrayList<>();
+            for (String value : rainfallParams) {
+                rainfalls.add(Double.parseDouble(value));
+            }
+            if (rainfalls.isEmpty()) rainfalls.add(1.0);
+
+            StringBuilder json = new StringBuilder();
+            json.append("{\"id\":");
+            Json.quote(json, program.hash);
+            json.append(",\"runs\":[");
+            for (int i = 0; i < rainfalls.size(); i++) {
+                if (i > 0) json.append(',');
+                evaluate(program, rainfalls.get(i), json);
+            }
+            json.append("]}");
+            send(exchange, 200, json.toString());
+        } catch (CompileError error) {
+            send(exchange, 400, compileErrors(error));
+        } catch (NumberFormatException ex) {
+            send(exchange, 400, error("Rainfall must be a number."));
+        } catch (StackOverflowError error) {
+            send(exchange, 422, error("Stack overflow; does the program recurse without end?"));
+        } catch (RuntimeException ex) {
+            send(exchange, 500, error("Internal error: " + ex));
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        String json = "{\"programs\":" + cache.size()
+                + ",\"hits\":" + cache.hits()
+                + ",\"misses\":" + cache.misses()
+                + ",\"modules\":" + ModuleCache.size()
+                + ",\"results\":{\"entries\":" + results.size()
+                + ",\"bytes\":" + results.bytes()
+                + ",\"hits\":" + results.hits()
+                + ",\"diskHits\":" + results.diskHits()
+                + ",\"misses\":" + results.misses() + "}}";
+        send(exchange, 200, json);
+    }
+
+    private void evaluate(Program program, double rainfallMm, StringBuilder json) {
+        String key = ResultCache.key(program.hash, rainfallMm, "");
+        ResultCache.Result cached = results.get(key);
+        if (cached != null) {
+            json.append('{');
+            cached.summary.appendJsonFields(json);
+            appendOutput(json, cached.output);
+            json.append('}');
+            return;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, true, StandardCharsets.UTF_8);
+        Interpreter interpreter = program.newEvaluation(rainfallMm, out);
+        interpreter.restrictImports(moduleRoot);
+        interpreter.limitSteps(STEP_LIMIT);
+        json.append('{');
+        try {
+            interpreter.run(program.statements);
+            RiverSummary summary = interpreter.summary();
+            if (!interpreter.importedModules()) {
+                results.put(key, summary, buffer.toString(StandardCharsets.UTF_8));
+            }
+            summary.appendJsonFields(json);
+        } catch (RuntimeError error) {
+            json.append("\"rainfall\":");
+            Json.number(json, rainfallMm);
+            json.append(",\"error\":");
+            Json.quote(json, error.getMessage());
+            json.append(",\"line\":").append(error.token.line);
+        }
+        appendOutput(json, buffer.toString(StandardCharsets.UTF_8));
+        json.append('}');
+    }
+
+    private static void appendOutput(StringBuilder json, String printed) {
+        json.append(",\"output\":");
+        Json.stringArray(json, printed.isEmpty()
+                ? List.of()
+                : Arrays.asList(printed.split("\\R")));
+    }
+
+    private static String compileErrors(CompileError error) {
+        StringBuilder json = new StringBuilder("{\"errors\":");
+        Json.stringArray(json, error.errors);
+        return json.append('}').toString();
+    }
+
+    private static String error(String message) {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        Json.quote(json, message);
+        return json.append('}').toString();
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        return new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    private static List<String> queryValues(HttpExchange exchange, String key) {
+        List<String> values = new ArrayList<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) return values;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) continue;
+            String name = URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8);
+            if (name.equals(key)) {
+                values.add(URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return values;
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
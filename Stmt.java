@@ -1,4 +1,5 @@
 import java.util.List;
+import java.util.Set;
 
 public abstract class Stmt {
   public interface Visitor<R> {
@@ -7,10 +8,16 @@ public abstract class Stmt {
     R visitPrintStmt(Print stmt);
     R visitVarStmt(Var stmt);
     R visitRiverStmt(River stmt);
+    R visitGroupStmt(Group stmt);
     R visitOutputStmt(Output stmt);
     R visitCombineStmt(Combine stmt);
     R visitFlowStmt(Flow stmt);
     R visitDamStmt(Dam stmt);
+    R visitIfStmt(If stmt);
+    R visitWhileStmt(While stmt);
+    R visitFunctionStmt(Function stmt);
+    R visitReturnStmt(Return stmt);
+    R visitImportStmt(Import stmt);
   }
 
   public static class Block extends Stmt {
@@ -69,7 +76,7 @@ public abstract class Stmt {
 
   // Wflow language statements
   public static class River extends Stmt {
-    public River(Token name, Expr flowRate) {
+    public River(RiverRef name, Expr flowRate) {
       this.name = name;
       this.flowRate = flowRate;
     }
@@ -79,12 +86,31 @@ public abstract class Stmt {
       return visitor.visitRiverStmt(this);
     }
 
+    public final RiverRef name;
+    public final Expr flowRate;
+  }
+
+  public static class Group extends Stmt {
+    public Group(Token name, Expr first, Expr end, Expr flowRate) {
+      this.name = name;
+      this.first = first;
+      this.end = end;
+      this.flowRate = flowRate;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitGroupStmt(this);
+    }
+
     public final Token name;
+    public final Expr first;
+    public final Expr end;
     public final Expr flowRate;
   }
 
   public static class Output extends Stmt {
-    public Output(Token riverName) {
+    public Output(RiverRef riverName) {
       this.riverName = riverName;
     }
 
@@ -93,11 +119,11 @@ public abstract class Stmt {
       return visitor.visitOutputStmt(this);
     }
 
-    public final Token riverName;
+    public final RiverRef riverName;
   }
 
   public static class Combine extends Stmt {
-    public Combine(Token name, List<Token> sources) {
+    public Combine(RiverRef name, List<RiverRef> sources) {
       this.name = name;
       this.sources = sources;
     }
@@ -107,12 +133,12 @@ public abstract class Stmt {
       return visitor.visitCombineStmt(this);
     }
 
-    public final Token name;
-    public final List<Token> sources;
+    public final RiverRef name;
+    public final List<RiverRef> sources;
   }
 
   public static class Flow extends Stmt {
-    public Flow(Token from, Token to) {
+    public Flow(RiverRef from, RiverRef to) {
       this.from = from;
       this.to = to;
     }
@@ -122,12 +148,12 @@ public abstract class Stmt {
       return visitor.visitFlowStmt(this);
     }
 
-    public final Token from;
-    public final Token to;
+    public final RiverRef from;
+    public final RiverRef to;
   }
 
   public static class Dam extends Stmt {
-    public Dam(Token riverName, Token mode, Expr adjustment) {
+    public Dam(RiverRef riverName, Token mode, Expr adjustment) {
       this.riverName = riverName;
       this.mode = mode;
       this.adjustment = adjustment;
@@ -138,10 +164,98 @@ public abstract class Stmt {
       return visitor.visitDamStmt(this);
     }
 
-    public final Token riverName;
+    public final RiverRef riverName;
     public final Token mode;
     public final Expr adjustment;
   }
 
+  // Control flow
+  public static class If extends Stmt {
+    public If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+      this.condition = condition;
+      this.thenBranch = thenBranch;
+      this.elseBranch = elseBranch;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitIfStmt(this);
+    }
+
+    public final Expr condition;
+    public final Stmt thenBranch;
+    public final Stmt elseBranch;
+  }
+
+  public static class While extends Stmt {
+    public While(Expr condition, Stmt body, int depth, int hoistedSlots) {
+      this.condition = condition;
+      this.body = body;
+      this.depth = depth;
+      this.hoistedSlots = hoistedSlots;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitWhileStmt(this);
+    }
+
+    public final Expr condition;
+    public final Stmt body;
+    public final int depth;
+    public final int hoistedSlots;
+  }
+
+  public static class Function extends Stmt {
+    public Function(Token name, List<Token> params, List<Stmt> body, boolean pure, Set<String> callees) {
+      this.name = name;
+      this.params = params;
+      this.body = body;
+      this.pure = pure;
+      this.callees = callees;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitFunctionStmt(this);
+    }
+
+    public final Token name;
+    public final List<Token> params;
+    public final List<Stmt> body;
+    public final boolean pure;
+    public final Set<String> callees;
+  }
+
+  public static class Return extends Stmt {
+    public Return(Token keyword, Expr value) {
+      this.keyword = keyword;
+      this.value = value;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitReturnStmt(this);
+    }
+
+    public final Token keyword;
+    public final Expr value;
+  }
+
+  public static class Import extends Stmt {
+    public Import(Token keyword, Token path) {
+      this.keyword = keyword;
+      this.path = path;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitImportStmt(this);
+    }
+
+    public final Token keyword;
+    public final Token path;
+  }
+
   public abstract <R> R accept(Visitor<R> visitor);
-}
\ No newline at end of file
+}
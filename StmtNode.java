@@ -0,0 +1,182 @@
+import java.util.List;
+import java.util.Set;
+
+public sealed interface StmtNode {
+  enum Kind { BLOCK, EXPRESSION, PRINT, VAR, RIVER, GROUP, OUTPUT, COMBINE, FLOW, DAM, IF, WHILE, FUNCTION, RETURN, IMPORT }
+
+  Kind kind();
+
+  record Block(List<StmtNode> statements) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.BLOCK;
+    }
+  }
+
+  record Expression(ExprNode expression) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.EXPRESSION;
+    }
+  }
+
+  record Print(ExprNode expression) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.PRINT;
+    }
+  }
+
+  record Var(Token name, ExprNode initializer) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.VAR;
+    }
+  }
+
+  record River(RiverRef name, ExprNode flowRate) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.RIVER;
+    }
+  }
+
+  record Group(Token name, ExprNode first, ExprNode end, ExprNode flowRate) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.GROUP;
+    }
+  }
+
+  record Output(RiverRef riverName) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.OUTPUT;
+    }
+  }
+
+  record Combine(RiverRef name, List<RiverRef> sources) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.COMBINE;
+    }
+  }
+
+  record Flow(RiverRef from, RiverRef to) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.FLOW;
+    }
+  }
+
+  record Dam(RiverRef riverName, Token mode, ExprNode adjustment) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.DAM;
+    }
+  }
+
+  record If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.IF;
+    }
+  }
+
+  record While(ExprNode condition, StmtNode body, int depth, int hoistedSlots) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.WHILE;
+    }
+  }
+
+  record Function(Token name, List<Token> params, List<StmtNode> body, boolean pure, Set<String> callees) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.FUNCTION;
+    }
+  }
+
+  record Return(Token keyword, ExprNode value) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.RETURN;
+    }
+  }
+
+  record Import(Token keyword, Token path) implements StmtNode {
+    @Override
+    public Kind kind() {
+      return Kind.IMPORT;
+    }
+  }
+
+  static StmtNode of(Stmt stmt) {
+    if (stmt == null) return null;
+    if (stmt instanceof Stmt.Block) {
+      Stmt.Block node = (Stmt.Block) stmt;
+      return new Block(StmtNode.of(node.statements));
+    }
+    if (stmt instanceof Stmt.Expression) {
+      Stmt.Expression node = (Stmt.Expression) stmt;
+      return new Expression(ExprNode.of(node.expression));
+    }
+    if (stmt instanceof Stmt.Print) {
+      Stmt.Print node = (Stmt.Print) stmt;
+      return new Print(ExprNode.of(node.expression));
+    }
+    if (stmt instanceof Stmt.Var) {
+      Stmt.Var node = (Stmt.Var) stmt;
+      return new Var(node.name, ExprNode.of(node.initializer));
+    }
+    if (stmt instanceof Stmt.River) {
+      Stmt.River node = (Stmt.River) stmt;
+      return new River(node.name, ExprNode.of(node.flowRate));
+    }
+    if (stmt instanceof Stmt.Group) {
+      Stmt.Group node = (Stmt.Group) stmt;
+      return new Group(node.name, ExprNode.of(node.first), ExprNode.of(node.end), ExprNode.of(node.flowRate));
+    }
+    if (stmt instanceof Stmt.Output) {
+      Stmt.Output node = (Stmt.Output) stmt;
+      return new Output(node.riverName);
+    }
+    if (stmt instanceof Stmt.Combine) {
+      Stmt.Combine node = (Stmt.Combine) stmt;
+      return new Combine(node.name, node.sources);
+    }
+    if (stmt instanceof Stmt.Flow) {
+      Stmt.Flow node = (Stmt.Flow) stmt;
+      return new Flow(node.from, node.to);
+    }
+    if (stmt instanceof Stmt.Dam) {
+      Stmt.Dam node = (Stmt.Dam) stmt;
+      return new Dam(node.riverName, node.mode, ExprNode.of(node.adjustment));
+    }
+    if (stmt instanceof Stmt.If) {
+      Stmt.If node = (Stmt.If) stmt;
+      return new If(ExprNode.of(node.condition), StmtNode.of(node.thenBranch), StmtNode.of(node.elseBranch));
+    }
+    if (stmt instanceof Stmt.While) {
+      Stmt.While node = (Stmt.While) stmt;
+      return new While(ExprNode.of(node.condition), StmtNode.of(node.body), node.depth, node.hoistedSlots);
+    }
+    if (stmt instanceof Stmt.Function) {
+      Stmt.Function node = (Stmt.Function) stmt;
+      return new Function(node.name, node.params, StmtNode.of(node.body), node.pure, node.callees);
+    }
+    if (stmt instanceof Stmt.Return) {
+      Stmt.Return node = (Stmt.Return) stmt;
+      return new Return(node.keyword, ExprNode.of(node.value));
+    }
+    if (stmt instanceof Stmt.Import) {
+      Stmt.Import node = (Stmt.Import) stmt;
+      return new Import(node.keyword, node.path);
+    }
+    throw new IllegalArgumentException("Unknown node " + stmt.getClass().getName());
+  }
+
+  static List<StmtNode> of(List<Stmt> stmts) {
+    return stmts.stream().map(StmtNode::of).toList();
+  }
+}
@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A record of how every traced number was computed, for reverse-mode
+// differentiation.
+//
+// Each node is a linear combination of at most two earlier nodes, with the
+// local partial derivatives worked out from the actual values when the node
+// is recorded: a * b becomes (a, b_value) + (b, a_value). Named inputs are
+// nodes with no parents. Node -1 stands for anything that does not depend on
+// an input, and combining only such values records nothing.
+//
+// One backward sweep from an output then yields its derivative with respect
+// to every input at once, in time linear in the length of the tape.
+final class Tape {
+    private int[] left = new int[1024];
+    private int[] right = new int[1024];
+    private double[] leftPartial = new double[1024];
+    private double[] rightPartial = new double[1024];
+    private int size = 0;
+
+    private final Map<String, Integer> inputs = new LinkedHashMap<>();
+
+    // The node for a named input, created on first use.
+    int input(String name) {
+        Integer node = inputs.get(name);
+        if (node != null) return node;
+        int created = push(-1, 0.0, -1, 0.0);
+        inputs.put(name, created);
+        return created;
+    }
+
+    // A node for a * da + b * db.
+    int linear(int a, double da, int b, double db) {
+        if (a < 0 && b < 0) return -1;
+        if (b < 0 && da == 1.0) return a;
+        if (a < 0 && db == 1.0) return b;
+        return push(a, da, b, db);
+    }
+
+    int add(int a, int b) {
+        return linear(a, 1.0, b, 1.0);
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int push(int a, double da, int b, double db) {
+        if (size == left.length) {
+            int capacity = size * 2;
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            leftPartial = Arrays.copyOf(leftPartial, capacity);
+            rightPartial = Arrays.copyOf(rightPartial, capacity);
+        }
+        left[size] = a;
+        leftPartial[size] = da;
+        right[size] = b;
+        rightPartial[size] = db;
+        return size++;
+    }
+
+    // The derivative of the output node with respect to each input that it
+    // depends on, in the order the inputs were first used.
+    List<Map.Entry<String, Double>> gradient(int output) {
+        List<Map.Entry<String, Double>> result = new ArrayList<>();
+        if (output < 0) return result;
+
+        double[] adjoint = new double[output + 1];
+        adjoint[output] = 1.0;
+        for (int node = output; node >= 0; node--) {
+            double weight = adjoint[node];
+            if (weight == 0.0) continue;
+            if (left[node] >= 0) adjoint[left[node]] += weight * leftPartial[node];
+            if (right[node] >= 0) adjoint[right[node]] += weight * rightPartial[node];
+        }
+
+        for (Map.Entry<String, Integer> input : inputs.entrySet()) {
+            int node = input.getValue();
+            if (node <= output && adjoint[node] != 0.0) {
+                result.add(Map.entry(input.getKey(), adjoint[node]));
+            }
+        }
+        return result;
+    }
+}
@@ -1,6 +1,7 @@
 public enum TokenType {
   // Single character tokens
   LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE,
+  LEFT_BRACKET, RIGHT_BRACKET,
   COMMA, DOT, MINUS, PLUS, SEMICOLON, SLASH, STAR, ARROW,
 
   // One or two character tokens
@@ -14,7 +15,7 @@ public enum TokenType {
 
   // Keywords
   AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR,
-  PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE,
+  PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE, IMPORT,
   RIVER, OUTPUT, COMBINE, FLOW, DAM, OPEN, CLOSE, ADJUST,
 
   //yay done
@@ -0,0 +1,254 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+// Re-runs a program whenever its file changes, redoing as little as possible.
+//
+// The new source is rescanned and its tokens compared with the previous run
+// from both ends. Statements entirely inside the unchanged prefix or the
+// unchanged suffix are kept (the suffix only survives edits that do not move
+// lines); only the statements in between are reparsed. Execution then resumes from
+// the closest checkpoint before the first changed statement. Checkpoints are
+// interpreter forks, so they share river state copy-on-write.
+//
+//   jlox --watch <script> [rainfallMm]
+final class WatchMode {
+    private static final int MIN_CHECKPOINT_SPACING = 256;
+    private static final int MAX_CHECKPOINTS = 64;
+
+    // Interpreter state just before statements.get(index) runs, plus the
+    // output printed by the statements before it.
+    private static final class Mark {
+        final int index;
+        final Interpreter state;
+        final String output;
+
+        Mark(int index, Interpreter state, String output) {
+            this.index = index;
+            this.state = state;
+            this.output = output;
+        }
+    }
+
+    private final Path path;
+    private final double rainfallMm;
+
+    private List<Token> tokens = new ArrayList<>();
+    private List<Stmt> statements = new ArrayList<>();
+    private List<Integer> starts = new ArrayList<>();
+    private final List<Mark> checkpoints = new ArrayList<>();
+
+    WatchMode(Path path, double rainfallMm) {
+        this.path = path;
+        this.rainfallMm = rainfallMm;
+    }
+
+    void watch() throws IOException {
+        reload();
+        Path dir = path.toAbsolutePath().getParent();
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            dir.register(watcher,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_CREATE);
+            System.err.println("Watching " + path + " for changes.");
+            for (;;) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Object context = event.context();
+                    if (context instanceof Path && path.getFileName().equals(context)) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) reload();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void reload() throws IOException {
+        long startNanos = System.nanoTime();
+        String source;
+        try {
+            source = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            // Editors often replace the file in several steps; wait for the
+            // next event.
+            return;
+        }
+
+        List<String> errors = new ArrayList<>();
+        List<Token> newTokens = Lox.collectingErrors(errors, () -> new Scanner(source).scanTokens());
+        if (!errors.isEmpty()) {
+            errors.forEach(System.err::println);
+            return;
+        }
+
+        int prefix = commonPrefix(tokens, newTokens);
+        if (prefix == tokens.size() && prefix == newTokens.size()) {
+            return;
+        }
+        int suffix = commonSuffix(tokens, newTokens, prefix);
+
+        // Keep every statement that ends before the first changed token.
+        int firstChanged = 0;
+        while (firstChanged < starts.size() && endOf(firstChanged) <= prefix) {
+            firstChanged++;
+        }
+        int parseFrom = firstChanged < starts.size()
+                ? starts.get(firstChanged)
+                : Math.max(0, tokens.size() - 1);
+
+        // And every statement that lies wholly in the unchanged suffix.
+        int shift = newTokens.size() - tokens.size();
+        int oldSuffixStart = tokens.size() - suffix;
+        int reuseFrom = firstChanged;
+        while (reuseFrom < starts.size() && starts.get(reuseFrom) < oldSuffixStart) {
+            reuseFrom++;
+        }
+        int parseTo = reuseFrom < starts.size() ? starts.get(reuseFrom) + shift : newTokens.size();
+
+        List<Integer> newStarts = new ArrayList<>(starts.subList(0, firstChanged));
+        Parser parser = new Parser(newTokens);
+        List<Stmt> reparsed = Lox.collectingErrors(errors,
+                () -> parser.parseRange(parseFrom, parseTo, newStarts));
+        if (parser.position() != parseTo && reuseFrom < starts.size()) {
+            // The edit changed where statements begin; parse to the end.
+            reuseFrom = starts.size();
+            errors.clear();
+            newStarts.subList(firstChanged, newStarts.size()).clear();
+            reparsed = Lox.collectingErrors(errors,
+                    () -> parser.parseRange(parseFrom, newTokens.size(), newStarts));
+        }
+        if (!errors.isEmpty()) {
+            errors.forEach(System.err::println);
+            return;
+        }
+
+        List<Stmt> newStatements = new ArrayList<>(statements.subList(0, firstChanged));
+        newStatements.addAll(reparsed);
+        int reparsedCount = reparsed.size();
+        for (int i = reuseFrom; i < starts.size(); i++) {
+            newStatements.add(statements.get(i));
+            newStarts.add(starts.get(i) + shift);
+        }
+
+        tokens = newTokens;
+        statements = newStatements;
+        starts = newStarts;
+        execute(firstChanged);
+
+        System.err.printf("Re-ran from statement %d of %d, reparsed %d, in %.2f ms.%n",
+                firstChanged, statements.size(), reparsedCount,
+                (System.nanoTime() - startNanos) / 1e6);
+    }
+
+    // Runs statements from the latest checkpoint at or before 'from',
+    // taking fresh checkpoints on the way.
+    private void execute(int from) {
+        while (!checkpoints.isEmpty() && checkpoints.get(checkpoints.size() - 1).index > from) {
+            checkpoints.remove(checkpoints.size() - 1);
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, false, StandardCharsets.UTF_8);
+        String programName = path.toString();
+
+        int index;
+        Interpreter interpreter;
+        if (checkpoints.isEmpty()) {
+            index = 0;
+            interpreter = new Interpreter(rainfallMm, out, programName);
+        } else {
+            Mark resume = checkpoints.get(checkpoints.size() - 1);
+            index = resume.index;
+            interpreter = resume.state.fork(out, programName);
+            out.print(resume.output);
+        }
+
+        int spacing = Math.max(MIN_CHECKPOINT_SPACING, statements.size() / MAX_CHECKPOINTS);
+        try {
+            while (index < statements.size()) {
+                int end = Math.min(statements.size(), (index / spacing + 1) * spacing);
+                interpreter.run(statements.subList(index, end));
+                index = end;
+                if (index < statements.size()) {
+                    out.flush();
+                    Interpreter snapshot = interpreter.fork(System.out, programName);
+                    checkpoints.add(new Mark(index, snapshot, buffer.toString(StandardCharsets.UTF_8)));
+                }
+            }
+            interpreter.printRiverSummary();
+        } catch (RuntimeError error) {
+            out.println(error.getMessage() + "\n[line " + error.token.line + "]");
+        }
+        out.flush();
+        System.out.print(buffer.toString(StandardCharsets.UTF_8));
+        System.out.flush();
+    }
+
+    // The token index just past statement i.
+    private int endOf(int i) {
+        return i + 1 < starts.size() ? starts.get(i + 1) : tokens.size() - 1;
+    }
+
+    private static int commonPrefix(List<Token> a, List<Token> b) {
+        int n = Math.min(a.size(), b.size());
+        int i = 0;
+        while (i < n && same(a.get(i), b.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    // Never overlaps the prefix in either list.
+    private static int commonSuffix(List<Token> a, List<Token> b, int prefix) {
+        int n = Math.min(a.size(), b.size()) - prefix;
+        int i = 0;
+        while (i < n && same(a.get(a.size() - 1 - i), b.get(b.size() - 1 - i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean same(Token a, Token b) {
+        // Lines are compared too: a reused statement must report the same
+        // line numbers it would have after a full reparse.
+        return a.type == b.type
+                && a.line == b.line
+                && a.lexeme.equals(b.lexeme)
+                && Objects.equals(a.literal, b.literal);
+    }
+
+    static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: jlox --watch <script> [rainfallMm]");
+            System.exit(64);
+        }
+        double rainfallMm = 1.0;
+        if (args.length == 2) {
+            try {
+                rainfallMm = Double.parseDouble(args[1]);
+            } catch (NumberFormatException ex) {
+                System.out.println("Rainfall must be a number.");
+                System.exit(64);
+            }
+        }
+        new WatchMode(Paths.get(args[0]), rainfallMm).watch();
+    }
+}